@@ -15,12 +15,8 @@
  */
 package de.codesourcery.asm.controlflow;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
@@ -44,30 +40,30 @@ public abstract class AbstractBlock implements IBlock
 {
     protected String id;
     
-    protected final Set<Integer> instructions = new HashSet<>();  
+    protected final InstructionRange instructions = new InstructionRange();  
     protected final Set<Edge> edges = new HashSet<>();
     
+    // bytecode statistics , computed once per instruction list and discarded when instructions are added to this block.
+    // The list's size is remembered as well since instrumenters modify the method in-place , which shifts instruction indices.
+    private InsnList statisticsInstructions;
+    private int statisticsInstructionsSize;
+    private int byteCodeInstructionCount;
+    private int firstByteCodeInstructionNum;
+    
     @Override
     public String disassemble(MethodNode method,boolean includeVirtual,boolean printInsnIndices) {
         
         final StringBuilder builder = new StringBuilder();
         
-        @SuppressWarnings("unchecked")
-		final ListIterator<AbstractInsnNode> iterator = method.instructions.iterator();
-        for ( int index = 0; iterator.hasNext() ; index++ ) 
+        for ( int index : instructions ) 
         {
-            final AbstractInsnNode instruction = iterator.next();
-            
-            if ( containsInstructionNum( index ) ) 
+            String line = Disassembler.disassemble( method.instructions.get( index ) , method , includeVirtual , printInsnIndices );
+            if ( line != null ) 
             {
-                String line = Disassembler.disassemble( instruction , method , includeVirtual , printInsnIndices );
-                if ( line != null ) 
-                {
-                    if ( builder.length() > 0 ) {
-                        builder.append("\n");
-                    }
-                    builder.append( line );
+                if ( builder.length() > 0 ) {
+                    builder.append("\n");
                 }
+                builder.append( line );
             }
         }
         return builder.toString();
@@ -80,12 +76,10 @@ public abstract class AbstractBlock implements IBlock
             return -1;
         }
         
-        @SuppressWarnings("unchecked")
-		final ListIterator<AbstractInsnNode> iterator = method.instructions.iterator();
-        for ( int index = 0; iterator.hasNext() ; index++ ) 
+        for ( int index : instructions ) 
         {
-            final AbstractInsnNode instruction = iterator.next();
-            if ( containsInstructionNum( index ) && instruction.getOpcode() == Opcodes.INVOKESPECIAL ) 
+            final AbstractInsnNode instruction = method.instructions.get( index );
+            if ( instruction.getOpcode() == Opcodes.INVOKESPECIAL ) 
             {
                 final MethodInsnNode invocation = (MethodInsnNode) instruction;
                 if ( invocation.name.equals("<init>") ) {
@@ -99,29 +93,55 @@ public abstract class AbstractBlock implements IBlock
     @Override
     public int getFirstInstructionNum() throws NoSuchElementException
     {
-        final List<Integer> sorted = new ArrayList<>(instructions);
-        Collections.sort(sorted);
-        return sorted.get(0);
+        final int result = instructions.first();
+        if ( result == -1 ) {
+            throw new NoSuchElementException("Block contains no instructions");
+        }
+        return result;
     }
     
     @Override
     public int getFirstByteCodeInstructionNum(MethodNode method) throws NoSuchElementException
     {
-        final List<Integer> sorted = new ArrayList<>(instructions);
-        Collections.sort(sorted);
-        for ( int idx : sorted ) {
-            AbstractInsnNode instruction = method.instructions.get( idx );
-            if ( instruction.getOpcode() != -1 ) {
-                return idx;
+        computeStatistics( method );
+        if ( firstByteCodeInstructionNum == -1 ) {
+            throw new NoSuchElementException("Block contains only virtual instructions");
+        }
+        return firstByteCodeInstructionNum;
+    }
+    
+    private void computeStatistics(MethodNode method) 
+    {
+        final InsnList list = method.instructions;
+        if ( statisticsInstructions == list && statisticsInstructionsSize == list.size() ) {
+            return;
+        }
+        // InsnList#get(int) is backed by a cached array , only look at this block's own instructions
+        int count = 0;
+        int first = -1;
+        for ( int index : instructions ) 
+        {
+            final int opCode = list.get( index ).getOpcode();
+            if ( opCode >= 0 && opCode < Printer.OPCODES.length ) 
+            { 
+                if ( first == -1 ) {
+                    first = index;
+                }
+                count++;
             }
         }
-        throw new NoSuchElementException("Block contains only virtual instructions");
+        byteCodeInstructionCount = count;
+        firstByteCodeInstructionNum = first;
+        statisticsInstructions = list;
+        statisticsInstructionsSize = list.size();
     }
     
     @Override
     public void addInstructionNum(int num)
     {
-        instructions.add( num );
+        if ( instructions.addInstruction( num ) ) {
+            statisticsInstructions = null;
+        }
     }
     
     @Override
@@ -150,33 +170,26 @@ public abstract class AbstractBlock implements IBlock
     
     @Override
     public int getByteCodeInstructionCount(MethodNode method) {
-        
-        final InsnList instructions = method.instructions;
-        @SuppressWarnings("unchecked")
-		final ListIterator<AbstractInsnNode> iterator = instructions.iterator();
-        
-        int count = 0;
-        for ( int index = 0 ; iterator.hasNext() ; index++ ) 
-        {
-            final AbstractInsnNode node = iterator.next();
-            if ( containsInstructionNum( index ) ) {
-                final int opCode = node.getOpcode();
-                if ( opCode >= 0 && opCode < Printer.OPCODES.length ) { 
-                    count++;
-                }
-            }
-        }
-        return count;
+        computeStatistics( method );
+        return byteCodeInstructionCount;
     }
     
-   
-    
     public boolean containsInstructionNum(int num) {
-        return instructions.contains(num);
+        return instructions.containsInstruction( num );
     }
     
-    public void addInstructionNums(IBlock other) {
-        instructions.addAll( other.getInstructionNums() );
+    public void addInstructionNums(IBlock other) 
+    {
+        if ( other instanceof AbstractBlock ) {
+            instructions.addInstructions( ((AbstractBlock) other).instructions );
+        } 
+        else 
+        {
+            for ( int num : other.getInstructionNums() ) {
+                instructions.addInstruction( num );
+            }
+        }
+        statisticsInstructions = null;
     }
     
     public Set<Integer> getInstructionNums() {
@@ -340,8 +353,6 @@ public abstract class AbstractBlock implements IBlock
     }          
     
     protected final String instructionsToString() {
-        List<Integer> sorted = new ArrayList<>(instructions);
-        Collections.sort(sorted);
-        return StringUtils.join( sorted , "," );
+        return StringUtils.join( instructions.iterator() , "," );
     }
 }
\ No newline at end of file
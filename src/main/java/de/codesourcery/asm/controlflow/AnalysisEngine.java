@@ -0,0 +1,431 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.util.ClassPathScanner;
+import de.codesourcery.asm.util.IClassReaderProvider;
+import de.codesourcery.asm.util.IJoinpointFilter;
+
+/**
+ * Creates control-flow graphs for all classes in a set of JAR archives and/or directories.
+ * 
+ * <p>Work is distributed on a {@link ForkJoinPool}: the list of classes is split recursively, each class
+ * is parsed by the worker that picks it up and methods of large classes are analyzed as separate sub-tasks.</p>
+ * 
+ * <p>Graphs are either collected in an {@link AnalysisResult} or streamed to a {@link IControlFlowGraphSink} 
+ * when analyzing classpaths that are too large to keep all graphs in memory.</p>
+ * 
+ * <pre>
+ * final AnalysisResult result = new AnalysisEngine().analyze( new File("app.jar") );
+ * final ControlFlowGraph graph = result.getGraph( "com/acme/Main" , "main" , "([Ljava/lang/String;)V" );
+ * </pre>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see AnalysisResult
+ */
+public class AnalysisEngine
+{
+    // classes with at most this many methods are analyzed by a single task
+    private static final int METHOD_BATCH_SIZE = 8;
+
+    private final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+    private final int parallelism;
+
+    private IJoinpointFilter filter = IJoinpointFilter.ALL;
+    private boolean verbose = false;
+    private ControlFlowGraphCache cache;
+
+    /**
+     * Create an engine that uses one worker thread per available CPU core.
+     */
+    public AnalysisEngine() {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Create an engine.
+     * 
+     * @param parallelism number of worker threads to use
+     */
+    public AnalysisEngine(int parallelism) 
+    {
+        if ( parallelism < 1 ) {
+            throw new IllegalArgumentException("parallelism must be >= 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the filter used to select classes and methods.
+     * 
+     * <p>Defaults to {@link IJoinpointFilter#ALL}.</p>
+     * 
+     * @param filter
+     */
+    public void setFilter(IJoinpointFilter filter)
+    {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be NULL.");
+        }
+        this.filter = filter;
+    }
+
+    public void setVerbose(boolean verbose)
+    {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Sets the cache used by {@link #analyzeFrozen(List, IFrozenControlFlowGraphSink)}.
+     * 
+     * @param cache cache or <code>null</code> to always analyze classes
+     */
+    public void setCache(ControlFlowGraphCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Analyze all classes in the given classpath entries.
+     * 
+     * @param classPathEntries JAR/ZIP archives or directories
+     * @return
+     * @throws IOException
+     */
+    public AnalysisResult analyze(File... classPathEntries) throws IOException {
+        return analyze( Arrays.asList( classPathEntries ) );
+    }
+
+    /**
+     * Analyze all classes in the given classpath entries.
+     * 
+     * <p>All graphs are kept in memory, use {@link #analyze(List, IControlFlowGraphSink)} 
+     * when analyzing large classpaths.</p>
+     * 
+     * @param classPathEntries JAR/ZIP archives or directories
+     * @return
+     * @throws IOException
+     */
+    public AnalysisResult analyze(List<File> classPathEntries) throws IOException 
+    {
+        final AnalysisResult result = new AnalysisResult();
+        analyze( classPathEntries , result , true );
+        return result;
+    }
+
+    /**
+     * Analyze all classes in the given classpath entries , streaming graphs to a sink.
+     * 
+     * <p>Each graph is handed to the sink as soon as it has been created and the engine drops 
+     * all references to it (and to the class/method it was created from) afterwards. Each worker thread 
+     * processes exactly one class at a time so peak memory usage depends on the number of 
+     * worker threads and the size of the largest classes but not on the number of classes analyzed.</p>
+     * 
+     * @param classPathEntries JAR/ZIP archives or directories
+     * @param sink sink to receive the graphs, must be thread-safe
+     * @throws IOException
+     */
+    public void analyze(List<File> classPathEntries,IControlFlowGraphSink sink) throws IOException 
+    {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be NULL.");
+        }
+        analyze( classPathEntries , sink , false );
+    }
+
+    /**
+     * Analyze all classes in the given classpath entries , streaming compact graphs to a sink.
+     * 
+     * <p>If a {@link #setCache(ControlFlowGraphCache) cache} has been configured, classes whose graphs are 
+     * already cached are neither parsed nor analyzed.</p>
+     * 
+     * @param classPathEntries JAR/ZIP archives or directories
+     * @param sink sink to receive the graphs, must be thread-safe
+     * @throws IOException
+     */
+    public void analyzeFrozen(List<File> classPathEntries,final IFrozenControlFlowGraphSink sink) throws IOException 
+    {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be NULL.");
+        }
+        analyze( classPathEntries , new IClassHandler() {
+
+            @Override
+            public void process(IClassReaderProvider provider)
+            {
+                analyzeClass( provider , sink );
+            }
+        });
+    }
+
+    private void analyze(List<File> classPathEntries,IControlFlowGraphSink sink,boolean splitMethods) throws IOException 
+    {
+        analyze( classPathEntries , new GraphHandler( sink , splitMethods ) );
+    }
+
+    private void analyze(List<File> classPathEntries,IClassHandler handler) throws IOException 
+    {
+        try ( ClassPathScanner scanner = new ClassPathScanner( classPathEntries ) ) 
+        {
+            final List<IClassReaderProvider> classes = new ArrayList<>();
+            for ( IClassReaderProvider provider : scanner.getClasses() ) {
+                if ( filter.matches( provider.getClassName() ) ) {
+                    classes.add( provider );
+                }
+            }
+            logVerbose("Analyzing "+classes.size()+" classes using "+parallelism+" threads");
+            analyzeClasses( classes , handler );
+        }
+    }
+
+    /**
+     * Analyze a list of classes.
+     * 
+     * @param classes
+     * @return
+     */
+    public AnalysisResult analyzeClasses(List<IClassReaderProvider> classes) 
+    {
+        final AnalysisResult result = new AnalysisResult();
+        analyzeClasses( classes , new GraphHandler( result , true ) );
+        return result;
+    }
+
+    private void analyzeClasses(List<IClassReaderProvider> classes,IClassHandler handler) 
+    {
+        final ForkJoinPool pool = new ForkJoinPool( parallelism );
+        try {
+            pool.invoke( new ClassBatchTask( classes , 0 , classes.size() , handler ) );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void logVerbose(String msg) {
+        if ( verbose ) {
+            System.out.println( msg );
+        }
+    }
+
+    // processes a single class 
+    private interface IClassHandler 
+    {
+        public void process(IClassReaderProvider provider);
+    }
+
+    protected final class ClassBatchTask extends RecursiveAction 
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<IClassReaderProvider> classes;
+        private final int start;
+        private final int end;
+        private final IClassHandler handler;
+
+        public ClassBatchTask(List<IClassReaderProvider> classes, int start, int end, IClassHandler handler)
+        {
+            this.classes = classes;
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( end - start > 1 ) 
+            {
+                final int mid = (start + end) >>> 1;
+                invokeAll( new ClassBatchTask( classes , start , mid , handler ) , new ClassBatchTask( classes , mid , end , handler ) );
+                return;
+            }
+            if ( end > start ) {
+                handler.process( classes.get( start ) );
+            }
+        }
+    }
+
+    private final class GraphHandler implements IClassHandler 
+    {
+        private final IControlFlowGraphSink sink;
+        private final boolean splitMethods;
+
+        public GraphHandler(IControlFlowGraphSink sink, boolean splitMethods)
+        {
+            this.sink = sink;
+            this.splitMethods = splitMethods;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void process(IClassReaderProvider provider) 
+        {
+            final ClassNode cn = new ClassNode();
+            try {
+                provider.getClassReader().accept( cn , 0 );
+            } 
+            catch (Exception e) 
+            {
+                sink.analysisFailed( provider.getClassName() , e );
+                return;
+            }
+
+            final List<MethodNode> methods = new LinkedList<>();
+            for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+            {
+                // abstract and native methods have no code
+                if ( mn.instructions.size() > 0 && filter.matches( provider.getClassName() , mn.name ) ) {
+                    methods.add( mn );
+                }
+            }
+            cn.methods.clear();
+
+            if ( splitMethods ) {
+                new MethodBatchTask( cn.name , new ArrayList<>( methods ) , 0 , methods.size() , sink ).invoke();
+            } 
+            else 
+            {
+                // streaming mode , analyze methods one-by-one so that each method
+                // becomes unreachable as soon as the sink is done with it
+                for ( Iterator<MethodNode> it = methods.iterator() ; it.hasNext() ; ) 
+                {
+                    final MethodNode mn = it.next();
+                    it.remove();
+                    analyzeMethod( cn.name , mn , sink );
+                }
+            }
+            sink.classAnalyzed( provider.getClassName() );
+        }
+    }
+
+    private void analyzeClass(IClassReaderProvider provider,IFrozenControlFlowGraphSink sink) 
+    {
+        final String owner = provider.getClassName().replace(".","/");
+        final List<FrozenControlFlowGraph> graphs;
+        try 
+        {
+            if ( cache != null ) 
+            {
+                final Map<String,Throwable> failures = new LinkedHashMap<>();
+                graphs = cache.getGraphs( provider.getClassReader().b , failures );
+                // report failures just like the uncached path , i.e. only for methods matching the filter
+                for ( Map.Entry<String,Throwable> entry : failures.entrySet() ) 
+                {
+                    final String method = entry.getKey();
+                    final int descStart = method.indexOf( '(' );
+                    if ( filter.matches( provider.getClassName() , method.substring( 0 , descStart ) ) ) {
+                        sink.analysisFailed( AnalysisResult.methodKey( owner , method.substring( 0 , descStart ) , method.substring( descStart ) ) , entry.getValue() );
+                    }
+                }
+            } 
+            else 
+            {
+                graphs = new ArrayList<>();
+                final ClassNode cn = new ClassNode();
+                provider.getClassReader().accept( cn , 0 );
+                for ( Object m : cn.methods ) 
+                {
+                    final MethodNode mn = (MethodNode) m;
+                    if ( mn.instructions.size() > 0 && filter.matches( provider.getClassName() , mn.name ) ) 
+                    {
+                        try {
+                            graphs.add( analyzer.analyze( mn ).freeze() );
+                        } 
+                        catch (Exception e) {
+                            sink.analysisFailed( AnalysisResult.methodKey( owner , mn.name , mn.desc ) , e );
+                        }
+                    }
+                }
+            }
+        } 
+        catch (Exception e) 
+        {
+            sink.analysisFailed( provider.getClassName() , e );
+            return;
+        }
+
+        for ( FrozenControlFlowGraph graph : graphs ) 
+        {
+            if ( filter.matches( provider.getClassName() , graph.getMethodName() ) ) {
+                sink.graphCreated( owner , graph );
+            }
+        }
+        sink.classAnalyzed( provider.getClassName() );
+    }
+
+    protected final class MethodBatchTask extends RecursiveAction 
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String owner;
+        private final List<MethodNode> methods;
+        private final int start;
+        private final int end;
+        private final IControlFlowGraphSink sink;
+
+        public MethodBatchTask(String owner,List<MethodNode> methods, int start, int end, IControlFlowGraphSink sink)
+        {
+            this.owner = owner;
+            this.methods = methods;
+            this.start = start;
+            this.end = end;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( end - start > METHOD_BATCH_SIZE ) 
+            {
+                final int mid = (start + end) >>> 1;
+                invokeAll( new MethodBatchTask( owner , methods , start , mid , sink ) , new MethodBatchTask( owner , methods , mid , end , sink ) );
+                return;
+            }
+            for ( int i = start ; i < end ; i++ ) {
+                analyzeMethod( owner , methods.get(i) , sink );
+            }
+        }
+    }
+
+    private void analyzeMethod(String owner,MethodNode mn,IControlFlowGraphSink sink) 
+    {
+        final ControlFlowGraph graph;
+        try {
+            graph = analyzer.analyze( mn );
+        } 
+        catch (Exception e) 
+        {
+            sink.analysisFailed( AnalysisResult.methodKey( owner , mn.name , mn.desc ) , e );
+            return;
+        }
+        sink.graphCreated( owner , graph );
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe store for the control-flow graphs created by an {@link AnalysisEngine}.
+ * 
+ * <p>Graphs are keyed by method, see {@link #methodKey(String, String, String)}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class AnalysisResult implements IControlFlowGraphSink
+{
+    private final ConcurrentHashMap<String,ControlFlowGraph> graphs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Throwable> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger classCount = new AtomicInteger();
+
+    /**
+     * Returns the key used to store the graph of a method.
+     * 
+     * @param owner internal name of the class declaring the method (<code>java/lang/Object</code>)
+     * @param methodName
+     * @param methodDesc
+     * @return
+     */
+    public static String methodKey(String owner,String methodName,String methodDesc) {
+        return owner+"#"+methodName+methodDesc;
+    }
+
+    @Override
+    public void graphCreated(String owner,ControlFlowGraph graph) {
+        graphs.put( methodKey( owner , graph.getMethod().name , graph.getMethod().desc ) , graph );
+    }
+
+    @Override
+    public void analysisFailed(String key,Throwable cause) {
+        failures.put( key , cause );
+    }
+
+    @Override
+    public void classAnalyzed(String className) {
+        classCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the graph for a method.
+     * 
+     * @param owner internal name of the class declaring the method
+     * @param methodName
+     * @param methodDesc
+     * @return graph or <code>null</code>
+     */
+    public ControlFlowGraph getGraph(String owner,String methodName,String methodDesc) {
+        return graphs.get( methodKey( owner , methodName , methodDesc ) );
+    }
+
+    /**
+     * Returns all graphs, keyed by {@link #methodKey(String, String, String)}.
+     * 
+     * @return
+     */
+    public Map<String,ControlFlowGraph> getGraphs() {
+        return Collections.unmodifiableMap( graphs );
+    }
+
+    /**
+     * Returns all errors that occurred during analysis.
+     * 
+     * @return errors keyed by method key or class name (if the class could not be read at all)
+     */
+    public Map<String,Throwable> getFailures() {
+        return Collections.unmodifiableMap( failures );
+    }
+
+    /**
+     * Returns the number of classes that have been analyzed.
+     * @return
+     */
+    public int getClassCount() {
+        return classCount.get();
+    }
+}
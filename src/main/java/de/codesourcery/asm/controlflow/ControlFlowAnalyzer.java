@@ -16,18 +16,14 @@
 package de.codesourcery.asm.controlflow;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Set;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LookupSwitchInsnNode;
@@ -39,8 +35,29 @@ import org.objectweb.asm.tree.analysis.AnalyzerException;
 import de.codesourcery.asm.controlflow.Edge.EdgeType;
 import de.codesourcery.asm.util.ASMUtil;
 
+/**
+ * Creates control-flow graphs for methods.
+ * 
+ * <p>Basic blocks are built in a single pass: First all block leaders (the first instruction,
+ * jump/switch targets, instructions following a branch, switch, return or throw and
+ * exception handler entry points) are marked, then each leader starts a new maximal block that extends up to 
+ * (but not including) the next leader. Edges are created afterwards by looking at the last instruction of each block, 
+ * so analysis time is linear in the number of instructions plus the number of edges.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
 public class ControlFlowAnalyzer
 {
+    /**
+     * Version of the analysis algorithm. 
+     * 
+     * <p>Needs to be incremented whenever a change to this class alters the generated graphs 
+     * so that persisted results become invalid.</p>
+     * 
+     * @see ControlFlowGraphCache
+     */
+    public static final int VERSION = 1;
+    
 	Map<String,ControlFlowGraph> graphmap = new HashMap<>(); 
 	
     private boolean debug = false;
@@ -50,362 +67,292 @@ public class ControlFlowAnalyzer
         this.debug = debug;
     }
     
-    @SuppressWarnings("unchecked")
+    /**
+     * Creates the control-flow graph for a method and remembers it.
+     * 
+     * @param owner name of the class that declares the method
+     * @param mn
+     * @return
+     * @throws AnalyzerException
+     * @see #analyze(MethodNode)
+     */
     public ControlFlowGraph analyze(String owner,final MethodNode mn) throws AnalyzerException 
     {
-        // line numbers with associated block
-        // initially we'll create one block per line and merge adjacent ones later if control flow permits it  
-        final Map<Integer,IBlock> blocks = new HashMap<>(); 
+        final ControlFlowGraph cfg = analyze( mn );
+        System.out.println("CFGMAP:"+ formatname(owner)+"#" + cfg.getMethod().name);
+        graphmap.put(formatname(owner)+ "#" + cfg.getMethod().name,cfg);
+        return cfg;
+    }
+
+    /**
+     * Creates the control-flow graph for a method.
+     * 
+     * <p>Unlike {@link #analyze(String, MethodNode)} this method has no side-effects and
+     * may be invoked concurrently from multiple threads.</p>
+     * 
+     * @param mn
+     * @return
+     * @throws AnalyzerException
+     */
+    @SuppressWarnings("unchecked")
+    public ControlFlowGraph analyze(final MethodNode mn) throws AnalyzerException 
+    {
+        final InsnList instructions = mn.instructions;
+        final int instructionCount = instructions.size();
+        if ( instructionCount == 0 ) {
+            throw new IllegalStateException("Method with no lines?");
+        }
 
-        final ListIterator<AbstractInsnNode> it = mn.instructions.iterator();
+        final AbstractInsnNode[] nodes = instructions.toArray();
 
-        IBlock currentLine=null;   
-        Object previousMetadata = null;
-        IBlock previous = null;
-        final IBlock methodExit = new MethodExit();
-        for( int instrCounter = 0 ; it.hasNext() ; instrCounter++ ) 
+        // first pass: find block leaders
+        final boolean[] leaders = new boolean[ instructionCount ];
+        leaders[0] = true;
+        for ( int i = 0 ; i < instructionCount ; i++ ) 
         {
-            final AbstractInsnNode instruction = it.next();
-            currentLine = getBlockForInstruction(instrCounter,blocks);
+            final AbstractInsnNode instruction = nodes[i];
+            switch( instruction.getType() ) 
+            {
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) instruction;
+                    markLeader( lookup.dflt , instructions , leaders );
+                    for ( LabelNode ln : (List<LabelNode>) lookup.labels ) {
+                        markLeader( ln , instructions , leaders );
+                    }
+                    markLeader( i+1 , leaders );
+                    break;
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                    final TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) instruction;
+                    markLeader( tblSwitch.dflt , instructions , leaders );
+                    for ( LabelNode ln : (List<LabelNode>) tblSwitch.labels ) {
+                        markLeader( ln , instructions , leaders );
+                    }
+                    markLeader( i+1 , leaders );
+                    break;
+                case AbstractInsnNode.JUMP_INSN:
+                    markLeader( ((JumpInsnNode) instruction).label , instructions , leaders );
+                    markLeader( i+1 , leaders );
+                    break;
+                case AbstractInsnNode.INSN:
+                case AbstractInsnNode.VAR_INSN:
+                    if ( isMethodExit( instruction ) || isThrowOrRet( instruction ) ) {
+                        markLeader( i+1 , leaders );
+                    }
+                    break;
+            }
+        }
 
-            if ( previous != null ) 
+        for ( TryCatchBlockNode node : (List<TryCatchBlockNode>) mn.tryCatchBlocks ) {
+            markLeader( node.handler , instructions , leaders );
+        }
+
+        // second pass: create one block per leader and remember which block each instruction belongs to
+        final IBlock[] blockForInstruction = new IBlock[ instructionCount ];
+        final int[] blockIndexForInstruction = new int[ instructionCount ];
+        final List<IBlock> result = new ArrayList<>();
+        final List<Integer> blockEnds = new ArrayList<>();
+
+        IBlock current = null;
+        for ( int i = 0 ; i < instructionCount ; i++ ) 
+        {
+            if ( leaders[i] ) 
             {
-                previous.addSuccessor( currentLine , EdgeType.REGULAR , previousMetadata );
-                currentLine.addRegularPredecessor( previous );
-                previousMetadata = null;
+                if ( current != null ) {
+                    blockEnds.add( i-1 );
+                }
+                current = new Block();
+                result.add( current );
             }
+            current.addInstructionNum( i );
+            blockForInstruction[i] = current;
+            blockIndexForInstruction[i] = result.size() - 1;
+        }
+        blockEnds.add( instructionCount - 1 );
+
+        // third pass: link blocks by looking at the last instruction of each block
+        final IBlock methodExit = new MethodExit();
+        for ( int blockIdx = 0 ; blockIdx < result.size() ; blockIdx++ ) 
+        {
+            final IBlock block = result.get( blockIdx );
+            final int last = blockEnds.get( blockIdx );
+            final AbstractInsnNode instruction = nodes[ last ];
+            final IBlock next = ( last+1 < instructionCount ) ? blockForInstruction[ last+1 ] : null;
 
-            IBlock nextPrevious = currentLine;
+            boolean fallsThrough = true;
+            Object fallThroughMetadata = null;
             switch( instruction.getType() ) 
             {
-
                 case AbstractInsnNode.LOOKUPSWITCH_INSN:
-                    LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) instruction;
+                    final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) instruction;
 
                     // add edge for default handler
-                    if ( lookup.dflt != null ) 
-                    {
-                        final IBlock target = getBlockForInstruction( lookup.dflt , mn , blocks );
-                        target.addRegularPredecessor( currentLine );
-                        currentLine.addRegularSuccessor( target );
+                    if ( lookup.dflt != null ) {
+                        addEdge( block , blockForInstruction[ instructions.indexOf( lookup.dflt ) ] , EdgeType.REGULAR , null );
                     }
 
                     @SuppressWarnings("cast")
                     final Iterator<Integer> keys = (Iterator<Integer> ) lookup.keys.iterator();
-
-                    for ( LabelNode ln : (List<LabelNode>) lookup.labels ) 
-                    {
-                        final IBlock target = getBlockForInstruction( ln , mn , blocks );
-                        final Integer key = keys.next();
-
-                        target.addPredecessor( currentLine , EdgeType.LOOKUP_SWITCH , key );
-                        currentLine.addSuccessor( target , EdgeType.LOOKUP_SWITCH , key );
+                    for ( LabelNode ln : (List<LabelNode>) lookup.labels ) {
+                        addEdge( block , blockForInstruction[ instructions.indexOf( ln ) ] , EdgeType.LOOKUP_SWITCH , keys.next() );
                     }
-                    nextPrevious = null;
-                    break;                    
+                    fallsThrough = false;
+                    break;
 
                 case AbstractInsnNode.TABLESWITCH_INSN:
-
-                    TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) instruction;
+                    final TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) instruction;
 
                     // add edge for default handler
-                    if ( tblSwitch.dflt != null ) 
-                    {
-                        final IBlock target = getBlockForInstruction( tblSwitch.dflt , mn , blocks );
-                        target.addRegularPredecessor( currentLine );
-                        currentLine.addRegularSuccessor( target );
+                    if ( tblSwitch.dflt != null ) {
+                        addEdge( block , blockForInstruction[ instructions.indexOf( tblSwitch.dflt ) ] , EdgeType.REGULAR , null );
                     }
                     int currentKey = tblSwitch.min;
-
-                    for ( LabelNode ln : (List<LabelNode>) tblSwitch.labels ) 
-                    {
-                        final IBlock target = getBlockForInstruction( ln , mn , blocks );
-
-                        target.addPredecessor( currentLine , EdgeType.TABLE_SWITCH , currentKey );
-                        currentLine.addSuccessor( target , EdgeType.TABLE_SWITCH , currentKey );
-
-                        currentKey++;
-                    }
-                    nextPrevious = null;
-                    break;
-
-                case AbstractInsnNode.INSN:
-
-                    if ( instruction.getOpcode() == Opcodes.RETURN || instruction.getOpcode() == Opcodes.IRETURN ) /* method exit */
-                    {
-                        currentLine.addRegularSuccessor( methodExit );
-                        methodExit.addRegularPredecessor( currentLine );
-                        nextPrevious = null;
-                    } 
-                    else if ( instruction.getOpcode() == Opcodes.ATHROW || instruction.getOpcode() == Opcodes.RET ) 
-                    {
-                        nextPrevious = null;
+                    for ( LabelNode ln : (List<LabelNode>) tblSwitch.labels ) {
+                        addEdge( block , blockForInstruction[ instructions.indexOf( ln ) ] , EdgeType.TABLE_SWITCH , currentKey++ );
                     }
+                    fallsThrough = false;
                     break;
-                    
-                case AbstractInsnNode.JUMP_INSN: /* jump */
-
-                    final JumpInsnNode jmp = (JumpInsnNode) instruction;
-                    final LabelNode label = jmp.label;
-                    final int target = mn.instructions.indexOf( label );
 
+                case AbstractInsnNode.JUMP_INSN:
                     final boolean isConditional = ASMUtil.isConditionalJump( instruction );
+                    final IBlock target = blockForInstruction[ instructions.indexOf( ((JumpInsnNode) instruction).label ) ];
 
-                    if ( isConditional ) { // label edges of conditional jump instructions with "true" and "false
-                        previousMetadata = "false";
+                    // label edges of conditional jump instructions with "true" and "false"
+                    addEdge( block , target , EdgeType.REGULAR , isConditional ? "true" : null );
+                    if ( isConditional ) {
+                        fallThroughMetadata = "false";
                     }
-                    
-                    final IBlock targetBlock = getBlockForInstruction(target,blocks);
-                    targetBlock.addRegularPredecessor( currentLine );
-
-                    // create edge from current block to jump target 
-                    currentLine.addSuccessor( targetBlock , EdgeType.REGULAR , isConditional ? "true" : null );
+                    fallsThrough = instruction.getOpcode() != Opcodes.GOTO;
+                    break;
 
-                    if ( instruction.getOpcode() == Opcodes.GOTO) {
-                        nextPrevious = null;
+                default:
+                    if ( isMethodExit( instruction ) ) {
+                        addEdge( block , methodExit , EdgeType.REGULAR , null );
+                        fallsThrough = false;
+                    } else if ( isThrowOrRet( instruction ) ) {
+                        fallsThrough = false;
                     }
-                    break;
             }
 
-            // link last instruction with method_exit block
-            if ( ! it.hasNext() ) { 
-                currentLine.addRegularSuccessor( methodExit );
-                methodExit.addRegularPredecessor( currentLine );
+            if ( next == null ) {
+                // link last block with method_exit block
+                addEdge( block , methodExit , EdgeType.REGULAR , null );
+            } else if ( fallsThrough ) {
+                addEdge( block , next , EdgeType.REGULAR , fallThroughMetadata );
             }
-            previous = nextPrevious;
         }
+
         // try/catch blocks need special treatment because
-        // they are not represented as opcodes
-        for ( TryCatchBlockNode node : (List<TryCatchBlockNode>) mn.tryCatchBlocks ) 
+        // they are not represented as opcodes ; build an interval index
+        // over the protected ranges and attach handlers once per block
+        // instead of once per protected instruction
+        final ExceptionHandlerIndex handlerIndex = createHandlerIndex( mn , blockEnds , blockIndexForInstruction );
+        for ( int interval = 0 ; interval < handlerIndex.getIntervalCount() ; interval++ ) 
         {
-            final LabelNode startLabel = node.start;
-            final int startTarget = mn.instructions.indexOf( startLabel );
-
-            final LabelNode endLabel = node.end;
-            final int endTarget = mn.instructions.indexOf( endLabel );            
-
-            final int handlerTarget = mn.instructions.indexOf( node.handler );
-            IBlock handler = getBlockForInstruction( node.handler , mn , blocks );
-
-            for ( int i = startTarget ; i <= endTarget ; i++ ) 
+            final List<ExceptionHandlerIndex.Handler> handlers = handlerIndex.getIntervalHandlers( interval );
+            final int intervalEnd = handlerIndex.getIntervalEnd( interval );
+            for ( int i = handlerIndex.getIntervalStart( interval ) ; i < intervalEnd ; ) 
             {
-                if ( i != handlerTarget ) {
-                    getBlockForInstruction( i , blocks ).addExceptionHandler( handler , node.type );
+                final IBlock block = blockForInstruction[i];
+                final int blockStart = i;
+                final int blockEnd = blockEnds.get( blockIndexForInstruction[i] ) + 1;
+                for ( ExceptionHandlerIndex.Handler handler : handlers ) 
+                {
+                    // a handler does not protect its own first instruction
+                    final boolean coversOnlyHandler = handler.handlerInstruction == blockStart &&
+                            Math.max( handler.start , blockStart+1 ) >= Math.min( handler.end , blockEnd );
+                    if ( ! coversOnlyHandler ) {
+                        block.addExceptionHandler( blockForInstruction[ handler.handlerInstruction ] , handler.exceptionType );
+                    }
                 }
+                i = blockEnd;
             }
         }
 
-        // merge adjacent instructions
-        final Set<Integer> linesBeforeMerge = new HashSet<>();
-        for ( IBlock block : blocks.values() ) {
-        	linesBeforeMerge.addAll( block.getInstructionNums() );
-        }
-        
-        final List<IBlock> result = mergeBlocks(blocks,mn);
-
-    	if ( debug ) {
-    		System.out.println("################ Control-blocks merged ################");
-    	}
-        // sanity check
-        final Set<Integer> linesAfterMerge = new HashSet<>();
-        for ( IBlock block : result ) 
+        if ( debug ) 
         {
-        	linesAfterMerge.addAll( block.getInstructionNums() );
-        	if ( debug ) {
-        		System.out.println("-----");
-        		System.out.println( block+" has "+block.getByteCodeInstructionCount( mn )+" instructions.");
-        		System.out.println( block.disassemble(mn , false , true ) );
-        	}
-            for ( Edge e : block.getEdges() ) {
-                if ( ! result.contains( e.src ) && e.src != methodExit ) {
-                    throw new RuntimeException( e+" has src that is not in result list?");
-                }
-                if ( ! result.contains( e.dst ) && e.dst != methodExit ) {
-                    throw new RuntimeException( e+" has destination that is not in result list?");
-                }
+            System.out.println("################ Control-blocks ################");
+            for ( IBlock block : result ) 
+            {
+                System.out.println("-----");
+                System.out.println( block+" has "+block.getByteCodeInstructionCount( mn )+" instructions.");
+                System.out.println( block.disassemble(mn , false , true ) );
             }
         }
-        
-        if ( ! linesBeforeMerge.equals( linesAfterMerge ) ) {
-        	throw new RuntimeException("Internal error, line count mismatch before/after control block merge: \n\n"+linesBeforeMerge+"\n\n"+linesAfterMerge);
-        }
 
         // add starting block and link it with block that contains the lowest instruction number
-        MethodEntry methodEntry = new MethodEntry();
-        int lowest = Integer.MAX_VALUE;
-        for ( Integer i : blocks.keySet() ) {
-            if ( i < lowest ) {
-                lowest = i;
-            }
-        }
-
-        final IBlock firstBlock = blocks.get( lowest );
-        if ( firstBlock.hasRegularPredecessor() ) {
-            throw new IllegalStateException( firstBlock+" that constrains first instruction has a predecessor?");
-        }        
-
+        final MethodEntry methodEntry = new MethodEntry();
+        final IBlock firstBlock = result.get(0);
         methodEntry.addRegularSuccessor( firstBlock );
         firstBlock.addRegularPredecessor( methodEntry );
         result.add( 0 , methodEntry );
 
         // add end block to results
-        result.add( methodExit );//owner+"#"+
-        ControlFlowGraph cfg = new ControlFlowGraph( mn , result );
-        System.out.println("CFGMAP:"+ formatname(owner)+"#" + cfg.getMethod().name);
-        graphmap.put(formatname(owner)+ "#" + cfg.getMethod().name,cfg);
-        return cfg;
+        result.add( methodExit );
+        final ControlFlowGraph graph = new ControlFlowGraph( mn , result );
+        graph.setExceptionHandlerIndex( handlerIndex );
+        return graph;
     }    
 
-    private IBlock getBlockForInstruction(LabelNode label , MethodNode mn, Map<Integer,IBlock> blocks) 
+    @SuppressWarnings("unchecked")
+    private static ExceptionHandlerIndex createHandlerIndex(MethodNode mn,List<Integer> blockEnds,int[] blockIndexForInstruction) 
     {
-        final int target = mn.instructions.indexOf( label );
-        return getBlockForInstruction( target , blocks );
-    }
-
-    private int getSuccessorCountIgnoringEndBlock(IBlock block) {
-
-        int count = 0;
-        for ( IBlock b : block.getRegularSuccessors() ) {
-            if ( !( b instanceof MethodExit ) ) {
-                count++;
-            }
+        final List<TryCatchBlockNode> tryCatchBlocks = mn.tryCatchBlocks;
+        if ( tryCatchBlocks.isEmpty() ) {
+            return ExceptionHandlerIndex.EMPTY;
         }
-        return count;
-    }
-
-    private IBlock getSuccessorIgnoringEndBlock(IBlock block) {
 
-        if ( block.getRegularSuccessorCount() >= 0 ) 
+        final InsnList instructions = mn.instructions;
+        final List<ExceptionHandlerIndex.Handler> handlers = new ArrayList<>( tryCatchBlocks.size() );
+        for ( TryCatchBlockNode node : tryCatchBlocks ) 
         {
-            if ( block.getRegularSuccessorCount() > 2 ) {
-                return block.getRegularSuccessor();
-            }        
-
-            for ( IBlock b : block.getRegularSuccessors() ) {
-                if ( !( b instanceof MethodExit ) ) {
-                    return b;
-                }
-            }
+            handlers.add( new ExceptionHandlerIndex.Handler( instructions.indexOf( node.start ) , 
+                    instructions.indexOf( node.end ) , 
+                    instructions.indexOf( node.handler ) , 
+                    node.type ) );
         }
-        return null;
-    }    
 
-    // merge adjacent blocks
-    private List<IBlock> mergeBlocks(Map<Integer, IBlock> blocks, final MethodNode mn)
-    {
-        final List<Integer> lines = new ArrayList<>(blocks.keySet());
-        if ( lines.isEmpty() ) {
-            throw new IllegalStateException("Method with no lines?");
-        }
-
-        Collections.sort( lines );
-
-        // make sure there are no 'holes' in the line number sequence
-        for ( int i = 0 ; i < lines.size() - 2 ; i++) {
-            if ( lines.get(i)+1 != lines.get(i+1 ) ) {
-                throw new IllegalStateException("Missing line "+(lines.get(i)+1 ) );                
-            }
+        final int instructionCount = blockIndexForInstruction.length;
+        final int[] blockStart = new int[ instructionCount ];
+        final int[] blockEnd = new int[ instructionCount ];
+        for ( int i = 0 ; i < instructionCount ; i++ ) 
+        {
+            final int blockIdx = blockIndexForInstruction[i];
+            blockStart[i] = ( i > 0 && blockIndexForInstruction[i-1] == blockIdx ) ? blockStart[i-1] : i;
+            blockEnd[i] = blockEnds.get( blockIdx ) + 1;
         }
+        return ExceptionHandlerIndex.create( handlers , blockStart , blockEnd );
+    }
 
-        final IBlock[] sorted = new IBlock[lines.size()];
+    private static void addEdge(IBlock src,IBlock dst,EdgeType type,Object metaData) 
+    {
+        src.addSuccessor( dst , type , metaData );
+        dst.addPredecessor( src , type , metaData );
+    }
 
-        // initialize each block with their line number
-        for ( Map.Entry<Integer,IBlock> entry : blocks.entrySet() ) 
-        {
-            final IBlock block = entry.getValue();
-            final Integer lineNo = entry.getKey();
-            sorted[ lineNo ] = block;
-            block.addInstructionNum( lineNo );
+    private static void markLeader(LabelNode label,InsnList instructions,boolean[] leaders) 
+    {
+        if ( label != null ) {
+            markLeader( instructions.indexOf( label ) , leaders );
         }
+    }
 
-        if ( debug) {
-            for ( Integer key : lines ) {
-                System.out.println("---- Block #"+key+": "+blocks.get(key)+" ----");
-                System.out.println( blocks.get(key).disassemble( mn , true , true ) );
-            }        
+    private static void markLeader(int index,boolean[] leaders) 
+    {
+        if ( index < leaders.length ) {
+            leaders[index] = true;
         }
+    }
 
-        final List<IBlock> sortedList = new ArrayList<>( Arrays.asList( sorted ) );
-
-        boolean merged = false;
-        do 
-        {
-            merged = false;
-            for ( int i = 0 ; ! merged && sortedList.size() > 1 && (i+1) < sortedList.size() ; i++ ) 
-            {
-                final IBlock current = sortedList.get(i);
-                final IBlock next = sortedList.get(i+1);
-
-                if ( getSuccessorCountIgnoringEndBlock( current ) == 1 && next.getRegularPredecessorCount() == 1 ) 
-                {
-                    if ( getSuccessorIgnoringEndBlock( current ) == next && next.getRegularPredecessor() == current ) 
-                    {
-                        if ( debug ) {
-                            System.out.println("*** MERGING ***");
-                            System.out.println("---------- First: "+current+" ------------------");
-                            System.out.println( current.disassemble( mn , false , true ) );
-                            System.out.println("---------- Second: "+next+" ------------------");
-                            System.out.println( next.disassemble( mn , false , true ) );
-                            System.out.println("--------------------------");
-                        }
-
-                        merged = true;
-                        sortedList.remove( i+1 );
-                        i--;
-
-                        current.addInstructionNums( next );
-
-                        current.removeRegularSuccessor( next );
-
-                        for ( Edge edge : next.getEdges() ) 
-                        {
-                            if ( edge.isSuccessor( next ) ) 
-                            {
-                                final IBlock succ = edge.dst;
-                                succ.blockReplaced( next , current );
-                                current.addSuccessor( succ , edge.type , edge.metaData );
-                            } 
-                            else if ( edge.isPredecessor( next ) ) 
-                            {
-                                final IBlock pred = edge.src;
-                                if ( pred != current ) {
-                                    pred.blockReplaced( next , current );
-                                }
-                            }
-                        }
-                        if ( debug ) {
-                            // TODO: remove debug code
-                            System.out.println("*** AFTER MERGE ***");    
-                            System.out.println("---------- MERGED: "+current+" ------------------");                        
-                            System.out.println( current.disassemble( mn , false , true ) );
-                        }
-
-                    } else {
-                        if ( debug) {
-                            System.err.println("Not merged - no direct edge: "+current+" <-> "+next);
-                        }
-                    }
-                } else {
-                    if ( debug ) {
-                        System.err.println("Not merged - successor/Predecessor count mismatch: "+current+" <-> "+next);
-                    }
-                }
-            }
-        } while ( merged );
-
-        return sortedList;
+    private static boolean isMethodExit(AbstractInsnNode instruction) {
+        final int opCode = instruction.getOpcode();
+        return opCode >= Opcodes.IRETURN && opCode <= Opcodes.RETURN;
     }
 
-    private IBlock getBlockForInstruction(int index,Map<Integer,IBlock> blocks) {
-        IBlock result = blocks.get( index );
-        if ( result == null ) {
-            result = new Block();
-            result.addInstructionNum( index );
-            blocks.put( index , result );
-        }
-        return result;
+    private static boolean isThrowOrRet(AbstractInsnNode instruction) {
+        final int opCode = instruction.getOpcode();
+        return opCode == Opcodes.ATHROW || opCode == Opcodes.RET;
     }
-    
+
     private static final String formatname(String id) {
         return id.replace(".", "/" );
     }
@@ -34,8 +34,10 @@ public class ControlFlowGraph
     private final MethodNode method;
     
     private Set<IBlock> allNodes = null; // populated lazily
+    private IBlock[] blockForInstruction = null; // populated lazily
     private MethodEntry start;
     private MethodExit end;
+    private ExceptionHandlerIndex exceptionHandlers = ExceptionHandlerIndex.EMPTY;
     
     /**
      * Creates the graph and automatically assigns unique IDs to all nodes witout an ID.
@@ -118,6 +120,9 @@ public class ControlFlowGraph
                 }
                 ids.add( b.getId() );
             }            
+            
+            // blocks cache their bytecode statistics , compute them while the instructions are still unmodified
+            b.getByteCodeInstructionCount( method );
         }
         
         if ( start == null ) {
@@ -132,17 +137,32 @@ public class ControlFlowGraph
     /**
      * Returns the block that contains a given instruction node.
      * 
+     * <p>Lookups are served from a table indexed by instruction number that
+     * gets built on first use.</p>
+     * 
      * @param instructionNum ASM instruction node index 
      * @return block or <code>null</code>
      */
     public IBlock getBlockForInstruction(int instructionNum) 
     {
-        for ( IBlock block : getAllNodes() ) {
-            if ( block.containsInstructionNum( instructionNum ) ) {
-                return block;
+        if ( blockForInstruction == null ) 
+        {
+            final IBlock[] table = new IBlock[ method.instructions.size() ];
+            for ( IBlock block : getAllNodes() ) 
+            {
+                for ( int num : block.getInstructionNums() ) 
+                {
+                    if ( num >= 0 && num < table.length ) {
+                        table[num] = block;
+                    }
+                }
             }
+            blockForInstruction = table;
         }
-        return null;
+        if ( instructionNum < 0 || instructionNum >= blockForInstruction.length ) {
+            return null;
+        }
+        return blockForInstruction[ instructionNum ];
     }
     
     /**
@@ -173,6 +193,20 @@ public class ControlFlowGraph
         }
     }    
     
+    /**
+     * Creates a compact, immutable copy of this graph.
+     * 
+     * <p>The returned graph numbers blocks in reverse postorder and stores
+     * all edges in primitive arrays, it does not keep a reference to the {@link MethodNode}.</p>
+     * 
+     * @return
+     * @see FrozenControlFlowGraph
+     */
+    public FrozenControlFlowGraph freeze() 
+    {
+        return FrozenControlFlowGraph.freeze( this );
+    }
+    
     /**
      * Returns the method node this graph was generated from. 
      * @return
@@ -200,4 +234,22 @@ public class ControlFlowGraph
     {
         return end;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Returns the exception handlers of this graph's method, indexed by the instruction ranges they protect.
+     * 
+     * @return
+     */
+    public ExceptionHandlerIndex getExceptionHandlerIndex()
+    {
+        return exceptionHandlers;
+    }
+    
+    void setExceptionHandlerIndex(ExceptionHandlerIndex exceptionHandlers)
+    {
+        if ( exceptionHandlers == null ) {
+            throw new IllegalArgumentException("exceptionHandlers must not be NULL.");
+        }
+        this.exceptionHandlers = exceptionHandlers;
+    }
+}
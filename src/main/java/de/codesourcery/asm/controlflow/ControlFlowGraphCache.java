@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import de.codesourcery.asm.util.ContentAddressedStore;
+
+/**
+ * Persistent, content-addressed on-disk cache of control-flow graphs.
+ * 
+ * <p>Entries are keyed by the SHA-1 hash of a class file's bytes and the {@link ControlFlowAnalyzer#VERSION}, each entry holds
+ * the {@link FrozenControlFlowGraph}s of all methods (including constructors) of one class along with the methods that could not 
+ * be analyzed. A cache hit does not require parsing the class file at all. Storage and eviction of entries is left to a
+ * {@link ContentAddressedStore}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see AnalysisEngine#setCache(ControlFlowGraphCache)
+ * @see ContentAddressedStore
+ */
+public class ControlFlowGraphCache
+{
+    private static final int MAGIC = 0xCAFE0CF6;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String SUFFIX = ".cfg";
+
+    private final ContentAddressedStore store;
+    private final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache.
+     * 
+     * @param directory directory to store entries in, created if it does not exist
+     * @param maxSizeInBytes maximum total size of all entries 
+     * @throws IOException if the directory could not be created
+     */
+    public ControlFlowGraphCache(File directory,long maxSizeInBytes) throws IOException
+    {
+        this.store = new ContentAddressedStore( directory , SUFFIX , maxSizeInBytes );
+    }
+
+    /**
+     * Returns the graphs of all methods with code in a class, analyzing the class only if it is not cached yet.
+     * 
+     * <p>Methods that fail analysis do not prevent the graphs of the remaining methods from being cached , 
+     * they are reported through <code>failures</code> on every lookup. Failures read from the cache 
+     * are reported as {@link AnalyzerException}s carrying the original message.</p>
+     * 
+     * @param classFile class file bytes
+     * @param failures map that receives the methods that could not be analyzed , keyed by method name and descriptor (e.g. <code>getX()I</code>)
+     * @return graphs of all methods that were analyzed successfully
+     * @throws IOException if the cache entry could not be written
+     */
+    @SuppressWarnings("unchecked")
+    public List<FrozenControlFlowGraph> getGraphs(byte[] classFile,Map<String,Throwable> failures) throws IOException 
+    {
+        if ( failures == null ) {
+            throw new IllegalArgumentException("failures must not be NULL.");
+        }
+        final String key = key( classFile );
+        final List<FrozenControlFlowGraph> cached = read( key , failures );
+        if ( cached != null ) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        final ClassNode cn = new ClassNode();
+        new ClassReader( classFile ).accept( cn , 0 );
+
+        final List<FrozenControlFlowGraph> result = new ArrayList<>();
+        final Map<String,String> failureMessages = new LinkedHashMap<>();
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            if ( mn.instructions.size() > 0 ) 
+            {
+                try {
+                    result.add( analyzer.analyze( mn ).freeze() );
+                } 
+                catch(Exception e) 
+                {
+                    failures.put( mn.name+mn.desc , e );
+                    failureMessages.put( mn.name+mn.desc , e instanceof AnalyzerException ? e.getMessage() : e.toString() );
+                }
+            }
+        }
+        write( key , result , failureMessages );
+        return result;
+    }
+
+    /**
+     * Returns the number of lookups that were answered from the cache.
+     * @return
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that required analyzing the class.
+     * @return
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size of all cache entries.
+     * @return
+     */
+    public long getSize() {
+        return store.getSize();
+    }
+
+    private List<FrozenControlFlowGraph> read(String key,final Map<String,Throwable> failures) 
+    {
+        return store.read( key , new ContentAddressedStore.IEntryReader<List<FrozenControlFlowGraph>>() {
+
+            @Override
+            public List<FrozenControlFlowGraph> read(MappedByteBuffer buffer) throws IOException
+            {
+                if ( buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ) {
+                    throw new IOException("Not a cache entry");
+                }
+                final int count = buffer.getInt();
+                final List<FrozenControlFlowGraph> result = new ArrayList<>( count );
+                for ( int i = 0 ; i < count ; i++ ) {
+                    result.add( FrozenControlFlowGraph.read( buffer ) );
+                }
+                final Map<String,Throwable> failed = new LinkedHashMap<>();
+                for ( int i = buffer.getInt() ; i > 0 ; i-- ) 
+                {
+                    final String method = FrozenControlFlowGraph.readString( buffer );
+                    failed.put( method , new AnalyzerException( null , FrozenControlFlowGraph.readString( buffer ) ) );
+                }
+                failures.putAll( failed );
+                return result;
+            }
+        });
+    }
+
+    private void write(String key,final List<FrozenControlFlowGraph> graphs,final Map<String,String> failures) throws IOException 
+    {
+        store.write( key , new ContentAddressedStore.IEntryWriter() {
+
+            @Override
+            public void write(DataOutputStream out) throws IOException
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeInt( graphs.size() );
+                for ( FrozenControlFlowGraph graph : graphs ) {
+                    graph.write( out );
+                }
+                out.writeInt( failures.size() );
+                for ( Map.Entry<String,String> entry : failures.entrySet() ) 
+                {
+                    FrozenControlFlowGraph.writeString( out , entry.getKey() );
+                    FrozenControlFlowGraph.writeString( out , String.valueOf( entry.getValue() ) );
+                }
+            }
+        });
+    }
+
+    private static String key(byte[] classFile) 
+    {
+        return ContentAddressedStore.key( new byte[] { (byte) (ControlFlowAnalyzer.VERSION >>> 24) , (byte) (ControlFlowAnalyzer.VERSION >>> 16) , 
+                (byte) (ControlFlowAnalyzer.VERSION >>> 8) , (byte) ControlFlowAnalyzer.VERSION , FORMAT_VERSION } , classFile );
+    }
+
+    @Override
+    public String toString() {
+        return "ControlFlowGraphCache[ "+store+" , hits="+hits.get()+" , misses="+misses.get()+" ]";
+    }
+}
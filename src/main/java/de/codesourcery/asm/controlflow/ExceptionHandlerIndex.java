@@ -0,0 +1,261 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Interval index that maps instruction ranges to the exception handlers covering them.
+ * 
+ * <p>The index consists of sorted, non-overlapping instruction intervals, each with the list of exception handlers 
+ * (in exception-table order) that protect at least one instruction of each block in the interval. Protected ranges are 
+ * widened to basic block boundaries so all instructions of a block share the same handler list and each block needs to be 
+ * looked up only once. Lookups are therefore only as precise as a block: an instruction that is not protected itself 
+ * but shares a block with protected instructions gets the handlers of its block. Use the {@link Handler#start} and 
+ * {@link Handler#end} of the returned handlers to check whether a given instruction is actually protected.</p>
+ * 
+ * <p>The size of the index only depends on the number of try/catch blocks of a method, not on the length of 
+ * the protected instruction ranges.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGraph#getExceptionHandlerIndex()
+ */
+public final class ExceptionHandlerIndex
+{
+    /**
+     * Empty index for methods without try/catch blocks.
+     */
+    public static final ExceptionHandlerIndex EMPTY = new ExceptionHandlerIndex( new int[0] , new int[0] , Collections.<List<Handler>>emptyList() ); 
+
+    /**
+     * An entry of a method's exception table.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Handler 
+    {
+        /**
+         * Index of the first protected instruction.
+         */
+        public final int start;
+        /**
+         * Index of the first instruction following the protected range (exclusive).
+         */
+        public final int end;
+        /**
+         * Index of the first instruction of the exception handler.
+         */
+        public final int handlerInstruction;
+        /**
+         * Internal name of the caught exception type, <code>null</code> for catch-all handlers.
+         */
+        public final String exceptionType;
+
+        public Handler(int start, int end, int handlerInstruction, String exceptionType)
+        {
+            this.start = start;
+            this.end = end;
+            this.handlerInstruction = handlerInstruction;
+            this.exceptionType = exceptionType;
+        }
+
+        @Override
+        public String toString() {
+            return "Handler[ ["+start+","+end+") -> "+handlerInstruction+" , type="+exceptionType+" ]";
+        }
+    }
+
+    private final int[] intervalStart;
+    private final int[] intervalEnd;
+    private final List<List<Handler>> handlers;
+
+    private ExceptionHandlerIndex(int[] intervalStart,int[] intervalEnd,List<List<Handler>> handlers) 
+    {
+        this.intervalStart = intervalStart;
+        this.intervalEnd = intervalEnd;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Creates an index.
+     * 
+     * @param handlers exception table entries, in exception-table order
+     * @param blockStart first instruction index of the block that contains a given instruction 
+     * @param blockEnd index of the instruction following the last instruction (exclusive) of the block that contains a given instruction
+     * @return
+     */
+    static ExceptionHandlerIndex create(List<Handler> handlers,int[] blockStart,int[] blockEnd) 
+    {
+        if ( handlers.isEmpty() ) {
+            return EMPTY;
+        }
+
+        // align protected ranges to block boundaries
+        final int count = handlers.size();
+        final int[] alignedStart = new int[ count ];
+        final int[] alignedEnd = new int[ count ];
+        final TreeSet<Integer> boundaries = new TreeSet<>();
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final Handler h = handlers.get(i);
+            if ( h.end > h.start ) 
+            {
+                alignedStart[i] = blockStart[ h.start ];
+                alignedEnd[i] = blockEnd[ h.end - 1 ];
+                boundaries.add( alignedStart[i] );
+                boundaries.add( alignedEnd[i] );
+            }
+        }
+
+        // sweep over interval boundaries , keeping track of active handlers
+        final Integer[] points = boundaries.toArray( new Integer[ boundaries.size() ] );
+        final List<int[]> starts = new ArrayList<>();
+        final List<List<Handler>> active = new ArrayList<>();
+        final TreeSet<Integer> current = new TreeSet<>();
+        final List<List<Integer>> opening = new ArrayList<>( points.length );
+        final List<List<Integer>> closing = new ArrayList<>( points.length );
+        for ( int p = 0 ; p < points.length ; p++ ) 
+        {
+            opening.add( new ArrayList<Integer>() );
+            closing.add( new ArrayList<Integer>() );
+        }
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            if ( alignedEnd[i] > alignedStart[i] ) 
+            {
+                opening.get( Arrays.binarySearch( points , alignedStart[i] ) ).add( i );
+                closing.get( Arrays.binarySearch( points , alignedEnd[i] ) ).add( i );
+            }
+        }
+
+        for ( int p = 0 ; p < points.length - 1 ; p++ ) 
+        {
+            current.removeAll( closing.get(p) );
+            current.addAll( opening.get(p) );
+            if ( ! current.isEmpty() ) 
+            {
+                final List<Handler> list = new ArrayList<>( current.size() );
+                for ( int i : current ) {
+                    list.add( handlers.get( i ) );
+                }
+                starts.add( new int[] { points[p] , points[p+1] } );
+                active.add( Collections.unmodifiableList( list ) );
+            }
+        }
+
+        final int[] intervalStart = new int[ starts.size() ];
+        final int[] intervalEnd = new int[ starts.size() ];
+        for ( int i = 0 ; i < intervalStart.length ; i++ ) {
+            intervalStart[i] = starts.get(i)[0];
+            intervalEnd[i] = starts.get(i)[1];
+        }
+        return new ExceptionHandlerIndex( intervalStart , intervalEnd , active );
+    }
+
+    /**
+     * Returns the number of intervals in this index.
+     * 
+     * @return
+     */
+    public int getIntervalCount() {
+        return intervalStart.length;
+    }
+
+    /**
+     * Returns the first instruction index of an interval.
+     * 
+     * @param interval
+     * @return
+     */
+    public int getIntervalStart(int interval) {
+        return intervalStart[interval];
+    }
+
+    /**
+     * Returns the index of the instruction following the last instruction of an interval (exclusive).
+     * 
+     * @param interval
+     * @return
+     */
+    public int getIntervalEnd(int interval) {
+        return intervalEnd[interval];
+    }
+
+    /**
+     * Returns the handlers of all blocks in an interval.
+     * 
+     * @param interval
+     * @return handlers in exception-table order
+     */
+    public List<Handler> getIntervalHandlers(int interval) {
+        return handlers.get( interval );
+    }
+
+    /**
+     * Returns the exception handlers of the block that contains a given instruction.
+     * 
+     * <p>This includes handlers whose protected range covers only other instructions of the same block ,
+     * see the class comment.</p>
+     * 
+     * @param instructionNum ASM instruction node index
+     * @return handlers in exception-table order , never <code>null</code>
+     */
+    public List<Handler> getHandlers(int instructionNum) 
+    {
+        int low = 0;
+        int high = intervalStart.length - 1;
+        while ( low <= high ) 
+        {
+            final int mid = (low + high) >>> 1;
+            if ( instructionNum < intervalStart[mid] ) {
+                high = mid - 1;
+            } else if ( instructionNum >= intervalEnd[mid] ) {
+                low = mid + 1;
+            } else {
+                return handlers.get( mid );
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the exception handlers that protect at least one instruction of a given block.
+     * 
+     * @param block
+     * @return handlers in exception-table order , never <code>null</code>
+     */
+    public List<Handler> getHandlers(IBlock block) 
+    {
+        if ( block.getInstructionNums().isEmpty() ) {
+            return Collections.emptyList();
+        }
+        return getHandlers( block.getFirstInstructionNum() );
+    }
+
+    @Override
+    public String toString() 
+    {
+        final StringBuilder result = new StringBuilder("ExceptionHandlerIndex[");
+        for ( int i = 0 ; i < intervalStart.length ; i++ ) {
+            result.append("\n  [").append( intervalStart[i] ).append(",").append( intervalEnd[i] ).append(") -> ").append( handlers.get(i) );
+        }
+        return result.append(" ]").toString();
+    }
+}
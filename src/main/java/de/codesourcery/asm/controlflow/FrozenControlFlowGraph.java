@@ -0,0 +1,771 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+/**
+ * Compact, immutable representation of a {@link ControlFlowGraph}.
+ *
+ * <p>Blocks are numbered densely in reverse postorder (starting with the method entry block, ID 0) and
+ * all edges are stored in primitive arrays using a compressed-sparse-row layout:</p>
+ * <ul>
+ *   <li>Edges are sorted by source block, the outgoing edges of block <code>b</code> are
+ *   <code>[ getSuccessorStart(b) , getSuccessorEnd(b) )</code>.</li>
+ *   <li>Edge source, destination, type and meta-data are kept in parallel arrays indexed by edge number.</li>
+ *   <li>Incoming edges are stored as a second index (offsets plus edge numbers) sorted by destination block.</li>
+ * </ul>
+ *
+ * <p>Instances do not hold a reference to the {@link MethodNode} they were created from, the instructions
+ * of a block are stored as an instruction index range instead.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGraph#freeze()
+ */
+public final class FrozenControlFlowGraph
+{
+    /**
+     * ID of the method-entry block.
+     */
+    public static final int ENTRY = 0;
+
+    /**
+     * Meta-data of a {@link EdgeType#REGULAR} edge without meta-data.
+     */
+    public static final int META_NONE = 0;
+
+    /**
+     * Meta-data of a {@link EdgeType#REGULAR} edge taken when a conditional jump is taken.
+     */
+    public static final int META_TRUE = 1;
+
+    /**
+     * Meta-data of a {@link EdgeType#REGULAR} edge taken when a conditional jump is not taken.
+     */
+    public static final int META_FALSE = 2;
+
+    /**
+     * Meta-data of a {@link EdgeType#CAUGHT_EXCEPTION} edge of a catch-all (<code>finally</code>) handler.
+     */
+    public static final int META_ANY_EXCEPTION = -1;
+
+    private static final EdgeType[] EDGE_TYPES = EdgeType.values();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String methodName;
+    private final String methodDescriptor;
+    private final int exit;
+
+    // per-block data, indexed by block ID
+    private final int[] insnStart;
+    private final int[] insnEnd;
+    private final int[] byteCodeCount;
+
+    // per-edge data, indexed by edge number (edges are sorted by source block)
+    private final int[] succOffsets;
+    private final int[] edgeSrc;
+    private final int[] edgeDst;
+    private final byte[] edgeTypes;
+    private final int[] edgeMeta;
+
+    // incoming edges, sorted by destination block
+    private final int[] predOffsets;
+    private final int[] predEdges;
+
+    // exception types referenced by CAUGHT_EXCEPTION edges
+    private final String[] exceptionTypes;
+
+    // IDs of non-virtual blocks sorted by first instruction index
+    private final int[] blocksByStart;
+
+    FrozenControlFlowGraph(String methodName,String methodDescriptor,int exit,
+            int[] insnStart,int[] insnEnd,int[] byteCodeCount,
+            int[] succOffsets,int[] edgeSrc,int[] edgeDst,byte[] edgeTypes,int[] edgeMeta,
+            String[] exceptionTypes)
+    {
+        this.methodName = methodName;
+        this.methodDescriptor = methodDescriptor;
+        this.exit = exit;
+        this.insnStart = insnStart;
+        this.insnEnd = insnEnd;
+        this.byteCodeCount = byteCodeCount;
+        this.succOffsets = succOffsets;
+        this.edgeSrc = edgeSrc;
+        this.edgeDst = edgeDst;
+        this.edgeTypes = edgeTypes;
+        this.edgeMeta = edgeMeta;
+        this.exceptionTypes = exceptionTypes;
+
+        final int blockCount = insnStart.length;
+        final int edgeCount = edgeSrc.length;
+
+        // build predecessor index (counting sort by destination)
+        predOffsets = new int[ blockCount + 1 ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            predOffsets[ edgeDst[e] + 1 ]++;
+        }
+        for ( int b = 0 ; b < blockCount ; b++ ) {
+            predOffsets[b+1] += predOffsets[b];
+        }
+        predEdges = new int[ edgeCount ];
+        final int[] fill = Arrays.copyOf( predOffsets , blockCount );
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            predEdges[ fill[ edgeDst[e] ]++ ] = e;
+        }
+
+        int realBlocks = 0;
+        for ( int b = 0 ; b < blockCount ; b++ ) {
+            if ( insnEnd[b] > insnStart[b] ) {
+                realBlocks++;
+            }
+        }
+        final Integer[] sorted = new Integer[ realBlocks ];
+        for ( int b = 0 , i = 0 ; b < blockCount ; b++ ) {
+            if ( insnEnd[b] > insnStart[b] ) {
+                sorted[i++] = b;
+            }
+        }
+        Arrays.sort( sorted , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Integer.compare( FrozenControlFlowGraph.this.insnStart[o1] , FrozenControlFlowGraph.this.insnStart[o2] );
+            }
+        });
+        blocksByStart = new int[ realBlocks ];
+        for ( int i = 0 ; i < realBlocks ; i++ ) {
+            blocksByStart[i] = sorted[i];
+        }
+    }
+
+    /**
+     * Creates a frozen copy of a control-flow graph.
+     *
+     * @param graph
+     * @return
+     * @throws IllegalStateException if a block of the input graph does not cover a contiguous instruction range
+     */
+    static FrozenControlFlowGraph freeze(ControlFlowGraph graph) throws IllegalStateException
+    {
+        final MethodNode method = graph.getMethod();
+        // the method-exit block is not connected to the rest of the graph if the method never returns normally
+        final Set<IBlock> allNodes = Collections.newSetFromMap( new IdentityHashMap<IBlock,Boolean>() );
+        allNodes.addAll( graph.getAllNodes() );
+        allNodes.add( graph.getEnd() );
+
+        // collect outgoing edges per block, sorted so numbering does not depend on hash codes
+        final Map<IBlock,List<Edge>> successors = new IdentityHashMap<>();
+        for ( IBlock block : allNodes )
+        {
+            final List<Edge> out = new ArrayList<>();
+            for ( Edge e : block.getEdges() ) {
+                if ( e.isSuccessor( block ) ) {
+                    out.add( e );
+                }
+            }
+            Collections.sort( out , EDGE_ORDER );
+            successors.put( block , out );
+        }
+
+        // number blocks in reverse postorder, starting at the method entry
+        final List<IBlock> postOrder = new ArrayList<>( allNodes.size() );
+        final Set<IBlock> visited = Collections.newSetFromMap( new IdentityHashMap<IBlock,Boolean>() );
+        final List<IBlock> stack = new ArrayList<>();
+        final List<Integer> nextChild = new ArrayList<>();
+        stack.add( graph.getStart() );
+        nextChild.add( 0 );
+        visited.add( graph.getStart() );
+        while ( ! stack.isEmpty() )
+        {
+            final int top = stack.size() - 1;
+            final IBlock current = stack.get( top );
+            final List<Edge> out = successors.get( current );
+            final int child = nextChild.get( top );
+            if ( child < out.size() )
+            {
+                nextChild.set( top , child + 1 );
+                final IBlock succ = out.get( child ).dst;
+                if ( visited.add( succ ) ) {
+                    stack.add( succ );
+                    nextChild.add( 0 );
+                }
+            } else {
+                stack.remove( top );
+                nextChild.remove( top );
+                postOrder.add( current );
+            }
+        }
+        Collections.reverse( postOrder );
+
+        // blocks not reachable from the method entry go last, in instruction order
+        final List<IBlock> unreachable = new ArrayList<>();
+        for ( IBlock block : allNodes ) {
+            if ( ! visited.contains( block ) ) {
+                unreachable.add( block );
+            }
+        }
+        Collections.sort( unreachable , BLOCK_ORDER );
+        final List<IBlock> blocks = postOrder;
+        blocks.addAll( unreachable );
+
+        final int blockCount = blocks.size();
+        final Map<IBlock,Integer> ids = new IdentityHashMap<>();
+        for ( int i = 0 ; i < blockCount ; i++ ) {
+            ids.put( blocks.get(i) , i );
+        }
+
+        final int[] insnStart = new int[ blockCount ];
+        final int[] insnEnd = new int[ blockCount ];
+        final int[] byteCodeCount = new int[ blockCount ];
+        int edgeCount = 0;
+        for ( int b = 0 ; b < blockCount ; b++ )
+        {
+            final IBlock block = blocks.get(b);
+            final Set<Integer> nums = block.getInstructionNums();
+            if ( ! nums.isEmpty() )
+            {
+                final int first = Collections.min( nums );
+                final int last = Collections.max( nums );
+                if ( last - first + 1 != nums.size() ) {
+                    throw new IllegalStateException("Block "+block+" does not cover a contiguous instruction range");
+                }
+                insnStart[b] = first;
+                insnEnd[b] = last + 1;
+                byteCodeCount[b] = block.getByteCodeInstructionCount( method );
+            }
+            edgeCount += successors.get( block ).size();
+        }
+
+        final int[] succOffsets = new int[ blockCount + 1 ];
+        final int[] edgeSrc = new int[ edgeCount ];
+        final int[] edgeDst = new int[ edgeCount ];
+        final byte[] edgeTypes = new byte[ edgeCount ];
+        final int[] edgeMeta = new int[ edgeCount ];
+        final List<String> exceptionTypes = new ArrayList<>();
+
+        int e = 0;
+        for ( int b = 0 ; b < blockCount ; b++ )
+        {
+            succOffsets[b] = e;
+            for ( Edge edge : successors.get( blocks.get(b) ) )
+            {
+                edgeSrc[e] = b;
+                edgeDst[e] = ids.get( edge.dst );
+                edgeTypes[e] = (byte) edge.type.ordinal();
+                edgeMeta[e] = encodeMetaData( edge , exceptionTypes );
+                e++;
+            }
+        }
+        succOffsets[ blockCount ] = e;
+
+        return new FrozenControlFlowGraph( method.name , method.desc , ids.get( graph.getEnd() ) ,
+                insnStart , insnEnd , byteCodeCount ,
+                succOffsets , edgeSrc , edgeDst , edgeTypes , edgeMeta ,
+                exceptionTypes.toArray( new String[ exceptionTypes.size() ] ) );
+    }
+
+    private static int encodeMetaData(Edge edge,List<String> exceptionTypes)
+    {
+        switch( edge.type )
+        {
+            case LOOKUP_SWITCH:
+            case TABLE_SWITCH:
+                return (Integer) edge.metaData;
+            case CAUGHT_EXCEPTION:
+                if ( edge.metaData == null ) {
+                    return META_ANY_EXCEPTION;
+                }
+                int index = exceptionTypes.indexOf( edge.metaData );
+                if ( index == -1 ) {
+                    index = exceptionTypes.size();
+                    exceptionTypes.add( (String) edge.metaData );
+                }
+                return index;
+            default:
+                if ( "true".equals( edge.metaData ) ) {
+                    return META_TRUE;
+                }
+                if ( "false".equals( edge.metaData ) ) {
+                    return META_FALSE;
+                }
+                return META_NONE;
+        }
+    }
+
+    private static int sortKey(IBlock block)
+    {
+        if ( block instanceof MethodEntry ) {
+            return -1;
+        }
+        if ( block instanceof MethodExit || block.getInstructionNums().isEmpty() ) {
+            return Integer.MAX_VALUE;
+        }
+        return block.getFirstInstructionNum();
+    }
+
+    private static final Comparator<IBlock> BLOCK_ORDER = new Comparator<IBlock>() {
+
+        @Override
+        public int compare(IBlock o1, IBlock o2)
+        {
+            return Integer.compare( sortKey( o1 ) , sortKey( o2 ) );
+        }
+    };
+
+    private static final Comparator<Edge> EDGE_ORDER = new Comparator<Edge>() {
+
+        @Override
+        public int compare(Edge o1, Edge o2)
+        {
+            int result = Integer.compare( sortKey( o1.dst ) , sortKey( o2.dst ) );
+            if ( result == 0 ) {
+                result = o1.type.compareTo( o2.type );
+            }
+            if ( result == 0 ) {
+                result = String.valueOf( o1.metaData ).compareTo( String.valueOf( o2.metaData ) );
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Writes this graph in binary form.
+     *
+     * @param out
+     * @throws IOException
+     * @see #read(ByteBuffer)
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        writeString( out , methodName );
+        writeString( out , methodDescriptor );
+        out.writeInt( exit );
+        writeInts( out , insnStart );
+        writeInts( out , insnEnd );
+        writeInts( out , byteCodeCount );
+        writeInts( out , succOffsets );
+        writeInts( out , edgeSrc );
+        writeInts( out , edgeDst );
+        out.writeInt( edgeTypes.length );
+        out.write( edgeTypes );
+        writeInts( out , edgeMeta );
+        out.writeInt( exceptionTypes.length );
+        for ( String type : exceptionTypes ) {
+            writeString( out , type );
+        }
+    }
+
+    /**
+     * Reads a graph written by {@link #write(DataOutputStream)}.
+     *
+     * @param in
+     * @return
+     * @throws BufferUnderflowException if the input is truncated
+     */
+    static FrozenControlFlowGraph read(ByteBuffer in) throws BufferUnderflowException
+    {
+        final String methodName = readString( in );
+        final String methodDescriptor = readString( in );
+        final int exit = in.getInt();
+        final int[] insnStart = readInts( in );
+        final int[] insnEnd = readInts( in );
+        final int[] byteCodeCount = readInts( in );
+        final int[] succOffsets = readInts( in );
+        final int[] edgeSrc = readInts( in );
+        final int[] edgeDst = readInts( in );
+        final byte[] edgeTypes = new byte[ in.getInt() ];
+        in.get( edgeTypes );
+        final int[] edgeMeta = readInts( in );
+        final String[] exceptionTypes = new String[ in.getInt() ];
+        for ( int i = 0 ; i < exceptionTypes.length ; i++ ) {
+            exceptionTypes[i] = readString( in );
+        }
+        return new FrozenControlFlowGraph( methodName , methodDescriptor , exit , 
+                insnStart , insnEnd , byteCodeCount , 
+                succOffsets , edgeSrc , edgeDst , edgeTypes , edgeMeta , 
+                exceptionTypes );
+    }
+
+    private static void writeInts(DataOutputStream out,int[] data) throws IOException
+    {
+        out.writeInt( data.length );
+        for ( int value : data ) {
+            out.writeInt( value );
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in)
+    {
+        final int[] result = new int[ in.getInt() ];
+        in.asIntBuffer().get( result );
+        in.position( in.position() + result.length * 4 );
+        return result;
+    }
+
+    static void writeString(DataOutputStream out,String s) throws IOException
+    {
+        final byte[] data = s.getBytes( UTF8 );
+        out.writeInt( data.length );
+        out.write( data );
+    }
+
+    static String readString(ByteBuffer in)
+    {
+        final byte[] data = new byte[ in.getInt() ];
+        in.get( data );
+        return new String( data , UTF8 );
+    }
+
+    /**
+     * Returns the name of the method this graph was generated from.
+     * @return
+     */
+    public String getMethodName()
+    {
+        return methodName;
+    }
+
+    /**
+     * Returns the descriptor of the method this graph was generated from.
+     * @return
+     */
+    public String getMethodDescriptor()
+    {
+        return methodDescriptor;
+    }
+
+    /**
+     * Returns the number of blocks (including method entry and exit).
+     * @return
+     */
+    public int getBlockCount() {
+        return insnStart.length;
+    }
+
+    /**
+     * Returns the number of edges.
+     * @return
+     */
+    public int getEdgeCount() {
+        return edgeSrc.length;
+    }
+
+    /**
+     * Returns the ID of the method-entry block.
+     *
+     * @return always {@link #ENTRY}
+     */
+    public int getEntry() {
+        return ENTRY;
+    }
+
+    /**
+     * Returns the ID of the method-exit block.
+     * @return
+     */
+    public int getExit() {
+        return exit;
+    }
+
+    /**
+     * Returns the index of the first ASM instruction of a block.
+     *
+     * @param block
+     * @return
+     * @see #getEndInstructionNum(int)
+     */
+    public int getFirstInstructionNum(int block) {
+        return insnStart[block];
+    }
+
+    /**
+     * Returns the index of the ASM instruction following the last
+     * instruction of a block (exclusive range end).
+     *
+     * @param block
+     * @return
+     */
+    public int getEndInstructionNum(int block) {
+        return insnEnd[block];
+    }
+
+    /**
+     * Returns the number of actual bytecode instructions in a block.
+     *
+     * @param block
+     * @return
+     */
+    public int getByteCodeInstructionCount(int block) {
+        return byteCodeCount[block];
+    }
+
+    /**
+     * Check whether a block contains no actual bytecode instructions.
+     *
+     * @param block
+     * @return
+     * @see IBlock#isVirtual(MethodNode)
+     */
+    public boolean isVirtual(int block) {
+        return byteCodeCount[block] == 0;
+    }
+
+    /**
+     * Returns the block that contains a given instruction.
+     *
+     * @param instructionNum ASM instruction node index
+     * @return block ID or -1
+     */
+    public int getBlockForInstruction(int instructionNum)
+    {
+        int low = 0;
+        int high = blocksByStart.length - 1;
+        while ( low <= high )
+        {
+            final int mid = (low + high) >>> 1;
+            final int block = blocksByStart[mid];
+            if ( instructionNum < insnStart[block] ) {
+                high = mid - 1;
+            } else if ( instructionNum >= insnEnd[block] ) {
+                low = mid + 1;
+            } else {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of the first outgoing edge of a block.
+     *
+     * @param block
+     * @return
+     */
+    public int getSuccessorStart(int block) {
+        return succOffsets[block];
+    }
+
+    /**
+     * Returns the number of the edge following the last outgoing edge of a block.
+     *
+     * @param block
+     * @return
+     */
+    public int getSuccessorEnd(int block) {
+        return succOffsets[block+1];
+    }
+
+    /**
+     * Returns the number of incoming edges of a block.
+     *
+     * @param block
+     * @return
+     * @see #getPredecessorEdge(int, int)
+     */
+    public int getPredecessorCount(int block) {
+        return predOffsets[block+1] - predOffsets[block];
+    }
+
+    /**
+     * Returns an incoming edge of a block.
+     *
+     * @param block
+     * @param index index of the incoming edge , <code>0...getPredecessorCount(block)-1</code>
+     * @return edge number
+     */
+    public int getPredecessorEdge(int block,int index) {
+        return predEdges[ predOffsets[block] + index ];
+    }
+
+    public int getEdgeSource(int edge) {
+        return edgeSrc[edge];
+    }
+
+    public int getEdgeDestination(int edge) {
+        return edgeDst[edge];
+    }
+
+    public EdgeType getEdgeType(int edge) {
+        return EDGE_TYPES[ edgeTypes[edge] ];
+    }
+
+    /**
+     * Returns the raw meta-data of an edge.
+     *
+     * <p>Depending on the edge type, this is either one of {@link #META_NONE}, {@link #META_TRUE} or {@link #META_FALSE} (regular edges),
+     * the case label (switch edges) or an index that can be passed to {@link #getExceptionType(int)} or {@link #META_ANY_EXCEPTION} (exception edges).</p>
+     *
+     * @param edge
+     * @return
+     */
+    public int getEdgeMetaDataRaw(int edge) {
+        return edgeMeta[edge];
+    }
+
+    /**
+     * Returns the meta-data of an edge in the format used by {@link Edge#metaData}.
+     *
+     * @param edge
+     * @return
+     */
+    public Object getEdgeMetaData(int edge)
+    {
+        final int meta = edgeMeta[edge];
+        switch( getEdgeType( edge ) )
+        {
+            case LOOKUP_SWITCH:
+            case TABLE_SWITCH:
+                return meta;
+            case CAUGHT_EXCEPTION:
+                return getExceptionType( meta );
+            default:
+                return meta == META_TRUE ? "true" : meta == META_FALSE ? "false" : null;
+        }
+    }
+
+    /**
+     * Returns an exception type referenced by a {@link EdgeType#CAUGHT_EXCEPTION} edge.
+     *
+     * @param index raw edge meta-data
+     * @return internal name of the exception type or <code>null</code> for catch-all handlers
+     */
+    public String getExceptionType(int index) {
+        return index == META_ANY_EXCEPTION ? null : exceptionTypes[index];
+    }
+
+    public boolean isRegular(int edge)
+    {
+        switch( getEdgeType( edge ) ) {
+            case REGULAR:
+            case LOOKUP_SWITCH:
+            case TABLE_SWITCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of distinct regular successors of a block.
+     *
+     * @param block
+     * @return
+     * @see IBlock#getRegularSuccessorCount()
+     */
+    public int getRegularSuccessorCount(int block)
+    {
+        int count = 0;
+        final int end = succOffsets[block+1];
+        outer:
+        for ( int e = succOffsets[block] ; e < end ; e++ )
+        {
+            if ( isRegular( e ) )
+            {
+                for ( int previous = succOffsets[block] ; previous < e ; previous++ ) {
+                    if ( isRegular( previous ) && edgeDst[previous] == edgeDst[e] ) {
+                        continue outer;
+                    }
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check whether a block has an incoming regular edge.
+     *
+     * @param block
+     * @return
+     */
+    public boolean hasRegularPredecessor(int block)
+    {
+        final int end = predOffsets[block+1];
+        for ( int i = predOffsets[block] ; i < end ; i++ ) {
+            if ( isRegular( predEdges[i] ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the (unique) regular successor of a block.
+     *
+     * @param block
+     * @return
+     * @throws NoSuchElementException if the block has no regular successor
+     * @throws IllegalStateException if the block has more than one regular successor
+     */
+    public int getRegularSuccessor(int block) throws NoSuchElementException,IllegalStateException
+    {
+        final int count = getRegularSuccessorCount( block );
+        if ( count > 1 ) {
+            throw new IllegalStateException("Cannot call getRegularSuccessor() on block with "+count+" successors");
+        }
+        final int end = succOffsets[block+1];
+        for ( int e = succOffsets[block] ; e < end ; e++ ) {
+            if ( isRegular( e ) ) {
+                return edgeDst[e];
+            }
+        }
+        throw new NoSuchElementException("Block "+block+" has no regular successor");
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder("FrozenControlFlowGraph[ "+methodName+methodDescriptor+" , blocks="+getBlockCount()+" , edges="+getEdgeCount()+" ]");
+        for ( int b = 0 ; b < getBlockCount() ; b++ )
+        {
+            result.append("\n  #").append( b );
+            if ( b == ENTRY ) {
+                result.append(" (START)");
+            } else if ( b == exit ) {
+                result.append(" (END)");
+            } else {
+                result.append(" [").append( insnStart[b] ).append(",").append( insnEnd[b] ).append(")");
+            }
+            for ( int e = succOffsets[b] ; e < succOffsets[b+1] ; e++ )
+            {
+                result.append(" -> ").append( edgeDst[e] );
+                if ( getEdgeType( e ) != EdgeType.REGULAR || edgeMeta[e] != META_NONE ) {
+                    result.append("(").append( getEdgeType( e ) ).append(":").append( getEdgeMetaData( e ) ).append(")");
+                }
+            }
+        }
+        return result.toString();
+    }
+}
@@ -165,7 +165,7 @@ public interface IBlock
     /**
      * Returns the instruction indices covered by this block.
      * 
-     * @return
+     * @return read-only set , iterates in ascending order
      */
     public Set<Integer> getInstructionNums();    
     
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+/**
+ * Receives control-flow graphs from an {@link AnalysisEngine} as soon as they have been created.
+ * 
+ * <p>Implementations are invoked concurrently from the engine's worker threads and thus need to be thread-safe.
+ * The engine does not keep any references to graphs, classes or methods once they have been passed to the sink, so
+ * sinks that do not retain the passed graphs allow them (and the underlying <code>MethodNode</code>s) to be garbage-collected 
+ * right away.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see AnalysisEngine#analyze(java.util.List, IControlFlowGraphSink)
+ */
+public interface IControlFlowGraphSink
+{
+    /**
+     * Invoked after the graph of a method has been created.
+     * 
+     * @param owner internal name of the class declaring the method
+     * @param graph the graph, {@link ControlFlowGraph#getMethod()} returns the analyzed method
+     */
+    public void graphCreated(String owner,ControlFlowGraph graph);
+    
+    /**
+     * Invoked after all methods of a class have been processed.
+     * 
+     * @param className fully-qualified name of the class
+     */
+    public void classAnalyzed(String className);
+    
+    /**
+     * Invoked when a class could not be read or a method could not be analyzed.
+     * 
+     * @param key method key (see {@link AnalysisResult#methodKey(String, String, String)}) or class name
+     * @param cause
+     */
+    public void analysisFailed(String key,Throwable cause);
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+/**
+ * Receives compact control-flow graphs from an {@link AnalysisEngine}.
+ * 
+ * <p>Implementations are invoked concurrently from the engine's worker threads and thus need to be thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see AnalysisEngine#analyzeFrozen(java.util.List, IFrozenControlFlowGraphSink)
+ * @see IControlFlowGraphSink
+ */
+public interface IFrozenControlFlowGraphSink
+{
+    /**
+     * Invoked for each method of an analyzed class.
+     * 
+     * @param owner internal name of the class declaring the method
+     * @param graph
+     */
+    public void graphCreated(String owner,FrozenControlFlowGraph graph);
+
+    /**
+     * Invoked after all methods of a class have been processed.
+     * 
+     * @param className fully-qualified name of the class
+     */
+    public void classAnalyzed(String className);
+
+    /**
+     * Invoked when a class could not be read or a method could not be analyzed.
+     * 
+     * @param key method key (see {@link AnalysisResult#methodKey(String, String, String)}) or class name
+     * @param cause
+     */
+    public void analysisFailed(String key,Throwable cause);
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of ASM instruction indices belonging to a block.
+ * 
+ * <p>Basic blocks almost always cover a contiguous range of instructions , so the indices are stored
+ * as a primitive <code>[start,end)</code> range. Adding an index that does not extend the range
+ * switches to a {@link BitSet}.</p>
+ * 
+ * <p>The set is read-only through the {@link java.util.Set} interface and iterates in ascending order.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class InstructionRange extends AbstractSet<Integer>
+{
+    private int start;
+    private int end; // exclusive , start == end means empty
+    private BitSet bits; // non-NULL if indices are not contiguous
+    
+    /**
+     * Adds an instruction index.
+     * 
+     * @param num
+     * @return <code>true</code> if the index was not already part of this set
+     */
+    public boolean addInstruction(int num) 
+    {
+        if ( num < 0 ) {
+            throw new IllegalArgumentException("Invalid instruction index: "+num);
+        }
+        if ( bits != null ) 
+        {
+            final boolean added = ! bits.get( num );
+            bits.set( num );
+            return added;
+        }
+        if ( start == end ) 
+        {
+            start = num;
+            end = num + 1;
+            return true;
+        }
+        if ( num >= start && num < end ) {
+            return false;
+        }
+        if ( num == end ) {
+            end++;
+            return true;
+        }
+        if ( num == start - 1 ) {
+            start--;
+            return true;
+        }
+        bits = new BitSet( Math.max( end , num + 1 ) );
+        bits.set( start , end );
+        bits.set( num );
+        return true;
+    }
+    
+    /**
+     * Adds all instruction indices from another set.
+     * 
+     * @param other
+     */
+    public void addInstructions(InstructionRange other) 
+    {
+        if ( other.bits == null && other.start != other.end ) 
+        {
+            if ( bits == null && start != end && other.start <= end && other.end >= start ) 
+            {
+                // overlapping or adjacent ranges
+                start = Math.min( start , other.start );
+                end = Math.max( end , other.end );
+                return;
+            }
+            if ( bits == null && start == end ) 
+            {
+                start = other.start;
+                end = other.end;
+                return;
+            }
+        }
+        for ( int num = other.first() ; num != -1 ; num = other.next( num + 1 ) ) {
+            addInstruction( num );
+        }
+    }
+    
+    /**
+     * Returns whether this set contains a given instruction index.
+     * 
+     * @param num
+     * @return
+     */
+    public boolean containsInstruction(int num) 
+    {
+        if ( bits != null ) {
+            return num >= 0 && bits.get( num );
+        }
+        return num >= start && num < end;
+    }
+    
+    /**
+     * Returns the smallest instruction index.
+     * 
+     * @return smallest index or -1 if this set is empty
+     */
+    public int first() 
+    {
+        if ( bits != null ) {
+            return bits.nextSetBit( 0 );
+        }
+        return start != end ? start : -1;
+    }
+    
+    /**
+     * Returns the smallest instruction index that is greater than or equal to a given index.
+     * 
+     * @param from
+     * @return index or -1 if there is none
+     */
+    public int next(int from) 
+    {
+        if ( bits != null ) {
+            return bits.nextSetBit( from );
+        }
+        if ( from < start ) {
+            return start != end ? start : -1;
+        }
+        return from < end ? from : -1;
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        return o instanceof Integer && containsInstruction( (Integer) o );
+    }
+    
+    @Override
+    public boolean isEmpty()
+    {
+        return bits != null ? bits.isEmpty() : start == end;
+    }
+    
+    @Override
+    public int size()
+    {
+        return bits != null ? bits.cardinality() : end - start;
+    }
+    
+    @Override
+    public Iterator<Integer> iterator()
+    {
+        return new Iterator<Integer>() {
+
+            private int current = first();
+            
+            @Override
+            public boolean hasNext()
+            {
+                return current != -1;
+            }
+
+            @Override
+            public Integer next()
+            {
+                if ( current == -1 ) {
+                    throw new NoSuchElementException();
+                }
+                final int result = current;
+                current = InstructionRange.this.next( current + 1 );
+                return result;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException("remove()");
+            }
+        };
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Whole-application block execution counts.
+ * 
+ * <p>Every instrumented basic block gets a global , dense ID when its method is registered. The blocks 
+ * of a method always occupy consecutive IDs on the same page of the counter table , pages are allocated
+ * once and never move so generated code can keep a reference to them. Each page consists of 
+ * {@link #STRIPES} independent <code>long[]</code> arrays , a thread only ever increments the counters of
+ * the stripe selected by its thread ID which reduces contention between threads. Counters are incremented
+ * without synchronization , threads sharing a stripe may occasionally lose an update.</p>
+ * 
+ * <p>Generated byte-code invokes {@link #getCounters(int)} once at method entry and keeps the returned 
+ * array in a local variable.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter.InstrumentationMode#HEATMAP
+ */
+public class BlockHeatMap
+{
+    /**
+     * log2 of the number of blocks per page.
+     */
+    public static final int PAGE_BITS = 12;
+    
+    /**
+     * Max. number of blocks per page (and thus per method).
+     */
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /**
+     * Number of counter arrays per page.
+     */
+    public static final int STRIPES = 4;
+    
+    private static final int REPORT_BLOCKS = 50;
+
+    private static final Object LOCK = new Object();
+
+    // [page][stripe][block] , outer array is copy-on-write so generated code can read without locking
+    private static volatile long[][][] pages = new long[0][][];
+    
+    // sorted ascending by first block ID
+    private static final List<MethodBlocks> methods = new ArrayList<>();
+    private static int nextBlockId;
+    
+    static final class MethodBlocks 
+    {
+        public final String className;
+        public final String methodName;
+        public final String methodDescriptor;
+        public final int firstBlockId;
+        public final int[] firstInstruction;
+        public final int[] lastInstruction;
+        public final int[] instructionCount;
+        
+        public MethodBlocks(String className, String methodName, String methodDescriptor, int firstBlockId,
+                int[] firstInstruction, int[] lastInstruction, int[] instructionCount)
+        {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescriptor = methodDescriptor;
+            this.firstBlockId = firstBlockId;
+            this.firstInstruction = firstInstruction;
+            this.lastInstruction = lastInstruction;
+            this.instructionCount = instructionCount;
+        }
+        
+        public String describe(int index) 
+        {
+            return className+"#"+methodName+methodDescriptor+" @ "+firstInstruction[index]+".."+lastInstruction[index]+
+                    " ("+instructionCount[index]+" instructions)";
+        }
+    }
+    
+    private BlockHeatMap() {
+    }
+
+    /**
+     * Registers the blocks of a method.
+     * 
+     * <p>Blocks are identified by the range of ASM instruction node indices they cover.</p>
+     * 
+     * @param className
+     * @param methodName
+     * @param methodDescriptor
+     * @param firstInstruction index of the first instruction of each block
+     * @param lastInstruction index of the last instruction of each block 
+     * @param instructionCount number of byte-code instructions in each block
+     * @return ID of the method's first block , the remaining blocks have consecutive IDs. Returns -1 if
+     * the method has more than {@link #PAGE_SIZE} blocks.
+     * @see #getPage(int)
+     * @see #getPageOffset(int)
+     */
+    public static int register(String className,String methodName,String methodDescriptor,
+            int[] firstInstruction,int[] lastInstruction,int[] instructionCount) 
+    {
+        final int blockCount = firstInstruction.length;
+        if ( lastInstruction.length != blockCount || instructionCount.length != blockCount ) {
+            throw new IllegalArgumentException("Array lengths do not match");
+        }
+        if ( blockCount > PAGE_SIZE ) {
+            return -1;
+        }
+        synchronized( LOCK ) 
+        {
+            if ( getPageOffset( nextBlockId ) + blockCount > PAGE_SIZE ) {
+                nextBlockId = ( getPage( nextBlockId ) + 1 ) << PAGE_BITS;
+            }
+            final int result = nextBlockId;
+            nextBlockId += blockCount;
+            
+            long[][][] current = pages;
+            final int lastPage = getPage( nextBlockId - 1 );
+            if ( lastPage >= current.length ) 
+            {
+                current = Arrays.copyOf( current , lastPage + 1 );
+                current[ lastPage ] = new long[ STRIPES ][ PAGE_SIZE ];
+                pages = current;
+            }
+            methods.add( new MethodBlocks( className , methodName , methodDescriptor , result , 
+                    firstInstruction.clone() , lastInstruction.clone() , instructionCount.clone() ) );
+            return result;
+        }
+    }
+    
+    /**
+     * Returns the page a block belongs to.
+     * 
+     * @param blockId
+     * @return
+     */
+    public static int getPage(int blockId) {
+        return blockId >>> PAGE_BITS;
+    }
+    
+    /**
+     * Returns the index of a block's counter within its page.
+     * 
+     * @param blockId
+     * @return
+     */
+    public static int getPageOffset(int blockId) {
+        return blockId & ( PAGE_SIZE - 1 );
+    }
+
+    /**
+     * Invoked by generated byte-code at method entry.
+     * 
+     * @param page
+     * @return the current thread's stripe of the page
+     */
+    public static long[] getCounters(int page) 
+    {
+        return pages[page][ (int) Thread.currentThread().getId() & ( STRIPES - 1 ) ];
+    }
+    
+    /**
+     * Returns the number of block IDs assigned so far.
+     * 
+     * <p>Not all IDs below this value are necessarily in use , the 
+     * execution count of unused IDs is always zero.</p>
+     * 
+     * @return
+     */
+    public static int getBlockIdCount() 
+    {
+        synchronized( LOCK ) {
+            return nextBlockId;
+        }
+    }
+    
+    /**
+     * Returns how often a block was executed.
+     * 
+     * @param blockId
+     * @return
+     */
+    public static long getExecutionCount(int blockId) 
+    {
+        final long[][] page = pages[ getPage( blockId ) ];
+        final int offset = getPageOffset( blockId );
+        long result = 0;
+        for ( long[] stripe : page ) {
+            result += stripe[ offset ];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns a description (class , method , descriptor and instruction range) of a block.
+     * 
+     * @param blockId
+     * @return description or <code>null</code> if there is no block with this ID
+     */
+    public static String describeBlock(int blockId) 
+    {
+        synchronized( LOCK ) 
+        {
+            final MethodBlocks method = findMethod( blockId );
+            return method == null ? null : method.describe( blockId - method.firstBlockId );
+        }
+    }
+    
+    /**
+     * Returns the blocks of all registered methods.
+     * 
+     * @return methods sorted ascending by their first block ID
+     */
+    static List<MethodBlocks> getMethods() 
+    {
+        synchronized( LOCK ) {
+            return new ArrayList<>( methods );
+        }
+    }
+    
+    private static MethodBlocks findMethod(int blockId) 
+    {
+        int low = 0;
+        int high = methods.size() - 1;
+        while ( low <= high ) 
+        {
+            final int mid = ( low + high ) >>> 1;
+            final MethodBlocks candidate = methods.get( mid );
+            if ( blockId < candidate.firstBlockId ) {
+                high = mid - 1;
+            } else if ( blockId >= candidate.firstBlockId + candidate.firstInstruction.length ) {
+                low = mid + 1;
+            } else {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the most frequently executed blocks.
+     * 
+     * @param writer
+     */
+    public static void writeReport(PrintWriter writer) 
+    {
+        final List<MethodBlocks> copy = getMethods();
+        
+        final List<String> descriptions = new ArrayList<>();
+        final List<Long> counts = new ArrayList<>();
+        long totalInstructions = 0;
+        int totalBlocks = 0;
+        for ( MethodBlocks method : copy ) 
+        {
+            for ( int i = 0 ; i < method.firstInstruction.length ; i++ ) 
+            {
+                totalBlocks++;
+                final long count = getExecutionCount( method.firstBlockId + i );
+                if ( count != 0 ) 
+                {
+                    totalInstructions += count * method.instructionCount[i];
+                    counts.add( count );
+                    descriptions.add( method.describe( i ) );
+                }
+            }
+        }
+        
+        final Integer[] order = new Integer[ counts.size() ];
+        for ( int i = 0 ; i < order.length ; i++ ) {
+            order[i] = i;
+        }
+        Arrays.sort( order , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Long.compare( counts.get( o2 ) , counts.get( o1 ) );
+            }
+        });
+        
+        for ( int i = 0 ; i < order.length && i < REPORT_BLOCKS ; i++ ) {
+            writer.println( counts.get( order[i] )+" x "+descriptions.get( order[i] ) );
+        }
+        writer.println("Total instructions: "+totalInstructions+" ( "+order.length+" of "+totalBlocks+" blocks executed )");
+        writer.flush();
+    }
+}
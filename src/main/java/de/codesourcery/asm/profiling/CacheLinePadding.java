@@ -0,0 +1,31 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+/**
+ * Leading padding of per-thread counter cells.
+ * 
+ * <p>Fields of a super-class are laid out before the fields of
+ * its sub-classes, so inheriting from this class keeps the hot fields of 
+ * a cell at least one cache line away from any object allocated before it.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see PaddedExecutionStatistics
+ */
+abstract class CacheLinePadding
+{
+    protected long p0, p1, p2, p3, p4, p5, p6;
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Edge profile of a single method.
+ * 
+ * <p>Describes the profiling graph of an instrumented method (its basic blocks plus
+ * virtual method-entry and method-exit nodes connected by a virtual exit-to-entry edge) 
+ * along with the counters of all edges that were instrumented. Only edges that are not part of
+ * a spanning tree of the profiling graph (so-called chords) are instrumented, execution counts
+ * for all other edges and all blocks are reconstructed from the chord counters by applying flow 
+ * conservation (for each node , the sum of incoming edge counts equals the sum of outgoing edge counts).</p>
+ * 
+ * <p>Exceptional control flow is only partially represented: entering an exception handler 
+ * is counted as an edge from the method-entry node to the handler block , the aborted execution of 
+ * the block that threw the exception is not counted. Reconstructed counts are exact as long as 
+ * no exception is thrown and caught/propagated inside the method.</p>
+ * 
+ * <p>Counters are updated without synchronization so concurrent invocations may lose increments.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter.InstrumentationMode#EDGES
+ * @see MethodProfileRegistry
+ */
+public final class EdgeProfile implements IMethodProfile
+{
+    /**
+     * Index of the virtual method-entry node.
+     */
+    public static final int ENTRY = 0;
+
+    /**
+     * Index of the virtual method-exit node.
+     */
+    public static final int EXIT = 1;
+
+    private final String className;
+    private final String methodName;
+    private final String methodDescriptor;
+
+    private final int[] nodeFirstInstruction;
+    private final int[] nodeInstructionCount;
+
+    private final int[] edgeSrc;
+    private final int[] edgeDst;
+    private final int[] edgeCounter;
+
+    private final long[] counters;
+
+    /**
+     * Create instance.
+     * 
+     * @param className fully-qualified class name
+     * @param methodName
+     * @param methodDescriptor
+     * @param nodeFirstInstruction index of the first instruction of each node , -1 for the virtual {@link #ENTRY} and {@link #EXIT} nodes
+     * @param nodeInstructionCount number of byte-code instructions of each node
+     * @param edgeSrc source node of each edge , edge #0 must be the edge from {@link #ENTRY} to the first block of the method
+     * @param edgeDst destination node of each edge
+     * @param edgeCounter index of the counter that records each edge , -1 for edges that are not instrumented
+     */
+    public EdgeProfile(String className, String methodName, String methodDescriptor,
+            int[] nodeFirstInstruction, int[] nodeInstructionCount,
+            int[] edgeSrc, int[] edgeDst, int[] edgeCounter)
+    {
+        if ( nodeFirstInstruction.length != nodeInstructionCount.length || nodeFirstInstruction.length < 2 ) {
+            throw new IllegalArgumentException("Invalid node arrays");
+        }
+        if ( edgeSrc.length != edgeDst.length || edgeSrc.length != edgeCounter.length ) {
+            throw new IllegalArgumentException("Invalid edge arrays");
+        }
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDescriptor = methodDescriptor;
+        this.nodeFirstInstruction = nodeFirstInstruction;
+        this.nodeInstructionCount = nodeInstructionCount;
+        this.edgeSrc = edgeSrc;
+        this.edgeDst = edgeDst;
+        this.edgeCounter = edgeCounter;
+
+        int counterCount = 0;
+        for ( int counter : edgeCounter ) {
+            counterCount = Math.max( counterCount , counter + 1 );
+        }
+        this.counters = new long[ counterCount ];
+    }
+
+    @Override
+    public String getClassName()
+    {
+        return className;
+    }
+
+    @Override
+    public String getMethodName()
+    {
+        return methodName;
+    }
+
+    @Override
+    public String getMethodDescriptor()
+    {
+        return methodDescriptor;
+    }
+
+    /**
+     * Returns the counters updated by the instrumented method.
+     * 
+     * @return
+     */
+    @Override
+    public long[] getCounters()
+    {
+        return counters;
+    }
+
+    public int getNodeCount()
+    {
+        return nodeFirstInstruction.length;
+    }
+
+    /**
+     * Returns the index of the first instruction of a node.
+     * 
+     * @param node
+     * @return instruction index or -1 for the virtual {@link #ENTRY} and {@link #EXIT} nodes
+     */
+    public int getFirstInstruction(int node)
+    {
+        return nodeFirstInstruction[node];
+    }
+
+    public int getInstructionCount(int node)
+    {
+        return nodeInstructionCount[node];
+    }
+
+    public int getEdgeCount()
+    {
+        return edgeSrc.length;
+    }
+
+    public int getEdgeSource(int edge)
+    {
+        return edgeSrc[edge];
+    }
+
+    public int getEdgeDestination(int edge)
+    {
+        return edgeDst[edge];
+    }
+
+    /**
+     * Returns the number of instrumented edges.
+     * 
+     * @return
+     */
+    public int getProbeCount()
+    {
+        return counters.length;
+    }
+
+    /**
+     * Returns whether an edge is instrumented.
+     * 
+     * @param edge
+     * @return
+     */
+    public boolean isInstrumented(int edge)
+    {
+        return edgeCounter[edge] != -1;
+    }
+
+    /**
+     * Reconstructs the execution counts of all edges from the current counter values.
+     * 
+     * @return execution count of each edge
+     */
+    public long[] getEdgeCounts()
+    {
+        final int edgeCount = edgeSrc.length;
+        final int nodeCount = nodeFirstInstruction.length;
+
+        final long[] result = new long[ edgeCount ];
+        final boolean[] known = new boolean[ edgeCount ];
+
+        // adjacency lists in CSR form
+        final int[] offsets = new int[ nodeCount + 1 ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) 
+        {
+            offsets[ edgeSrc[e] + 1 ]++;
+            if ( edgeDst[e] != edgeSrc[e] ) {
+                offsets[ edgeDst[e] + 1 ]++;
+            }
+        }
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            offsets[n+1] += offsets[n];
+        }
+        final int[] incident = new int[ offsets[ nodeCount ] ];
+        final int[] fill = Arrays.copyOf( offsets , nodeCount );
+        for ( int e = 0 ; e < edgeCount ; e++ ) 
+        {
+            incident[ fill[ edgeSrc[e] ]++ ] = e;
+            if ( edgeDst[e] != edgeSrc[e] ) {
+                incident[ fill[ edgeDst[e] ]++ ] = e;
+            }
+        }
+
+        final int[] unknownEdges = new int[ nodeCount ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) 
+        {
+            if ( edgeCounter[e] != -1 ) 
+            {
+                result[e] = counters[ edgeCounter[e] ];
+                known[e] = true;
+            } 
+            else 
+            {
+                unknownEdges[ edgeSrc[e] ]++;
+                unknownEdges[ edgeDst[e] ]++;
+            }
+        }
+
+        // uninstrumented edges form a spanning tree , solve it leaf by leaf
+        final Deque<Integer> leaves = new ArrayDeque<>();
+        for ( int n = 0 ; n < nodeCount ; n++ ) 
+        {
+            if ( unknownEdges[n] == 1 ) {
+                leaves.add( n );
+            }
+        }
+
+        while ( ! leaves.isEmpty() ) 
+        {
+            final int node = leaves.removeFirst();
+            if ( unknownEdges[node] != 1 ) {
+                continue;
+            }
+            long in = 0;
+            long out = 0;
+            int unknown = -1;
+            for ( int i = offsets[node] ; i < offsets[node+1] ; i++ ) 
+            {
+                final int e = incident[i];
+                if ( ! known[e] ) {
+                    unknown = e;
+                } 
+                else if ( edgeSrc[e] != edgeDst[e] ) 
+                {
+                    if ( edgeDst[e] == node ) {
+                        in += result[e];
+                    } else {
+                        out += result[e];
+                    }
+                }
+            }
+            result[unknown] = edgeDst[unknown] == node ? out - in : in - out;
+            known[unknown] = true;
+
+            final int other = edgeDst[unknown] == node ? edgeSrc[unknown] : edgeDst[unknown];
+            unknownEdges[node]--;
+            unknownEdges[other]--;
+            if ( unknownEdges[other] == 1 ) {
+                leaves.add( other );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reconstructs the execution counts of all nodes from the current counter values.
+     * 
+     * @return execution count of each node, the count of the {@link #ENTRY} node is the number of method invocations
+     * plus the number of exceptions caught
+     */
+    public long[] getNodeCounts()
+    {
+        final long[] edgeCounts = getEdgeCounts();
+        final long[] result = new long[ nodeFirstInstruction.length ];
+        for ( int e = 0 ; e < edgeCounts.length ; e++ ) 
+        {
+            if ( edgeSrc[e] == ENTRY ) {
+                result[ ENTRY ] += edgeCounts[e];
+            }
+            if ( edgeDst[e] != ENTRY ) {
+                result[ edgeDst[e] ] += edgeCounts[e];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of times this method was invoked.
+     * 
+     * @return
+     */
+    @Override
+    public long getInvocationCount()
+    {
+        return getEdgeCounts()[0];
+    }
+
+    /**
+     * Returns the number of byte-code instructions executed by this method.
+     * 
+     * @return
+     */
+    @Override
+    public long getExecutedInstructionCount()
+    {
+        final long[] nodeCounts = getNodeCounts();
+        long result = 0;
+        for ( int n = 0 ; n < nodeCounts.length ; n++ ) 
+        {
+            if ( n != ENTRY ) {
+                result += nodeCounts[n] * nodeInstructionCount[n];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void writeReport(PrintWriter writer)
+    {
+        final long[] nodeCounts = getNodeCounts();
+        writer.println( className+"#"+methodName+methodDescriptor+" : invocations="+getInvocationCount()+
+                " , instructions="+getExecutedInstructionCount()+" , probes="+getProbeCount()+"/"+getEdgeCount()+" edges" );
+        for ( int node = EXIT+1 ; node < nodeCounts.length ; node++ ) 
+        {
+            writer.println( "    block @ "+nodeFirstInstruction[node]+" ("+nodeInstructionCount[node]+
+                    " instructions) : "+nodeCounts[node] );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return className+"#"+methodName+methodDescriptor+" [ "+( nodeFirstInstruction.length - 2 )+" blocks , "+
+                edgeSrc.length+" edges , "+counters.length+" probes ]";
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+/**
+ * Counts the instructions a thread executes between opening and closing the scope.
+ * 
+ * <p>Scopes are opened with {@link StatisticsManager#openScope(String)} and must be closed
+ * by the same thread , in reverse order of opening:</p>
+ * <pre>
+ * try ( ExecutionScope scope = StatisticsManager.openScope( "request" ) ) {
+ *     ...
+ * }
+ * </pre>
+ * 
+ * <p>On virtual threads , the scope gets its own counter cell and only instructions of methods invoked
+ * after the scope has been opened are attributed to it. Instrumented methods pick their counter cell once on entry , 
+ * so instructions that the method opening the scope (and its callers) execute after opening it still count towards 
+ * the enclosing scope or , if there is none , the shared virtual thread total. When the scope gets closed , instructions 
+ * of methods that entered it and are still running are handed over the same way instead of being attributed to the 
+ * closed scope.</p>
+ * 
+ * <p>On platform threads , the scope merely remembers the thread's count when being opened , so all instructions
+ * executed in between , including those of the method that opened the scope , are attributed to it.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#openScope(String)
+ */
+public final class ExecutionScope implements AutoCloseable
+{
+    private final String name;
+    private final Thread thread;
+    private final ExecutionStatistics cell;
+    private final long start;
+    private final boolean virtual;
+    private final ExecutionStatistics previous;
+    
+    private volatile long count = -1;
+    
+    ExecutionScope(String name,Thread thread,ExecutionStatistics cell,long start,boolean virtual,ExecutionStatistics previous)
+    {
+        this.name = name;
+        this.thread = thread;
+        this.cell = cell;
+        this.start = start;
+        this.virtual = virtual;
+        this.previous = previous;
+    }
+    
+    /**
+     * Returns the name this scope was opened with.
+     * 
+     * @return
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * Returns the number of instructions executed inside this scope.
+     * 
+     * <p>While the scope is still open and this method is invoked by a thread
+     * other than the one that opened the scope , the returned value is a best-effort estimate.</p>
+     * 
+     * @return
+     */
+    public long getExecutedInstructionsCount() 
+    {
+        final long result = count;
+        return result != -1 ? result : cell.getTotalInstructionCount() - start;
+    }
+    
+    /**
+     * Returns whether this scope has been closed.
+     * 
+     * @return
+     */
+    public boolean isClosed() 
+    {
+        return count != -1;
+    }
+    
+    /**
+     * Closes this scope.
+     * 
+     * @throws IllegalStateException if invoked by a thread other than the one that opened the scope or if 
+     * a scope opened later on has not been closed yet
+     */
+    @Override
+    public void close()
+    {
+        StatisticsManager.closeScope( this );
+    }
+    
+    Thread getThread()
+    {
+        return thread;
+    }
+    
+    ExecutionStatistics getCell()
+    {
+        return cell;
+    }
+    
+    long getStart()
+    {
+        return start;
+    }
+    
+    boolean isVirtual()
+    {
+        return virtual;
+    }
+    
+    ExecutionStatistics getPrevious()
+    {
+        return previous;
+    }
+    
+    void setCount(long count)
+    {
+        this.count = count;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "ExecutionScope[ "+name+" , instructions: "+getExecutedInstructionsCount()+" ]";
+    }
+}
@@ -15,6 +15,9 @@
  */
 package de.codesourcery.asm.profiling;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 import de.codesourcery.asm.rewrite.ProfilingRewriter;
 
 /**
@@ -22,20 +25,238 @@ import de.codesourcery.asm.rewrite.ProfilingRewriter;
  * 
  * <p>Right now this class only tracks the number of executed instructions.</p>
  * 
+ * <p>Instances are counter cells owned by exactly one thread at a time. They are linked into
+ * a lock-free list by {@link StatisticsManager} when first created and get re-used by new threads once their
+ * previous owner has terminated. Only the owning thread ever writes the counters , other threads
+ * just read them.</p>
+ * 
+ * <p>Cells used by virtual threads are not owned by any thread , they are either shared by all virtual threads 
+ * that map to the same pool slot or belong to an {@link ExecutionScope}. Generated code never increments 
+ * {@link #executedInstructionCount} of {@link #shared} cells but adds its counts atomically through 
+ * {@link StatisticsManager#accountShared(ExecutionStatistics, int)} instead.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * @see ProfilingRewriter 
  */
-public class ExecutionStatistics
+public class ExecutionStatistics extends CacheLinePadding
 {
+    // cell state
+    static final int FREE = 0;
+    static final int BUSY = 1; // being claimed or retired
+    static final int OWNED = 2;
+    
+    private static final AtomicIntegerFieldUpdater<ExecutionStatistics> STATE = 
+            AtomicIntegerFieldUpdater.newUpdater( ExecutionStatistics.class , "state" );
+    
+    private static final AtomicLongFieldUpdater<ExecutionStatistics> ACCOUNTED = 
+            AtomicLongFieldUpdater.newUpdater( ExecutionStatistics.class , "accountedInstructionCount" );
+    
     /**
      * Number of instructions executed on the current thread.
      * 
      * <p>For performance reasons this value is always initialized with
-     * -{@link StatisticsManager#GRANULARITY} and then incremented. Whenever
-     * it reaches a positive value, a call to {@link StatisticsManager#account()}
+     * the negated flush threshold ({@link StatisticsManager#getGranularity()}) and then incremented. Whenever
+     * it reaches zero or a positive value, a call to {@link StatisticsManager#account(ExecutionStatistics)}
      * is triggered.</p>
      * 
+     * <p>Not used by {@link #shared} cells.</p>
+     * 
      * @see ProfilingRewriter
      */
-    public int executedInstructionCount=-StatisticsManager.GRANULARITY;
+    public int executedInstructionCount;
+    
+    // flush threshold executedInstructionCount was last reset with
+    private int batchSize;
+    
+    // number of instructions already accounted for , only ever written by the owning thread
+    private volatile long accountedInstructionCount;
+    
+    private volatile int state = FREE;
+    
+    // owning thread , published by the volatile write to 'state' 
+    private Thread thread;
+    
+    // next cell in StatisticsManager's list , never changes after the cell has been published
+    ExecutionStatistics next;
+    
+    /**
+     * Whether this cell may be written by multiple threads concurrently.
+     * 
+     * <p>Generated code checks this flag before each update , counts for shared cells must
+     * be passed to {@link StatisticsManager#accountShared(ExecutionStatistics, int)}.</p>
+     * 
+     * @see ProfilingRewriter
+     */
+    public final boolean shared;
+    
+    // cell that receives all counts flushed after the scope owning this cell has been closed
+    private ExecutionStatistics forward;
+    
+    ExecutionStatistics() 
+    {
+        this( false );
+    }
+    
+    ExecutionStatistics(boolean shared) 
+    {
+        this.shared = shared;
+    }
+    
+    /**
+     * Creates a cell that is not owned by any thread.
+     * 
+     * @param batchSize flush threshold to use
+     * @param shared whether the cell may be written by multiple threads concurrently
+     * @return
+     */
+    static ExecutionStatistics createUnowned(int batchSize,boolean shared) 
+    {
+        final ExecutionStatistics result = new PaddedExecutionStatistics( shared );
+        result.reset( batchSize );
+        return result;
+    }
+    
+    /**
+     * Tries to make the current thread the owner of this cell.
+     * 
+     * @param batchSize flush threshold to use
+     * @return <code>true</code> on success , <code>false</code> if this cell is already owned by another thread
+     */
+    boolean tryClaim(int batchSize) 
+    {
+        if ( state != FREE || ! STATE.compareAndSet( this , FREE , BUSY ) ) {
+            return false;
+        }
+        this.thread = Thread.currentThread();
+        this.accountedInstructionCount = 0;
+        reset( batchSize );
+        state = OWNED;
+        return true;
+    }
+    
+    /**
+     * Releases this cell if its owner has terminated. 
+     * 
+     * @return number of instructions executed by the terminated owner or -1 if 
+     * the owner is still alive or the cell was released by another thread 
+     */
+    long tryRetire() 
+    {
+        if ( state != OWNED || thread.isAlive() || ! STATE.compareAndSet( this , OWNED , BUSY ) ) {
+            return -1;
+        }
+        // Thread#isAlive() returning false guarantees that all writes of the terminated thread are visible 
+        final long result = getTotalInstructionCount();
+        this.thread = null;
+        state = FREE;
+        return result;
+    }
+    
+    private void reset(int batchSize) 
+    {
+        this.batchSize = batchSize;
+        this.executedInstructionCount = -batchSize;
+    }
+    
+    /**
+     * Adds all instructions executed since the last flush to
+     * the accounted instruction count.
+     * 
+     * <p>Must only be called by the thread that owns this instance unless this is a shared cell.</p>
+     * 
+     * @param newBatchSize flush threshold to use from now on
+     */
+    void flush(int newBatchSize) 
+    {
+        if ( forward != null ) 
+        {
+            final int pending = getPendingInstructionCount();
+            reset( 1 );
+            forward.addAccounted( pending );
+            return;
+        }
+        if ( shared ) {
+            // all counts are added atomically by accountShared() , nothing pending
+            return;
+        }
+        // single writer , so a release store is sufficient 
+        ACCOUNTED.lazySet( this , accountedInstructionCount + getPendingInstructionCount() );
+        reset( newBatchSize );
+    }
+    
+    /**
+     * Hands over all instructions counted from now on to another cell.
+     * 
+     * <p>Invoked when the scope owning this cell gets closed while methods that loaded this cell
+     * on entry are still running. Every further increment triggers a flush , so no counts stay pending
+     * in this cell. Must only be called by the thread that opened the scope.</p>
+     * 
+     * @param target cell of the enclosing scope or shared cell of the current virtual thread
+     */
+    void forwardTo(ExecutionStatistics target) 
+    {
+        this.forward = target;
+        flush( 1 );
+    }
+    
+    /**
+     * Adds instructions executed elsewhere to the accounted instruction count.
+     * 
+     * <p>Must only be called by the owning thread unless this is a shared cell.</p>
+     * 
+     * @param count
+     */
+    void addAccounted(long count) 
+    {
+        if ( shared ) {
+            ACCOUNTED.getAndAdd( this , count );
+        } else {
+            ACCOUNTED.lazySet( this , accountedInstructionCount + count );
+        }
+    }
+    
+    /**
+     * Returns the number of instructions executed since the last flush.
+     * 
+     * <p>When invoked by a thread other than the owning one while the owning thread is still alive, 
+     * the returned value is a best-effort estimate.</p>
+     *  
+     * @return
+     */
+    int getPendingInstructionCount() 
+    {
+        return executedInstructionCount + batchSize;
+    }
+    
+    /**
+     * Returns the number of instructions accounted for by the last flush.
+     * 
+     * @return
+     */
+    long getAccountedInstructionCount() 
+    {
+        return accountedInstructionCount;
+    }
+    
+    /**
+     * Returns the total number of instructions executed by the owning thread, including
+     * those that have not been flushed yet.
+     * 
+     * @return
+     * @see #getPendingInstructionCount()
+     */
+    long getTotalInstructionCount() 
+    {
+        return accountedInstructionCount + getPendingInstructionCount();
+    }
+    
+    /**
+     * Returns the thread currently owning this cell.
+     * 
+     * @return thread or <code>null</code> if this cell is not owned by any thread
+     */
+    Thread getThread()
+    {
+        return state == OWNED ? thread : null;
+    }
 }
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintWriter;
+
+/**
+ * Profile of a single instrumented method , backed by an array of counters 
+ * that is updated by generated byte-code.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see MethodProfileRegistry
+ */
+public interface IMethodProfile
+{
+    /**
+     * Returns the fully-qualified name of the class this method belongs to.
+     * 
+     * @return
+     */
+    public String getClassName();
+
+    public String getMethodName();
+
+    public String getMethodDescriptor();
+
+    /**
+     * Returns the counters updated by the instrumented method.
+     * 
+     * @return
+     */
+    public long[] getCounters();
+
+    /**
+     * Returns the number of times this method was invoked.
+     * 
+     * @return
+     */
+    public long getInvocationCount();
+
+    /**
+     * Returns the number of byte-code instructions executed by this method.
+     * 
+     * @return
+     */
+    public long getExecutedInstructionCount();
+
+    /**
+     * Writes a human-readable report of this profile.
+     * 
+     * @param writer
+     */
+    public void writeReport(PrintWriter writer);
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.List;
+
+/**
+ * Management interface exposing the instruction counts gathered by instrumented code.
+ * 
+ * <p>Registered as a platform MXBean by the profiling agent so that standard JMX clients can read all values 
+ * as open types. Reading values never blocks threads executing instrumented code , counters of other threads 
+ * are read without synchronization and may lag behind slightly (see {@link StatisticsManager#snapshot()}).</p>
+ * 
+ * <p>All counts are relative to the last invocation of {@link #reset()}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingStatistics
+ */
+public interface IProfilingStatistics
+{
+    /**
+     * Returns the number of instructions executed by all threads , including threads that have
+     * already terminated and virtual threads.
+     * 
+     * @return
+     */
+    public long getTotalExecutedInstructions();
+    
+    /**
+     * Returns the number of instructions executed by threads that have already terminated.
+     * 
+     * @return
+     */
+    public long getTerminatedThreadsExecutedInstructions();
+    
+    /**
+     * Returns the number of instructions executed by virtual threads.
+     * 
+     * @return
+     */
+    public long getVirtualThreadsExecutedInstructions();
+    
+    /**
+     * Returns the number of instructions executed by each live thread that executed instrumented code.
+     * 
+     * @return
+     */
+    public List<ThreadStatistics> getThreads();
+    
+    /**
+     * Returns the methods that executed the most instructions.
+     * 
+     * <p>Only available when instrumenting for edge , path or heat map profiling.</p>
+     * 
+     * @param limit max. number of methods to return
+     * @return methods , sorted descending by executed instructions
+     */
+    public List<ProfileEntry> getHotMethods(int limit);
+    
+    /**
+     * Returns the most frequently executed blocks.
+     * 
+     * <p>Only available when instrumenting for heat map profiling.</p>
+     * 
+     * @param limit max. number of blocks to return
+     * @return blocks , sorted descending by execution count
+     */
+    public List<ProfileEntry> getHotBlocks(int limit);
+    
+    /**
+     * Returns all thread counts and the total at once.
+     * 
+     * @return
+     */
+    public StatisticsSnapshot snapshot();
+    
+    /**
+     * Resets all counts reported by this interface to zero.
+     * 
+     * <p>Counters updated by instrumented code are left untouched , this 
+     * interface just reports the differences to the values at the time of the reset.</p>
+     */
+    public void reset();
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of the profiles of all methods instrumented for edge or path profiling.
+ * 
+ * <p>Each profile gets assigned a unique ID when registered. Generated byte-code invokes
+ * {@link #getCounters(int)} once at method entry and keeps the returned array in a local 
+ * variable.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter.InstrumentationMode#EDGES
+ * @see ProfilingRewriter.InstrumentationMode#PATHS
+ */
+public class MethodProfileRegistry
+{
+    private static final Object LOCK = new Object();
+
+    // only grown when full , re-written after each registration so that generated code can read without locking
+    private static volatile long[][] counters = new long[64][];
+    private static final List<IMethodProfile> profiles = new ArrayList<>();
+
+    private MethodProfileRegistry() {
+    }
+
+    /**
+     * Registers a profile.
+     * 
+     * @param profile
+     * @return ID to pass to {@link #getCounters(int)}
+     */
+    public static int register(IMethodProfile profile) 
+    {
+        if ( profile == null ) {
+            throw new IllegalArgumentException("profile must not be NULL.");
+        }
+        synchronized( LOCK ) 
+        {
+            final int id = profiles.size();
+            long[][] current = counters;
+            if ( id == current.length ) {
+                current = Arrays.copyOf( current , current.length * 2 );
+            }
+            current[id] = profile.getCounters();
+            profiles.add( profile );
+            // volatile write publishes the new slot to getCounters()
+            counters = current;
+            return id;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code at method entry.
+     * 
+     * @param id profile ID as returned by {@link #register(IMethodProfile)}
+     * @return
+     */
+    public static long[] getCounters(int id) 
+    {
+        return counters[id];
+    }
+
+    /**
+     * Returns all registered profiles.
+     * 
+     * @return
+     */
+    public static List<IMethodProfile> getProfiles() 
+    {
+        synchronized( LOCK ) {
+            return new ArrayList<>( profiles );
+        }
+    }
+
+    /**
+     * Writes reports for all methods that were invoked at least once.
+     * 
+     * @param writer
+     * @see IMethodProfile#writeReport(PrintWriter)
+     */
+    public static void writeReport(PrintWriter writer) 
+    {
+        long totalInstructions = 0;
+        int totalCounters = 0;
+        for ( IMethodProfile profile : getProfiles() ) 
+        {
+            totalCounters += profile.getCounters().length;
+            if ( profile.getInvocationCount() == 0 ) {
+                continue;
+            }
+            totalInstructions += profile.getExecutedInstructionCount();
+            profile.writeReport( writer );
+        }
+        writer.println("Total instructions: "+totalInstructions+" ( "+totalCounters+" counters )");
+        writer.flush();
+    }
+}
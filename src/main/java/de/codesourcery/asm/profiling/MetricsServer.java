@@ -0,0 +1,349 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server that publishes instruction counts.
+ * 
+ * <p>The following resources are served:</p>
+ * <ul>
+ *   <li><code>{@value #METRICS_PATH}</code> - totals and per-thread counts in the Prometheus text exposition format</li>
+ *   <li><code>{@value #SNAPSHOT_PATH}</code> - the same values as a JSON document</li>
+ * </ul>
+ * 
+ * <p>Counts are read through {@link ProfilingStatistics} (which is never reset , so all counters are monotonic) 
+ * and thus never block threads executing instrumented code. Thread states are exported as a separate gauge 
+ * (<code>profiling_thread_state</code>) so that per-thread counters keep their identity when a thread changes state. 
+ * Requests are handled by a single daemon thread.</p>
+ * 
+ * <p>To avoid loading classes while a class file transformer is active , {@link #start()} requests both documents once 
+ * over the loopback interface so that the classes needed to handle requests get loaded by the server's threads right away. 
+ * The server should be started before installing the transformer.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingStatistics
+ */
+public class MetricsServer
+{
+    /**
+     * Path of the Prometheus metrics.
+     */
+    public static final String METRICS_PATH = "/metrics";
+    
+    /**
+     * Path of the JSON snapshot.
+     */
+    public static final String SNAPSHOT_PATH = "/snapshot";
+    
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final IProfilingStatistics statistics = new ProfilingStatistics();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    /**
+     * Create server.
+     * 
+     * @param address address to listen on , use port 0 to pick a free port
+     * @throws IOException if the server socket could not be bound
+     */
+    public MetricsServer(InetSocketAddress address) throws IOException
+    {
+        if ( address == null ) {
+            throw new IllegalArgumentException("address must not be NULL.");
+        }
+        server = HttpServer.create( address , 0 );
+        executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread result = new Thread( r , "profiling-metrics-server" );
+                result.setDaemon( true );
+                return result;
+            }
+        });
+        server.setExecutor( executor );
+        server.createContext( METRICS_PATH , new DocumentHandler( METRICS_PATH , PROMETHEUS_CONTENT_TYPE ) {
+            
+            @Override
+            protected String render()
+            {
+                return renderPrometheus();
+            }
+        });
+        server.createContext( SNAPSHOT_PATH , new DocumentHandler( SNAPSHOT_PATH , JSON_CONTENT_TYPE ) {
+            
+            @Override
+            protected String render()
+            {
+                return renderJson();
+            }
+        });
+    }
+    
+    /**
+     * Starts serving requests.
+     * 
+     * <p>Returns after one request to each resource has been served.</p>
+     */
+    public void start() 
+    {
+        // the server's dispatcher thread inherits the daemon flag of the thread starting the server  
+        final Thread starter = new Thread("profiling-metrics-server-start") {
+            
+            @Override
+            public void run()
+            {
+                server.start();
+            }
+        };
+        starter.setDaemon( true );
+        starter.start();
+        try {
+            starter.join();
+        } 
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // load all classes needed for handling requests now
+        warmUp( METRICS_PATH );
+        warmUp( SNAPSHOT_PATH );
+    }
+    
+    private void warmUp(String path) 
+    {
+        final InetSocketAddress address = server.getAddress();
+        final InetAddress host = address.getAddress().isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : address.getAddress();
+        try 
+        {
+            final HttpURLConnection connection = (HttpURLConnection) new URL( "http" , host.getHostAddress() , address.getPort() , path ).openConnection();
+            connection.setConnectTimeout( 5000 );
+            connection.setReadTimeout( 5000 );
+            try ( InputStream in = connection.getInputStream() ) 
+            {
+                final byte[] buffer = new byte[ 1024 ];
+                while ( in.read( buffer ) != -1 ) {
+                    // discard
+                }
+            } 
+            finally {
+                connection.disconnect();
+            }
+        } 
+        catch(IOException e) {
+            // requests still get served , classes just get loaded by the first one
+        }
+    }
+    
+    /**
+     * Stops the server.
+     */
+    public void stop() 
+    {
+        server.stop( 0 );
+        executor.shutdown();
+    }
+    
+    /**
+     * Returns the address the server is listening on.
+     * 
+     * @return
+     */
+    public InetSocketAddress getAddress() 
+    {
+        return server.getAddress();
+    }
+    
+    String renderPrometheus() 
+    {
+        final StatisticsSnapshot snapshot = statistics.snapshot();
+        final StringBuilder result = new StringBuilder();
+        appendMetric( result , "profiling_executed_instructions_total" , "counter" , 
+                "Number of byte-code instructions executed by instrumented code." , snapshot.getTotalExecutedInstructions() );
+        appendMetric( result , "profiling_terminated_threads_executed_instructions_total" , "counter" , 
+                "Number of instructions executed by threads that have terminated." , statistics.getTerminatedThreadsExecutedInstructions() );
+        appendMetric( result , "profiling_virtual_threads_executed_instructions_total" , "counter" , 
+                "Number of instructions executed by virtual threads." , statistics.getVirtualThreadsExecutedInstructions() );
+        appendMetric( result , "profiling_threads" , "gauge" , 
+                "Number of live threads that executed instrumented code." , snapshot.getThreads().size() );
+        
+        result.append( "# HELP profiling_thread_executed_instructions_total Number of instructions executed by a live thread.\n" );
+        result.append( "# TYPE profiling_thread_executed_instructions_total counter\n" );
+        for ( ThreadStatistics thread : snapshot.getThreads() ) 
+        {
+            appendThreadSample( result , "profiling_thread_executed_instructions_total" , thread );
+            result.append( "} " ).append( thread.getExecutedInstructions() ).append( '\n' );
+        }
+        
+        // kept out of the counter's labels , otherwise every state change would start a new counter series
+        result.append( "# HELP profiling_thread_state Current state of a live thread, the value is always 1.\n" );
+        result.append( "# TYPE profiling_thread_state gauge\n" );
+        for ( ThreadStatistics thread : snapshot.getThreads() ) 
+        {
+            appendThreadSample( result , "profiling_thread_state" , thread );
+            result.append( ",state=\"" ).append( thread.getState() ).append( "\"} 1\n" );
+        }
+        return result.toString();
+    }
+    
+    String renderJson() 
+    {
+        final StatisticsSnapshot snapshot = statistics.snapshot();
+        final StringBuilder result = new StringBuilder();
+        result.append( "{\"timestamp\":" ).append( snapshot.getTimestamp() );
+        result.append( ",\"totalExecutedInstructions\":" ).append( snapshot.getTotalExecutedInstructions() );
+        result.append( ",\"terminatedThreadsExecutedInstructions\":" ).append( statistics.getTerminatedThreadsExecutedInstructions() );
+        result.append( ",\"virtualThreadsExecutedInstructions\":" ).append( statistics.getVirtualThreadsExecutedInstructions() );
+        result.append( ",\"threads\":[" );
+        boolean first = true;
+        for ( ThreadStatistics thread : snapshot.getThreads() ) 
+        {
+            if ( ! first ) {
+                result.append( ',' );
+            }
+            first = false;
+            result.append( "{\"name\":" );
+            appendJsonString( result , thread.getName() );
+            result.append( ",\"id\":" ).append( thread.getId() );
+            result.append( ",\"state\":\"" ).append( thread.getState() ).append( '"' );
+            result.append( ",\"executedInstructions\":" ).append( thread.getExecutedInstructions() ).append( '}' );
+        }
+        result.append( "]}\n" );
+        return result.toString();
+    }
+    
+    private static void appendMetric(StringBuilder builder,String name,String type,String help,long value) 
+    {
+        builder.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+        builder.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+        builder.append( name ).append( ' ' ).append( value ).append( '\n' );
+    }
+    
+    /*
+     * Appends metric name and thread labels , leaving the label set open.
+     */
+    private static void appendThreadSample(StringBuilder builder,String name,ThreadStatistics thread) 
+    {
+        builder.append( name ).append( "{thread=\"" );
+        appendLabelValue( builder , thread.getName() );
+        builder.append( "\",id=\"" ).append( thread.getId() ).append( '"' );
+    }
+    
+    private static void appendLabelValue(StringBuilder builder,String value) 
+    {
+        for ( int i = 0 ; i < value.length() ; i++ ) 
+        {
+            final char c = value.charAt( i );
+            switch( c ) 
+            {
+                case '\\': builder.append( "\\\\" ); break;
+                case '"':  builder.append( "\\\"" ); break;
+                case '\n': builder.append( "\\n" ); break;
+                default:
+                    builder.append( c );
+            }
+        }
+    }
+    
+    private static void appendJsonString(StringBuilder builder,String value) 
+    {
+        builder.append( '"' );
+        for ( int i = 0 ; i < value.length() ; i++ ) 
+        {
+            final char c = value.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                builder.append( '\\' ).append( c );
+            } 
+            else if ( c < 0x20 ) 
+            {
+                builder.append( "\\u00" ).append( Character.forDigit( c >>> 4 , 16 ) ).append( Character.forDigit( c & 0x0f , 16 ) );
+            } else {
+                builder.append( c );
+            }
+        }
+        builder.append( '"' );
+    }
+    
+    private static abstract class DocumentHandler implements HttpHandler 
+    {
+        private final String path;
+        private final String contentType;
+        
+        protected DocumentHandler(String path,String contentType)
+        {
+            this.path = path;
+            this.contentType = contentType;
+        }
+        
+        protected abstract String render();
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            try 
+            {
+                final String method = exchange.getRequestMethod();
+                if ( ! path.equals( exchange.getRequestURI().getPath() ) ) {
+                    exchange.sendResponseHeaders( 404 , -1 );
+                } 
+                else if ( ! "GET".equals( method ) && ! "HEAD".equals( method ) ) 
+                {
+                    exchange.getResponseHeaders().set( "Allow" , "GET, HEAD" );
+                    exchange.sendResponseHeaders( 405 , -1 );
+                } 
+                else 
+                {
+                    final byte[] body = render().getBytes( UTF8 );
+                    exchange.getResponseHeaders().set( "Content-Type" , contentType );
+                    if ( "HEAD".equals( method ) ) {
+                        exchange.sendResponseHeaders( 200 , -1 );
+                    } 
+                    else 
+                    {
+                        exchange.sendResponseHeaders( 200 , body.length );
+                        try ( OutputStream out = exchange.getResponseBody() ) {
+                            out.write( body );
+                        }
+                    }
+                }
+            } 
+            finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+/**
+ * {@link ExecutionStatistics} with trailing padding , together with
+ * {@link CacheLinePadding} this prevents false sharing between the counters
+ * of different threads.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class PaddedExecutionStatistics extends ExecutionStatistics
+{
+    protected long q0, q1, q2, q3, q4, q5, q6;
+    
+    PaddedExecutionStatistics() 
+    {
+    }
+    
+    PaddedExecutionStatistics(boolean shared) 
+    {
+        super( shared );
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Ball-Larus path profile of a single method.
+ * 
+ * <p>Paths are acyclic: each path starts at the method entry , at an exception handler or at the head of a loop and
+ * ends at a method exit or at a loop back-edge. Paths are numbered from <code>0</code> to <code>{@link #getPathCount()}-1</code>
+ * and counted in a table indexed by path number.</p>
+ * 
+ * <p>The profile stores the directed acyclic graph the path numbering was computed on (the method's profiling graph
+ * with each loop back-edge <code>v -&gt; w</code> replaced by edges <code>ENTRY -&gt; w</code> and <code>v -&gt; EXIT</code>)
+ * along with the increment of each edge , path numbers are decoded by walking this graph from the method entry and
+ * always taking the outgoing edge with the largest increment that does not exceed the remaining path number.</p>
+ * 
+ * <p>A path that is interrupted by an exception is not counted. Counters are updated without synchronization 
+ * so concurrent invocations may lose increments.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter.InstrumentationMode#PATHS
+ * @see MethodProfileRegistry
+ */
+public final class PathProfile implements IMethodProfile
+{
+    /**
+     * Index of the virtual method-entry node.
+     */
+    public static final int ENTRY = 0;
+
+    /**
+     * Index of the virtual method-exit node.
+     */
+    public static final int EXIT = 1;
+
+    /**
+     * Regular control-flow edge.
+     */
+    public static final byte EDGE_REGULAR = 0;
+    /**
+     * Edge from the method entry to an exception handler.
+     */
+    public static final byte EDGE_HANDLER = 1;
+    /**
+     * Edge from the method entry to a loop header , replacing a loop back-edge.
+     */
+    public static final byte EDGE_LOOP_START = 2;
+    /**
+     * Edge from the source of a loop back-edge to the method exit , replacing the back-edge.
+     */
+    public static final byte EDGE_LOOP_END = 3;
+
+    private static final int MAX_REPORTED_PATHS = 10;
+
+    private final String className;
+    private final String methodName;
+    private final String methodDescriptor;
+
+    private final int[] nodeFirstInstruction;
+    private final int[] nodeInstructionCount;
+
+    // DAG edges in CSR form , outgoing edges of each node sorted ascending by increment
+    private final int[] succOffsets;
+    private final int[] edgeDst;
+    private final int[] edgeIncrement;
+    private final byte[] edgeTypes;
+
+    private final long[] counters;
+
+    /**
+     * Create instance.
+     * 
+     * @param className fully-qualified class name
+     * @param methodName
+     * @param methodDescriptor
+     * @param nodeFirstInstruction index of the first instruction of each node , -1 for the virtual {@link #ENTRY} and {@link #EXIT} nodes
+     * @param nodeInstructionCount number of byte-code instructions of each node
+     * @param edgeSrc source node of each DAG edge
+     * @param edgeDst destination node of each DAG edge
+     * @param edgeIncrement Ball-Larus increment of each DAG edge 
+     * @param edgeTypes type of each DAG edge 
+     * @param pathCount number of distinct paths
+     */
+    public PathProfile(String className, String methodName, String methodDescriptor,
+            int[] nodeFirstInstruction, int[] nodeInstructionCount,
+            int[] edgeSrc, int[] edgeDst, int[] edgeIncrement, byte[] edgeTypes , int pathCount)
+    {
+        if ( nodeFirstInstruction.length != nodeInstructionCount.length || nodeFirstInstruction.length < 2 ) {
+            throw new IllegalArgumentException("Invalid node arrays");
+        }
+        if ( edgeSrc.length != edgeDst.length || edgeSrc.length != edgeIncrement.length || edgeSrc.length != edgeTypes.length ) {
+            throw new IllegalArgumentException("Invalid edge arrays");
+        }
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDescriptor = methodDescriptor;
+        this.nodeFirstInstruction = nodeFirstInstruction;
+        this.nodeInstructionCount = nodeInstructionCount;
+        this.counters = new long[ pathCount ];
+
+        // sort edges by source node and increment
+        final int edgeCount = edgeSrc.length;
+        final Integer[] order = new Integer[ edgeCount ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            order[e] = e;
+        }
+        final int[] src = edgeSrc;
+        final int[] increment = edgeIncrement;
+        Arrays.sort( order , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer e1, Integer e2)
+            {
+                final int result = Integer.compare( src[e1] , src[e2] );
+                return result != 0 ? result : Integer.compare( increment[e1] , increment[e2] );
+            }
+        });
+
+        this.succOffsets = new int[ nodeFirstInstruction.length + 1 ];
+        this.edgeDst = new int[ edgeCount ];
+        this.edgeIncrement = new int[ edgeCount ];
+        this.edgeTypes = new byte[ edgeCount ];
+        for ( int i = 0 ; i < edgeCount ; i++ ) 
+        {
+            final int e = order[i];
+            succOffsets[ edgeSrc[e] + 1 ]++;
+            this.edgeDst[i] = edgeDst[e];
+            this.edgeIncrement[i] = edgeIncrement[e];
+            this.edgeTypes[i] = edgeTypes[e];
+        }
+        for ( int n = 0 ; n < nodeFirstInstruction.length ; n++ ) {
+            succOffsets[n+1] += succOffsets[n];
+        }
+    }
+
+    @Override
+    public String getClassName()
+    {
+        return className;
+    }
+
+    @Override
+    public String getMethodName()
+    {
+        return methodName;
+    }
+
+    @Override
+    public String getMethodDescriptor()
+    {
+        return methodDescriptor;
+    }
+
+    /**
+     * Returns the path frequency table updated by the instrumented method.
+     * 
+     * @return
+     */
+    @Override
+    public long[] getCounters()
+    {
+        return counters;
+    }
+
+    /**
+     * Returns the number of distinct paths through this method.
+     * 
+     * @return
+     */
+    public int getPathCount()
+    {
+        return counters.length;
+    }
+
+    /**
+     * Returns how often a path was executed.
+     * 
+     * @param pathId
+     * @return
+     */
+    public long getPathFrequency(int pathId)
+    {
+        return counters[pathId];
+    }
+
+    /**
+     * Returns the index of the first instruction of a node.
+     * 
+     * @param node
+     * @return instruction index or -1 for the virtual {@link #ENTRY} and {@link #EXIT} nodes
+     */
+    public int getFirstInstruction(int node)
+    {
+        return nodeFirstInstruction[node];
+    }
+
+    /**
+     * Decodes a path number.
+     * 
+     * @param pathId
+     * @return indices of the edges taken , use {@link #getEdgeDestination(int)} and {@link #getEdgeType(int)} to
+     * inspect them
+     */
+    public int[] decode(int pathId) 
+    {
+        if ( pathId < 0 || pathId >= counters.length ) {
+            throw new IllegalArgumentException("Invalid path ID "+pathId+" , method has "+counters.length+" paths");
+        }
+        final List<Integer> result = new ArrayList<>();
+        int remaining = pathId;
+        int node = ENTRY;
+        while ( node != EXIT ) 
+        {
+            int taken = -1;
+            for ( int e = succOffsets[node] ; e < succOffsets[node+1] && edgeIncrement[e] <= remaining ; e++ ) {
+                taken = e;
+            }
+            if ( taken == -1 ) {
+                throw new IllegalStateException("Failed to decode path "+pathId+" at node "+node);
+            }
+            result.add( taken );
+            remaining -= edgeIncrement[taken];
+            node = edgeDst[taken];
+        }
+
+        final int[] edges = new int[ result.size() ];
+        for ( int i = 0 ; i < edges.length ; i++ ) {
+            edges[i] = result.get(i);
+        }
+        return edges;
+    }
+
+    /**
+     * Decodes a path number into the sequence of blocks executed.
+     * 
+     * @param pathId
+     * @return node indices of the blocks on the path
+     */
+    public int[] getBlocks(int pathId) 
+    {
+        final int[] edges = decode( pathId );
+        final int[] result = new int[ edges.length - 1 ];
+        for ( int i = 0 ; i < result.length ; i++ ) {
+            result[i] = edgeDst[ edges[i] ];
+        }
+        return result;
+    }
+
+    public int getEdgeDestination(int edge) 
+    {
+        return edgeDst[edge];
+    }
+
+    /**
+     * Returns the type of a DAG edge.
+     * 
+     * @param edge
+     * @return one of {@link #EDGE_REGULAR} , {@link #EDGE_HANDLER} , {@link #EDGE_LOOP_START} or {@link #EDGE_LOOP_END}
+     */
+    public byte getEdgeType(int edge) 
+    {
+        return edgeTypes[edge];
+    }
+
+    /**
+     * Returns a human-readable description of a path.
+     * 
+     * <p>Blocks are identified by the index of their first instruction.</p>
+     * 
+     * @param pathId
+     * @return
+     */
+    public String describePath(int pathId) 
+    {
+        final int[] edges = decode( pathId );
+        final StringBuilder result = new StringBuilder();
+        switch( edgeTypes[ edges[0] ] ) 
+        {
+            case EDGE_HANDLER:    result.append("handler: "); break;
+            case EDGE_LOOP_START: result.append("loop: "); break;
+            default:
+                result.append("entry: ");
+        }
+        for ( int i = 0 ; i < edges.length - 1 ; i++ ) 
+        {
+            if ( i > 0 ) {
+                result.append(" -> ");
+            }
+            result.append("@").append( nodeFirstInstruction[ edgeDst[ edges[i] ] ] );
+        }
+        result.append( edgeTypes[ edges[ edges.length - 1 ] ] == EDGE_LOOP_END ? " (back-edge)" : " (exit)" );
+        return result.toString();
+    }
+
+    /**
+     * Returns the number of times this method was invoked.
+     * 
+     * <p>Each invocation executes exactly one path starting at the method entry , unless it
+     * got interrupted by an exception.</p>
+     * 
+     * @return
+     */
+    @Override
+    public long getInvocationCount()
+    {
+        long result = 0;
+        for ( int pathId = 0 ; pathId < counters.length ; pathId++ ) 
+        {
+            if ( counters[pathId] != 0 && edgeTypes[ decode( pathId )[0] ] == EDGE_REGULAR ) {
+                result += counters[pathId];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getExecutedInstructionCount()
+    {
+        long result = 0;
+        for ( int pathId = 0 ; pathId < counters.length ; pathId++ ) 
+        {
+            if ( counters[pathId] != 0 ) 
+            {
+                long instructions = 0;
+                for ( int node : getBlocks( pathId ) ) {
+                    instructions += nodeInstructionCount[node];
+                }
+                result += instructions * counters[pathId];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void writeReport(PrintWriter writer)
+    {
+        final List<Integer> executed = new ArrayList<>();
+        for ( int pathId = 0 ; pathId < counters.length ; pathId++ ) 
+        {
+            if ( counters[pathId] != 0 ) {
+                executed.add( pathId );
+            }
+        }
+        Collections.sort( executed , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer p1, Integer p2)
+            {
+                return Long.compare( counters[p2] , counters[p1] );
+            }
+        });
+
+        writer.println( className+"#"+methodName+methodDescriptor+" : invocations="+getInvocationCount()+
+                " , instructions="+getExecutedInstructionCount()+" , paths executed="+executed.size()+"/"+counters.length );
+        for ( int i = 0 ; i < executed.size() && i < MAX_REPORTED_PATHS ; i++ ) 
+        {
+            final int pathId = executed.get(i);
+            writer.println( "    path #"+pathId+" : "+counters[pathId]+" x "+describePath( pathId ) );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return className+"#"+methodName+methodDescriptor+" [ "+( nodeFirstInstruction.length - 2 )+" blocks , "+
+                counters.length+" paths ]";
+    }
+}
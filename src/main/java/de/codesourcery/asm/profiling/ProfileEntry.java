@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Execution counts of a single method or block.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see IProfilingStatistics#getHotMethods(int)
+ * @see IProfilingStatistics#getHotBlocks(int)
+ */
+public final class ProfileEntry
+{
+    private final String name;
+    private final long executionCount;
+    private final long executedInstructions;
+    
+    @ConstructorProperties({"name","executionCount","executedInstructions"})
+    public ProfileEntry(String name, long executionCount, long executedInstructions)
+    {
+        this.name = name;
+        this.executionCount = executionCount;
+        this.executedInstructions = executedInstructions;
+    }
+    
+    /**
+     * Returns the method's name (<code>class#method descriptor</code>) or 
+     * the block's description.
+     * 
+     * @return
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * Returns the number of invocations of a method (for the heat map , the number of executions of 
+     * the method's first block) or the number of executions of a block.
+     * 
+     * @return
+     */
+    public long getExecutionCount()
+    {
+        return executionCount;
+    }
+    
+    public long getExecutedInstructions()
+    {
+        return executedInstructions;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return executionCount+" x "+name+" ( "+executedInstructions+" instructions )";
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+import static de.codesourcery.asm.profiling.ProfileExporter.*;
+
+/**
+ * Reads files written by {@link ProfileExporter} , possibly while the exporting JVM is still running.
+ * 
+ * <p>Can also be used as a command-line tool to dump the contents of an export file.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfileExporter
+ */
+public class ProfileExportReader implements Closeable
+{
+    private static final int MAX_RETRIES = 1000;
+    
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int threadCapacity;
+    private final int blockCapacity;
+    private final int threadTableOffset;
+    private final int counterRegionOffset;
+    
+    // used to order reads from the mapped buffer
+    private volatile long fence;
+    
+    /**
+     * Consistent view of an export file.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Snapshot 
+    {
+        public final long sequence;
+        public final long timestamp;
+        public final long terminatedThreadsInstructions;
+        public final long virtualThreadsInstructions;
+        public final long[] threadIds;
+        public final String[] threadNames;
+        public final long[] threadInstructions;
+        public final long[] blockCounts;
+        
+        protected Snapshot(long sequence, long timestamp, long terminatedThreadsInstructions, long virtualThreadsInstructions, long[] threadIds,
+                String[] threadNames, long[] threadInstructions, long[] blockCounts)
+        {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.terminatedThreadsInstructions = terminatedThreadsInstructions;
+            this.virtualThreadsInstructions = virtualThreadsInstructions;
+            this.threadIds = threadIds;
+            this.threadNames = threadNames;
+            this.threadInstructions = threadInstructions;
+            this.blockCounts = blockCounts;
+        }
+        
+        /**
+         * Returns the number of instructions executed by all threads , 
+         * including terminated and virtual ones.
+         * 
+         * @return
+         */
+        public long getTotalInstructions() 
+        {
+            long result = terminatedThreadsInstructions + virtualThreadsInstructions;
+            for ( long count : threadInstructions ) {
+                result += count;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Opens an export file.
+     * 
+     * @param file
+     * @throws IOException if the file could not be read or is no export file 
+     */
+    public ProfileExportReader(File file) throws IOException 
+    {
+        if ( file == null ) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        randomAccessFile = new RandomAccessFile( file , "r" );
+        try 
+        {
+            final long size = randomAccessFile.length();
+            if ( size < HEADER_SIZE ) {
+                throw new IOException("File "+file.getAbsolutePath()+" is too small");
+            }
+            buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_ONLY , 0 , size );
+            buffer.order( ByteOrder.LITTLE_ENDIAN );
+            if ( buffer.getInt( OFFSET_MAGIC ) != MAGIC ) {
+                throw new IOException("File "+file.getAbsolutePath()+" is no profile export file");
+            }
+            if ( buffer.getInt( OFFSET_VERSION ) != VERSION ) {
+                throw new IOException("File "+file.getAbsolutePath()+" has unsupported layout version "+buffer.getInt( OFFSET_VERSION ) );
+            }
+            threadCapacity = buffer.getInt( OFFSET_THREAD_CAPACITY );
+            blockCapacity = buffer.getInt( OFFSET_BLOCK_CAPACITY );
+            threadTableOffset = buffer.getInt( OFFSET_THREAD_TABLE );
+            counterRegionOffset = buffer.getInt( OFFSET_COUNTER_REGION );
+            if ( counterRegionOffset + (long) blockCapacity * 8 > size || threadTableOffset + (long) threadCapacity * THREAD_ENTRY_SIZE > size ) {
+                throw new IOException("File "+file.getAbsolutePath()+" is truncated");
+            }
+        } 
+        catch(IOException e) 
+        {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+    
+    /*
+     * Keeps reads from the mapped buffer from being re-ordered across this call: earlier loads 
+     * (including the one that produced the argument) cannot move past the volatile write , later loads 
+     * cannot move ahead of the volatile read. Loads on the same side of the call are not ordered.
+     */
+    private long orderReads(long value) 
+    {
+        fence = value;
+        return fence;
+    }
+    
+    /**
+     * Reads a consistent snapshot.
+     * 
+     * @return
+     * @throws IOException if no consistent snapshot could be read because the file is being updated too frequently 
+     */
+    public Snapshot read() throws IOException 
+    {
+        for ( int retry = 0 ; retry < MAX_RETRIES ; retry++ ) 
+        {
+            final long sequence = orderReads( buffer.getLong( OFFSET_SEQUENCE ) );
+            if ( ( sequence & 1 ) != 0 ) 
+            {
+                Thread.yield();
+                continue;
+            }
+            
+            final long timestamp = buffer.getLong( OFFSET_TIMESTAMP );
+            final long terminated = buffer.getLong( OFFSET_TERMINATED_THREADS );
+            final long virtual = buffer.getLong( OFFSET_VIRTUAL_THREADS );
+            final int threadCount = Math.max( 0 , Math.min( threadCapacity , buffer.getInt( OFFSET_THREAD_COUNT ) ) );
+            final int blockCount = Math.max( 0 , Math.min( blockCapacity , buffer.getInt( OFFSET_BLOCK_COUNT ) ) );
+            
+            final long[] threadIds = new long[ threadCount ];
+            final String[] threadNames = new String[ threadCount ];
+            final long[] threadInstructions = new long[ threadCount ];
+            final byte[] name = new byte[ THREAD_NAME_LENGTH ];
+            for ( int i = 0 ; i < threadCount ; i++ ) 
+            {
+                final int offset = threadTableOffset + i * THREAD_ENTRY_SIZE;
+                threadIds[i] = buffer.getLong( offset );
+                threadInstructions[i] = buffer.getLong( offset + 8 );
+                int len = 0;
+                while ( len < THREAD_NAME_LENGTH && ( name[len] = buffer.get( offset + THREAD_NAME_OFFSET + len ) ) != 0 ) {
+                    len++;
+                }
+                threadNames[i] = new String( name , 0 , len , UTF8 );
+            }
+            
+            final long[] blockCounts = new long[ blockCount ];
+            for ( int i = 0 ; i < blockCount ; i++ ) {
+                blockCounts[i] = buffer.getLong( counterRegionOffset + i * 8 );
+            }
+            
+            // the data must have been read before the sequence number is read again
+            orderReads( sequence );
+            if ( buffer.getLong( OFFSET_SEQUENCE ) == sequence ) {
+                return new Snapshot( sequence , timestamp , terminated , virtual , threadIds , threadNames , threadInstructions , blockCounts );
+            }
+        }
+        throw new IOException("Failed to read consistent snapshot after "+MAX_RETRIES+" attempts");
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        randomAccessFile.close();
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        File file = null;
+        long interval = 0;
+        boolean showBlocks = false;
+        try 
+        {
+            for ( int i = 0 ; i < args.length ; i++ ) 
+            {
+                switch( args[i] ) 
+                {
+                    case "-interval":
+                        interval = Long.parseLong( args[i+1] );
+                        i++;
+                        break;
+                    case "-blocks":
+                        showBlocks = true;
+                        break;
+                    default:
+                        file = new File( args[i] );
+                }
+            }
+            if ( file == null ) {
+                throw new RuntimeException("No file given");
+            }
+        } 
+        catch(Exception e) 
+        {
+            System.out.println("ERROR: "+e.getMessage());
+            printUsage();
+            return;
+        }
+        
+        try ( ProfileExportReader reader = new ProfileExportReader( file ) ) 
+        {
+            do {
+                dump( reader.read() , showBlocks );
+                if ( interval > 0 ) {
+                    Thread.sleep( interval );
+                }
+            } while ( interval > 0 );
+        }
+    }
+    
+    private static void printUsage() {
+        System.out.println("\n\nUsage: [-interval <millis>] [-blocks] <FILE>\n\n"+
+                "[-interval <millis>] => dump file repeatedly , waiting this many milliseconds in between\n"+
+                "[-blocks] => also dump non-zero block counters\n"+
+                "<FILE> => file written by the profiling agent's 'export' option\n\n");
+    }
+    
+    private static void dump(Snapshot snapshot,boolean showBlocks) 
+    {
+        System.out.println("=== Snapshot #"+snapshot.sequence+" ( "+new Date( snapshot.timestamp )+" ) ===");
+        for ( int i = 0 ; i < snapshot.threadIds.length ; i++ ) {
+            System.out.println("Thread #"+snapshot.threadIds[i]+" ("+snapshot.threadNames[i]+") : "+snapshot.threadInstructions[i]+" instructions");
+        }
+        System.out.println("Terminated threads : "+snapshot.terminatedThreadsInstructions+" instructions");
+        System.out.println("Virtual threads    : "+snapshot.virtualThreadsInstructions+" instructions");
+        System.out.println("Total instructions : "+snapshot.getTotalInstructions());
+        if ( showBlocks ) 
+        {
+            for ( int i = 0 ; i < snapshot.blockCounts.length ; i++ ) 
+            {
+                if ( snapshot.blockCounts[i] != 0 ) {
+                    System.out.println("Block #"+i+" : "+snapshot.blockCounts[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Periodically publishes per-thread instruction counts ({@link StatisticsManager}) and 
+ * per-block execution counts ({@link BlockHeatMap}) to a memory-mapped file so that
+ * other processes can sample them while the JVM is running.
+ * 
+ * <p>File layout (all values little-endian):</p>
+ * <pre>
+ * Header ({@link #HEADER_SIZE} bytes)
+ *    0  int   magic ({@link #MAGIC})
+ *    4  int   layout version ({@link #VERSION})
+ *    8  long  sequence number , odd while an update is in progress
+ *   16  long  time of last update (milliseconds since the epoch)
+ *   24  int   capacity of thread table (entries)
+ *   28  int   number of valid thread table entries
+ *   32  int   capacity of counter region (blocks)
+ *   36  int   number of valid block counters
+ *   40  long  instructions executed by threads that have terminated
+ *   48  int   offset of thread table
+ *   52  int   offset of counter region
+ *   56  long  instructions executed by virtual threads (see {@link StatisticsManager#getVirtualThreadsExecutedInstructionsCount()})
+ *   
+ * Thread table (capacity * {@link #THREAD_ENTRY_SIZE} bytes)
+ *    0  long  thread ID
+ *    8  long  executed instructions
+ *   16  48 bytes thread name (UTF-8 , zero-padded , truncated if necessary)
+ *   
+ * Counter region (capacity * 8 bytes)
+ *    long execution count of block #0 , #1 , ... (see {@link BlockHeatMap}) 
+ * </pre>
+ * 
+ * <p>Updates follow a sequence lock protocol: the sequence number is incremented to an odd value before
+ * and to an even value after the thread table and counter region are written. Readers have to 
+ * read the sequence number before and after reading the data and retry if the values differ or are odd. Writes
+ * to the mapped buffer are ordered using volatile fences , sampling the file does not interact 
+ * with the JVM in any way.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfileExportReader
+ */
+public class ProfileExporter
+{
+    public static final int MAGIC = 0x464f5250; // 'PROF'
+    public static final int VERSION = 1;
+    
+    public static final int HEADER_SIZE = 64;
+    
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VERSION = 4;
+    public static final int OFFSET_SEQUENCE = 8;
+    public static final int OFFSET_TIMESTAMP = 16;
+    public static final int OFFSET_THREAD_CAPACITY = 24;
+    public static final int OFFSET_THREAD_COUNT = 28;
+    public static final int OFFSET_BLOCK_CAPACITY = 32;
+    public static final int OFFSET_BLOCK_COUNT = 36;
+    public static final int OFFSET_TERMINATED_THREADS = 40;
+    public static final int OFFSET_THREAD_TABLE = 48;
+    public static final int OFFSET_COUNTER_REGION = 52;
+    public static final int OFFSET_VIRTUAL_THREADS = 56;
+    
+    public static final int THREAD_ENTRY_SIZE = 64;
+    public static final int THREAD_NAME_OFFSET = 16;
+    public static final int THREAD_NAME_LENGTH = THREAD_ENTRY_SIZE - THREAD_NAME_OFFSET;
+    
+    public static final int DEFAULT_THREAD_CAPACITY = 1024;
+    public static final int DEFAULT_BLOCK_CAPACITY = 1 << 20;
+    
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int threadCapacity;
+    private final int blockCapacity;
+    private final int threadTableOffset;
+    private final int counterRegionOffset;
+    private long sequence;
+    
+    // used to order writes to the mapped buffer 
+    private volatile long fence;
+    
+    /**
+     * Creates the export file with default capacities.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public ProfileExporter(File file) throws IOException 
+    {
+        this( file , DEFAULT_THREAD_CAPACITY , DEFAULT_BLOCK_CAPACITY );
+    }
+    
+    /**
+     * Creates the export file (an existing file gets overwritten).
+     * 
+     * @param file
+     * @param threadCapacity max. number of threads to export
+     * @param blockCapacity max. number of block counters to export
+     * @throws IOException
+     */
+    public ProfileExporter(File file,int threadCapacity,int blockCapacity) throws IOException 
+    {
+        if ( file == null ) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        if ( threadCapacity < 0 || blockCapacity < 0 ) {
+            throw new IllegalArgumentException("Capacities must not be negative");
+        }
+        final long size = HEADER_SIZE + (long) threadCapacity * THREAD_ENTRY_SIZE + (long) blockCapacity * 8;
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException("Export file would be too large ("+size+" bytes)");
+        }
+        this.file = file;
+        this.threadCapacity = threadCapacity;
+        this.blockCapacity = blockCapacity;
+        this.threadTableOffset = HEADER_SIZE;
+        this.counterRegionOffset = HEADER_SIZE + threadCapacity * THREAD_ENTRY_SIZE;
+        
+        randomAccessFile = new RandomAccessFile( file , "rw" );
+        try {
+            randomAccessFile.setLength( 0 );
+            randomAccessFile.setLength( size );
+            buffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE , 0 , size );
+        } 
+        catch(IOException e) 
+        {
+            randomAccessFile.close();
+            throw e;
+        }
+        buffer.order( ByteOrder.LITTLE_ENDIAN );
+        
+        buffer.putInt( OFFSET_VERSION , VERSION );
+        buffer.putInt( OFFSET_THREAD_CAPACITY , threadCapacity );
+        buffer.putInt( OFFSET_BLOCK_CAPACITY , blockCapacity );
+        buffer.putInt( OFFSET_THREAD_TABLE , threadTableOffset );
+        buffer.putInt( OFFSET_COUNTER_REGION , counterRegionOffset );
+        // readers check the magic last
+        orderWrites();
+        buffer.putInt( OFFSET_MAGIC , MAGIC );
+    }
+    
+    /*
+     * Keeps writes to the mapped buffer from being re-ordered across this call: earlier
+     * stores cannot move past the volatile write , later stores cannot move ahead of the volatile read.
+     */
+    private void orderWrites() 
+    {
+        fence = sequence;
+        sequence = fence;
+    }
+    
+    /**
+     * Returns the export file.
+     * 
+     * @return
+     */
+    public File getFile()
+    {
+        return file;
+    }
+    
+    /**
+     * Writes the current counts to the file.
+     */
+    public synchronized void publish() 
+    {
+        final Map<Thread,Long> threads = StatisticsManager.getLiveThreadCounts();
+        final long terminated = StatisticsManager.getTerminatedThreadsCount();
+        final long virtual = StatisticsManager.getVirtualThreadsExecutedInstructionsCount();
+        final int blockCount = Math.min( blockCapacity , BlockHeatMap.getBlockIdCount() );
+        
+        // sequence := odd , must become visible before any of the data
+        buffer.putLong( OFFSET_SEQUENCE , ++sequence );
+        orderWrites();
+        
+        int threadCount = 0;
+        final byte[] name = new byte[ THREAD_NAME_LENGTH ];
+        for ( Map.Entry<Thread,Long> entry : threads.entrySet() ) 
+        {
+            if ( threadCount == threadCapacity ) {
+                break;
+            }
+            final int offset = threadTableOffset + threadCount * THREAD_ENTRY_SIZE;
+            buffer.putLong( offset , entry.getKey().getId() );
+            buffer.putLong( offset + 8 , entry.getValue() );
+            final byte[] bytes = entry.getKey().getName().getBytes( UTF8 );
+            final int len = Math.min( bytes.length , THREAD_NAME_LENGTH );
+            System.arraycopy( bytes , 0 , name , 0 , len );
+            for ( int i = len ; i < THREAD_NAME_LENGTH ; i++ ) {
+                name[i] = 0;
+            }
+            for ( int i = 0 ; i < THREAD_NAME_LENGTH ; i++ ) {
+                buffer.put( offset + THREAD_NAME_OFFSET + i , name[i] );
+            }
+            threadCount++;
+        }
+        
+        for ( int block = 0 ; block < blockCount ; block++ ) {
+            buffer.putLong( counterRegionOffset + block * 8 , BlockHeatMap.getExecutionCount( block ) );
+        }
+        
+        buffer.putLong( OFFSET_TIMESTAMP , System.currentTimeMillis() );
+        buffer.putInt( OFFSET_THREAD_COUNT , threadCount );
+        buffer.putInt( OFFSET_BLOCK_COUNT , blockCount );
+        buffer.putLong( OFFSET_TERMINATED_THREADS , terminated );
+        buffer.putLong( OFFSET_VIRTUAL_THREADS , virtual );
+        
+        // sequence := even , all data must be visible before 
+        orderWrites();
+        buffer.putLong( OFFSET_SEQUENCE , ++sequence );
+    }
+    
+    /**
+     * Starts a daemon thread that invokes {@link #publish()} periodically.
+     * 
+     * @param intervalMillis
+     * @return the started thread , interrupt it to stop publishing
+     */
+    public Thread start(final long intervalMillis) 
+    {
+        if ( intervalMillis <= 0 ) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        final Thread result = new Thread("profile-export") {
+            
+            @Override
+            public void run()
+            {
+                while ( ! isInterrupted() ) 
+                {
+                    publish();
+                    try {
+                        Thread.sleep( intervalMillis );
+                    } 
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        result.setDaemon( true );
+        result.start();
+        return result;
+    }
+    
+    /**
+     * Publishes the counts one last time and closes the file.
+     */
+    public synchronized void close() 
+    {
+        publish();
+        buffer.force();
+        try {
+            randomAccessFile.close();
+        } 
+        catch(IOException e) {
+            // ok
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import de.codesourcery.asm.profiling.BlockHeatMap.MethodBlocks;
+
+/**
+ * Default implementation of {@link IProfilingStatistics}.
+ * 
+ * <p>Resetting takes a copy of all current counts (the baseline) that gets subtracted from
+ * all values reported afterwards , instrumented code keeps updating its counters undisturbed.</p>
+ * 
+ * <p>Counts are read without flushing the calling thread's counter , so threads that merely query 
+ * statistics (JMX , HTTP) do not get registered as profiled threads.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ProfilingStatistics implements IProfilingStatistics
+{
+    private static final Comparator<ProfileEntry> BY_EXECUTED_INSTRUCTIONS = new Comparator<ProfileEntry>() {
+
+        @Override
+        public int compare(ProfileEntry o1, ProfileEntry o2)
+        {
+            return Long.compare( o1.getExecutedInstructions() , o2.getExecutedInstructions() );
+        }
+    };
+    
+    private static final Comparator<ProfileEntry> BY_EXECUTION_COUNT = new Comparator<ProfileEntry>() {
+        
+        @Override
+        public int compare(ProfileEntry o1, ProfileEntry o2)
+        {
+            return Long.compare( o1.getExecutionCount() , o2.getExecutionCount() );
+        }
+    };
+    
+    private volatile Baseline baseline = new Baseline();
+    
+    // counts at the time of the last reset
+    private static final class Baseline 
+    {
+        public final Map<Long,Long> threads = new HashMap<>();
+        public long terminatedThreads;
+        public long virtualThreads;
+        public long[] blocks = new long[0];
+        public final Map<IMethodProfile,long[]> methods = new IdentityHashMap<>();
+        
+        public long getThread(long id) 
+        {
+            final Long result = threads.get( id );
+            return result != null ? result : 0;
+        }
+        
+        public long getBlock(int blockId) 
+        {
+            return blockId < blocks.length ? blocks[ blockId ] : 0;
+        }
+    }
+    
+    @Override
+    public long getTotalExecutedInstructions()
+    {
+        return snapshot().getTotalExecutedInstructions();
+    }
+    
+    @Override
+    public long getTerminatedThreadsExecutedInstructions()
+    {
+        final Baseline base = baseline;
+        final Map<Thread,Long> live = StatisticsManager.getLiveThreadCounts();
+        long result = StatisticsManager.getTerminatedThreadsCount() - base.terminatedThreads;
+        
+        // threads that terminated after the reset had part of their count in the baseline
+        final Map<Long,Long> terminated = new HashMap<>( base.threads );
+        for ( Thread thread : live.keySet() ) {
+            terminated.remove( thread.getId() );
+        }
+        for ( long count : terminated.values() ) {
+            result -= count;
+        }
+        return result;
+    }
+    
+    @Override
+    public long getVirtualThreadsExecutedInstructions()
+    {
+        return StatisticsManager.getVirtualThreadsExecutedInstructionsCount() - baseline.virtualThreads;
+    }
+    
+    @Override
+    public List<ThreadStatistics> getThreads()
+    {
+        return snapshot().getThreads();
+    }
+    
+    @Override
+    public StatisticsSnapshot snapshot()
+    {
+        final Baseline base = baseline;
+        final long timestamp = System.currentTimeMillis();
+        final Map<Thread,Long> live = StatisticsManager.getLiveThreadCounts();
+        
+        long total = StatisticsManager.getTerminatedThreadsCount() + StatisticsManager.getVirtualThreadsExecutedInstructionsCount();
+        final List<ThreadStatistics> threads = new ArrayList<>( live.size() );
+        for ( Map.Entry<Thread,Long> entry : live.entrySet() ) 
+        {
+            final Thread thread = entry.getKey();
+            total += entry.getValue();
+            threads.add( new ThreadStatistics( thread.getName() , thread.getId() , thread.getState().name() , 
+                    entry.getValue() - base.getThread( thread.getId() ) ) );
+        }
+        
+        long baseTotal = base.terminatedThreads + base.virtualThreads;
+        for ( long count : base.threads.values() ) {
+            baseTotal += count;
+        }
+        return new StatisticsSnapshot( timestamp , total - baseTotal , threads );
+    }
+    
+    @Override
+    public List<ProfileEntry> getHotMethods(int limit)
+    {
+        final Baseline base = baseline;
+        final PriorityQueue<ProfileEntry> result = createHeap( limit , BY_EXECUTED_INSTRUCTIONS );
+        for ( IMethodProfile profile : MethodProfileRegistry.getProfiles() ) 
+        {
+            final long[] previous = base.methods.get( profile );
+            final long invocations = profile.getInvocationCount() - ( previous != null ? previous[0] : 0 );
+            if ( invocations != 0 ) 
+            {
+                final long instructions = profile.getExecutedInstructionCount() - ( previous != null ? previous[1] : 0 );
+                add( result , limit , new ProfileEntry( describe( profile ) , invocations , instructions ) , BY_EXECUTED_INSTRUCTIONS );
+            }
+        }
+        for ( MethodBlocks method : BlockHeatMap.getMethods() ) 
+        {
+            long instructions = 0;
+            for ( int i = 0 ; i < method.instructionCount.length ; i++ ) {
+                instructions += getBlockCount( base , method.firstBlockId + i ) * method.instructionCount[i];
+            }
+            if ( instructions != 0 ) 
+            {
+                final String name = method.className+"#"+method.methodName+method.methodDescriptor;
+                add( result , limit , new ProfileEntry( name , getBlockCount( base , method.firstBlockId ) , instructions ) , BY_EXECUTED_INSTRUCTIONS );
+            }
+        }
+        return sortDescending( result , BY_EXECUTED_INSTRUCTIONS );
+    }
+    
+    @Override
+    public List<ProfileEntry> getHotBlocks(int limit)
+    {
+        final Baseline base = baseline;
+        final PriorityQueue<ProfileEntry> result = createHeap( limit , BY_EXECUTION_COUNT );
+        for ( MethodBlocks method : BlockHeatMap.getMethods() ) 
+        {
+            for ( int i = 0 ; i < method.instructionCount.length ; i++ ) 
+            {
+                final long count = getBlockCount( base , method.firstBlockId + i );
+                // only describe blocks that make it into the result
+                if ( count != 0 && ( result.size() < limit || count > result.peek().getExecutionCount() ) ) {
+                    add( result , limit , new ProfileEntry( method.describe( i ) , count , count * method.instructionCount[i] ) , BY_EXECUTION_COUNT );
+                }
+            }
+        }
+        return sortDescending( result , BY_EXECUTION_COUNT );
+    }
+    
+    @Override
+    public synchronized void reset()
+    {
+        final Baseline result = new Baseline();
+        for ( Map.Entry<Thread,Long> entry : StatisticsManager.getLiveThreadCounts().entrySet() ) {
+            result.threads.put( entry.getKey().getId() , entry.getValue() );
+        }
+        result.terminatedThreads = StatisticsManager.getTerminatedThreadsCount();
+        result.virtualThreads = StatisticsManager.getVirtualThreadsExecutedInstructionsCount();
+        
+        final int blockIds = BlockHeatMap.getBlockIdCount();
+        result.blocks = new long[ blockIds ];
+        for ( int i = 0 ; i < blockIds ; i++ ) {
+            result.blocks[i] = BlockHeatMap.getExecutionCount( i );
+        }
+        for ( IMethodProfile profile : MethodProfileRegistry.getProfiles() ) {
+            result.methods.put( profile , new long[] { profile.getInvocationCount() , profile.getExecutedInstructionCount() } );
+        }
+        baseline = result;
+    }
+    
+    private static long getBlockCount(Baseline base,int blockId) 
+    {
+        return BlockHeatMap.getExecutionCount( blockId ) - base.getBlock( blockId );
+    }
+    
+    private static String describe(IMethodProfile profile) 
+    {
+        return profile.getClassName()+"#"+profile.getMethodName()+profile.getMethodDescriptor();
+    }
+    
+    private static PriorityQueue<ProfileEntry> createHeap(int limit,Comparator<ProfileEntry> comparator) 
+    {
+        if ( limit < 0 ) {
+            throw new IllegalArgumentException("Limit must be >= 0");
+        }
+        return new PriorityQueue<>( Math.max( 1 , Math.min( limit , 1024 ) ) , comparator );
+    }
+    
+    /*
+     * Keeps the 'limit' largest entries , the smallest one is at the head of the queue.
+     */
+    private static void add(PriorityQueue<ProfileEntry> heap,int limit,ProfileEntry entry,Comparator<ProfileEntry> comparator) 
+    {
+        if ( heap.size() < limit ) {
+            heap.add( entry );
+        } 
+        else if ( limit > 0 && comparator.compare( entry , heap.peek() ) > 0 ) 
+        {
+            heap.poll();
+            heap.add( entry );
+        }
+    }
+    
+    private static List<ProfileEntry> sortDescending(PriorityQueue<ProfileEntry> heap,Comparator<ProfileEntry> comparator) 
+    {
+        final List<ProfileEntry> result = new ArrayList<>( heap );
+        Collections.sort( result , Collections.reverseOrder( comparator ) );
+        return result;
+    }
+}
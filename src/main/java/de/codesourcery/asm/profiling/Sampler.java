@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Decides whether a sampled method invocation should execute the instrumented or the 
+ * uninstrumented version of the method's code.
+ * 
+ * <p>Each thread keeps a private countdown that is decremented on every invocation of a sampled method, 
+ * when it reaches zero the instrumented version gets executed and the countdown is reset. To avoid 
+ * systematically missing methods whose invocations are interleaved with a fixed period , the countdown is 
+ * reset to a pseudo-random value uniformly distributed in <code>[1 , 2*interval-1]</code> so that on average every 
+ * <code>interval</code>-th invocation is sampled. The initial countdown of each thread is drawn from the same distribution ,
+ * otherwise the first invocation on every thread (typically a long-running method like <code>run()</code>) would always 
+ * be sampled and overestimated.</p>
+ * 
+ * <p>Instrumented code adds <code>interval</code> instead of 1 to its counters , so profiles contain estimates
+ * of the actual execution counts.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setSamplingInterval(int)
+ */
+public final class Sampler
+{
+    // [0] = countdown (0 = not started yet) , [1] = xorshift random state
+    private static final ThreadLocal<int[]> STATE = new ThreadLocal<int[]>() {
+        
+        @Override
+        protected int[] initialValue()
+        {
+            final int seed = (int) ( Thread.currentThread().getId() * 0x9E3779B97F4A7C15L ^ System.nanoTime() );
+            return new int[] { 0 , seed != 0 ? seed : 1 };
+        }
+    };
+    
+    private Sampler() {
+    }
+    
+    /**
+     * Invoked by generated byte-code at the start of each sampled method.
+     * 
+     * @param interval average number of invocations between two samples 
+     * @return <code>true</code> if the instrumented version of the method should be executed
+     */
+    public static boolean sample(int interval) 
+    {
+        final int[] state = STATE.get();
+        if ( state[0] == 0 ) {
+            state[0] = nextCountdown( state , interval );
+        }
+        if ( --state[0] > 0 ) {
+            return false;
+        }
+        state[0] = nextCountdown( state , interval );
+        return true;
+    }
+    
+    // uniformly distributed in [1 , 2*interval-1]
+    private static int nextCountdown(int[] state,int interval) 
+    {
+        int random = state[1];
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        state[1] = random;
+        return 1 + (int) ( ( random & 0x7fffffffL ) % ( 2L * interval - 1 ) );
+    }
+}
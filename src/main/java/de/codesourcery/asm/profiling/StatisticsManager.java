@@ -15,13 +15,44 @@
  */
 package de.codesourcery.asm.profiling;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.codesourcery.asm.rewrite.ProfilingRewriter;
 
 /**
  * Gathers per-thread execution statistics (currently only the number of executed instructions).
  * 
+ * <p>Generated byte-code only updates a plain counter in the current thread's {@link ExecutionStatistics}
+ * and calls {@link #account(ExecutionStatistics)} whenever the number of instructions executed since the last call
+ * exceeds the flush threshold ({@link #getGranularity()}). 
+ * Counts that have not been flushed yet are picked up when a thread queries its own count,
+ * when a snapshot of all threads is taken ({@link #snapshot()}, {@link #getTotalExecutedInstructionsCount()})
+ * and once a thread has terminated, so totals stay exact regardless of the threshold.</p>
+ * 
+ * <p>Each thread owns a cache-line padded counter cell that gets registered in a lock-free list
+ * the first time the thread executes instrumented code, readers aggregate counts by scanning this list.
+ * Updating the counters neither allocates nor contends with other threads.</p>
+ * 
+ * <p>Virtual threads (detected via reflection , so this class still works on JVMs without virtual threads) 
+ * neither use a thread-local nor get a cell of their own. They share a fixed pool of cells instead , picked by 
+ * thread ID , so the footprint does not depend on the number of virtual threads. Their counts are only available 
+ * as a total ({@link #getVirtualThreadsExecutedInstructionsCount()}) unless attributed to an {@link ExecutionScope} , 
+ * there are no per-virtual-thread counts.</p>
+ * 
+ * <p>Since virtual threads mapped to the same shared cell may run concurrently on different carrier threads , generated code
+ * does not batch counts in shared cells but adds the count of every block atomically via {@link #accountShared(ExecutionStatistics, int)}.
+ * This keeps the total of all virtual threads exact at the price of one atomic add per executed block. Code running inside an 
+ * {@link ExecutionScope} uses the scope's own cell (only ever written by the thread that opened the scope) and takes the 
+ * same cheap batched path as platform threads.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * @see ProfilingRewriter
  * @see ExecutionStatistics 
@@ -29,18 +60,44 @@ import de.codesourcery.asm.rewrite.ProfilingRewriter;
 public class StatisticsManager
 {
     /**
-     * Defines how many instructions to execute before calling {@link #account()}.
+     * Default number of instructions to execute before calling {@link #account(ExecutionStatistics)}.
      */
-    public static final int GRANULARITY = 1; 
+    public static final int DEFAULT_GRANULARITY = 100000; 
+    
+    /**
+     * Max. flush threshold, leaves enough head-room so that adding the 
+     * instruction count of a basic block never overflows {@link ExecutionStatistics#executedInstructionCount}.
+     */
+    public static final int MAX_GRANULARITY = Integer.MAX_VALUE / 2;
     
     private static final StatisticsManager INSTANCE = new StatisticsManager();
     
-    private static final ConcurrentHashMap<Thread,Long> executionCounts = new ConcurrentHashMap<Thread,Long>();
+    private static volatile int granularity = DEFAULT_GRANULARITY;
+    
+    // head of lock-free list of all counter cells ever created , cells are never unlinked but re-used 
+    private static final AtomicReference<ExecutionStatistics> cells = new AtomicReference<>();
+    
+    // instructions executed by threads that have already terminated
+    private static final AtomicLong terminatedThreadsCount = new AtomicLong();
+    
+    private static final MethodHandle IS_VIRTUAL = createIsVirtual();
+    
+    // cells shared by virtual threads
+    private static final ExecutionStatistics[] virtualThreadCells = createVirtualThreadCells();
+    
+    // cells of the innermost scope open on each virtual thread
+    private static final ConcurrentHashMap<Thread,ExecutionStatistics> virtualThreadScopes = new ConcurrentHashMap<>();
+    private static final AtomicInteger openVirtualThreadScopes = new AtomicInteger();
+    
+    // number of entries in virtualThreadScopes that triggers removal of scopes left open by terminated threads
+    private static final int MIN_SCOPE_PURGE_THRESHOLD = 1024;
+    private static volatile int scopePurgeThreshold = MIN_SCOPE_PURGE_THRESHOLD;
     
     private static final ThreadLocal<ExecutionStatistics> statistics = new ThreadLocal<ExecutionStatistics>()  {
         
-        protected ExecutionStatistics initialValue() {
-            return new ExecutionStatistics() ;
+        protected ExecutionStatistics initialValue() 
+        {
+            return claimCell();
         }
     };
     
@@ -48,35 +105,346 @@ public class StatisticsManager
         return INSTANCE;
     }
     
-    public static long getExecutedInstructionsCount() {
-        final Thread current = Thread.currentThread();
-        Long existing = executionCounts.get( current );        
-        return existing == null ? 0 : existing.longValue(); 
+    private static MethodHandle createIsVirtual() 
+    {
+        try {
+            return MethodHandles.publicLookup().findVirtual( Thread.class , "isVirtual" , MethodType.methodType( boolean.class ) );
+        } 
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            // JVM without virtual threads
+            return MethodHandles.dropArguments( MethodHandles.constant( boolean.class , false ) , 0 , Thread.class );
+        }
     }
-    public static ExecutionStatistics getStatistics() {
-        return statistics.get();
+    
+    private static ExecutionStatistics[] createVirtualThreadCells() 
+    {
+        int size = 1;
+        while ( size < Runtime.getRuntime().availableProcessors() * 4 ) {
+            size <<= 1;
+        }
+        final ExecutionStatistics[] result = new ExecutionStatistics[ size ];
+        for ( int i = 0 ; i < size ; i++ ) {
+            result[i] = ExecutionStatistics.createUnowned( granularity , true );
+        }
+        return result;
     }
     
     /**
-     * Invoked periodically by generated byte-code whenever the {@link ExecutionStatistics#executedInstructionCount}
-     * reaches zero or a positive value.
+     * Returns whether a thread is a virtual thread.
+     * 
+     * @param thread
+     * @return <code>false</code> if the JVM does not support virtual threads
+     */
+    public static boolean isVirtual(Thread thread) 
+    {
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact( thread );
+        } 
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException( e );
+        }
+    }
+    
+    /**
+     * Sets the number of instructions a thread executes before calling {@link #account(ExecutionStatistics)}.
+     * 
+     * <p>Threads pick up the new value the next time they flush their counts.</p>
+     * 
+     * @param value threshold , must be between 1 and {@link #MAX_GRANULARITY}
+     */
+    public static void setGranularity(int value) 
+    {
+        if ( value < 1 || value > MAX_GRANULARITY ) {
+            throw new IllegalArgumentException("Granularity must be between 1 and "+MAX_GRANULARITY+" but was "+value);
+        }
+        granularity = value;
+    }
+    
+    /**
+     * Returns the number of instructions a thread executes before calling {@link #account(ExecutionStatistics)}.
+     * 
+     * @return
+     */
+    public static int getGranularity() {
+        return granularity;
+    }
+    
+    /**
+     * Returns the exact number of instructions executed by the current thread.
+     * 
+     * <p>Counts of virtual threads are not tracked per thread , when invoked by a virtual thread
+     * this method returns the instructions executed in the innermost open {@link ExecutionScope} 
+     * or 0 if there is none.</p>
      * 
+     * @return
      */
-    public static void account() 
+    public static long getExecutedInstructionsCount() 
     {
-        final ExecutionStatistics stat = getStatistics();
         final Thread current = Thread.currentThread();
-        Long existing = executionCounts.get( current );
-        if ( existing == null ) {
-            existing = Long.valueOf( stat.executedInstructionCount+GRANULARITY );
+        final ExecutionStatistics stat;
+        if ( isVirtual( current ) ) 
+        {
+            stat = virtualThreadScopes.get( current );
+            if ( stat == null ) {
+                return 0;
+            }
         } else {
-            existing = Long.valueOf( existing.longValue() + stat.executedInstructionCount+GRANULARITY );
+            stat = statistics.get();
+        }
+        stat.flush( granularity );
+        return stat.getAccountedInstructionCount();
+    }
+    
+    public static ExecutionStatistics getStatistics() 
+    {
+        final Thread current = Thread.currentThread();
+        if ( ! isVirtual( current ) ) {
+            return statistics.get();
+        }
+        if ( openVirtualThreadScopes.get() > 0 ) 
+        {
+            final ExecutionStatistics scope = virtualThreadScopes.get( current );
+            if ( scope != null ) {
+                return scope;
+            }
+        }
+        return getVirtualThreadCell( current );
+    }
+    
+    private static ExecutionStatistics getVirtualThreadCell(Thread thread) 
+    {
+        return virtualThreadCells[ (int) thread.getId() & ( virtualThreadCells.length - 1 ) ];
+    }
+    
+    /**
+     * Opens a scope that counts the instructions executed by the current thread until it gets closed.
+     * 
+     * @param name
+     * @return
+     * @see ExecutionScope#close()
+     */
+    public static ExecutionScope openScope(String name) 
+    {
+        final Thread current = Thread.currentThread();
+        if ( ! isVirtual( current ) ) 
+        {
+            final ExecutionStatistics stat = statistics.get();
+            stat.flush( granularity );
+            return new ExecutionScope( name , current , stat , stat.getAccountedInstructionCount() , false , null );
+        }
+        
+        if ( virtualThreadScopes.size() > scopePurgeThreshold ) {
+            purgeTerminatedScopes();
+        }
+        final ExecutionStatistics cell = ExecutionStatistics.createUnowned( granularity , false );
+        final ExecutionStatistics previous = virtualThreadScopes.put( current , cell );
+        if ( previous == null ) {
+            openVirtualThreadScopes.incrementAndGet();
+        }
+        return new ExecutionScope( name , current , cell , 0 , true , previous );
+    }
+    
+    static void closeScope(ExecutionScope scope) 
+    {
+        if ( scope.isClosed() ) {
+            return;
+        }
+        final Thread current = Thread.currentThread();
+        if ( scope.getThread() != current ) {
+            throw new IllegalStateException("Scope '"+scope.getName()+"' must be closed by the thread that opened it");
+        }
+        final ExecutionStatistics cell = scope.getCell();
+        if ( scope.isVirtual() && virtualThreadScopes.get( current ) != cell ) {
+            throw new IllegalStateException("Scope '"+scope.getName()+"' must be closed after all scopes opened later on");
         }
-        executionCounts.put( current , existing );
         
+        cell.flush( granularity );
+        final long count = cell.getAccountedInstructionCount() - scope.getStart();
+        if ( scope.isVirtual() ) 
+        {
+            // hand over count to the enclosing scope or the shared cells
+            final ExecutionStatistics previous = scope.getPrevious();
+            if ( previous != null ) 
+            {
+                virtualThreadScopes.put( current , previous );
+                previous.addAccounted( count );
+                cell.forwardTo( previous );
+            } 
+            else 
+            {
+                virtualThreadScopes.remove( current );
+                openVirtualThreadScopes.decrementAndGet();
+                final ExecutionStatistics shared = getVirtualThreadCell( current );
+                shared.addAccounted( count );
+                cell.forwardTo( shared );
+            }
+        }
+        scope.setCount( count );
+    }
+    
+    /*
+     * Removes scopes left open by virtual threads that have terminated.
+     */
+    private static void purgeTerminatedScopes() 
+    {
+        for ( Map.Entry<Thread,ExecutionStatistics> entry : virtualThreadScopes.entrySet() ) 
+        {
+            if ( ! entry.getKey().isAlive() && virtualThreadScopes.remove( entry.getKey() , entry.getValue() ) ) 
+            {
+                openVirtualThreadScopes.decrementAndGet();
+                getVirtualThreadCell( entry.getKey() ).addAccounted( entry.getValue().getTotalInstructionCount() );
+            }
+        }
+        scopePurgeThreshold = Math.max( MIN_SCOPE_PURGE_THRESHOLD , virtualThreadScopes.size() * 2 );
+    }
+    
+    /**
+     * Flushes the instruction count of the current thread.
+     */
+    public static void flush() 
+    {
+        getStatistics().flush( granularity );
+    }
+    
+    /**
+     * Returns the number of instructions executed by each thread that is still alive.
+     * 
+     * <p>The count of the current thread is exact , counts of other threads include all
+     * instructions executed up to their last flush plus a best-effort read of their pending count.</p>
+     * 
+     * @return
+     */
+    public static Map<Thread,Long> snapshot() 
+    {
+        flush();
+        return getLiveThreadCounts();
+    }
+    
+    /**
+     * Returns the number of instructions executed by each thread that is still alive
+     * without flushing the current thread's count first.
+     * 
+     * @return
+     */
+    static Map<Thread,Long> getLiveThreadCounts() 
+    {
+        purgeTerminatedThreads();
+        final Map<Thread,Long> result = new HashMap<>();
+        for ( ExecutionStatistics cell = cells.get() ; cell != null ; cell = cell.next ) 
+        {
+            final Thread owner = cell.getThread();
+            if ( owner != null ) {
+                result.put( owner , cell.getTotalInstructionCount() );
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of instructions executed by all virtual threads outside of open scopes.
+     * 
+     * @return
+     */
+    public static long getVirtualThreadsExecutedInstructionsCount() 
+    {
+        long result = 0;
+        for ( ExecutionStatistics cell : virtualThreadCells ) {
+            result += cell.getTotalInstructionCount();
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of instructions executed by all threads, including 
+     * threads that have already terminated and virtual threads.
+     * 
+     * @return
+     * @see #snapshot()
+     */
+    public static long getTotalExecutedInstructionsCount() 
+    {
+        long result = 0;
+        for ( long count : snapshot().values() ) {
+            result += count;
+        }
+        return result + terminatedThreadsCount.get() + getVirtualThreadsExecutedInstructionsCount();
+    }
+    
+    /**
+     * Returns the number of instructions executed by threads that have already terminated.
+     * 
+     * @return
+     */
+    static long getTerminatedThreadsCount() 
+    {
+        return terminatedThreadsCount.get();
+    }
+    
+    /*
+     * Assigns a counter cell to the current thread , re-using the cell
+     * of a terminated thread if possible.
+     */
+    private static ExecutionStatistics claimCell() 
+    {
+        purgeTerminatedThreads();
+        for ( ExecutionStatistics cell = cells.get() ; cell != null ; cell = cell.next ) 
+        {
+            if ( cell.tryClaim( granularity ) ) {
+                return cell;
+            }
+        }
+        final ExecutionStatistics result = new PaddedExecutionStatistics();
+        result.tryClaim( granularity );
+        ExecutionStatistics head;
+        do {
+            head = cells.get();
+            result.next = head;
+        } while ( ! cells.compareAndSet( head , result ) );
+        return result;
+    }
+    
+    /*
+     * Folds the counts of terminated threads into terminatedThreadsCount 
+     * and makes their cells available for re-use.
+     */
+    private static void purgeTerminatedThreads() 
+    {
+        for ( ExecutionStatistics cell = cells.get() ; cell != null ; cell = cell.next ) 
+        {
+            final long count = cell.tryRetire();
+            if ( count != -1 ) {
+                terminatedThreadsCount.addAndGet( count );
+            }
+        }
+    }
+    
+    /**
+     * Invoked periodically by generated byte-code whenever the {@link ExecutionStatistics#executedInstructionCount}
+     * reaches zero or a positive value.
+     * 
+     * @param stat the cell the generated code has been incrementing , this is the cell {@link #getStatistics()} returned
+     * on method entry and may differ from the current one if a scope has been opened or closed in the meantime
+     */
+    public static void account(ExecutionStatistics stat) 
+    {
         // generated bytecode increments executedInstructionCount by the number of 
         // instructions in the current block and invokes account() whenever the
         // counter is >= 0
-        stat.executedInstructionCount = -GRANULARITY;
+        stat.flush( granularity );
+    }
+    
+    /**
+     * Invoked by generated byte-code for every executed block if the current cell is {@link ExecutionStatistics#shared shared}
+     * by several virtual threads.
+     * 
+     * @param stat the cell {@link #getStatistics()} returned on method entry
+     * @param count number of instructions executed
+     */
+    public static void accountShared(ExecutionStatistics stat,int count) 
+    {
+        stat.addAccounted( count );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Instruction counts of all threads , taken at the same time.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see IProfilingStatistics#snapshot()
+ */
+public final class StatisticsSnapshot
+{
+    private final long timestamp;
+    private final long totalExecutedInstructions;
+    private final List<ThreadStatistics> threads;
+    
+    @ConstructorProperties({"timestamp","totalExecutedInstructions","threads"})
+    public StatisticsSnapshot(long timestamp, long totalExecutedInstructions, List<ThreadStatistics> threads)
+    {
+        if ( threads == null ) {
+            throw new IllegalArgumentException("threads must not be NULL.");
+        }
+        this.timestamp = timestamp;
+        this.totalExecutedInstructions = totalExecutedInstructions;
+        this.threads = Collections.unmodifiableList( new ArrayList<>( threads ) );
+    }
+    
+    /**
+     * Returns the time this snapshot was taken.
+     * 
+     * @return milliseconds since the epoch
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+    
+    /**
+     * Returns the number of instructions executed by all threads.
+     * 
+     * @return
+     * @see IProfilingStatistics#getTotalExecutedInstructions()
+     */
+    public long getTotalExecutedInstructions()
+    {
+        return totalExecutedInstructions;
+    }
+    
+    public List<ThreadStatistics> getThreads()
+    {
+        return threads;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Number of instructions executed by a single thread.
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see IProfilingStatistics#getThreads()
+ */
+public final class ThreadStatistics
+{
+    private final String name;
+    private final long id;
+    private final String state;
+    private final long executedInstructions;
+    
+    @ConstructorProperties({"name","id","state","executedInstructions"})
+    public ThreadStatistics(String name, long id, String state, long executedInstructions)
+    {
+        this.name = name;
+        this.id = id;
+        this.state = state;
+        this.executedInstructions = executedInstructions;
+    }
+    
+    public String getName()
+    {
+        return name;
+    }
+    
+    public long getId()
+    {
+        return id;
+    }
+    
+    /**
+     * Returns the thread's state.
+     * 
+     * @return name of a {@link Thread.State} constant
+     */
+    public String getState()
+    {
+        return state;
+    }
+    
+    public long getExecutedInstructions()
+    {
+        return executedInstructions;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return name+" ( ID "+id+" , "+state+" ) : "+executedInstructions+" instructions";
+    }
+}
@@ -0,0 +1,639 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.Edge;
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.controlflow.MethodEntry;
+import de.codesourcery.asm.controlflow.MethodExit;
+
+/**
+ * Abstract base class for instrumenters that attach code to the edges of a method's profiling graph.
+ *
+ * <p>The profiling graph consists of a virtual method-entry node ({@link #ENTRY}) , a virtual method-exit node ({@link #EXIT})
+ * and one node per basic block. Edges are the regular control-flow edges of the method's control-flow graph ,
+ * edges from blocks ending with ATHROW to the method exit , one edge from the method entry to each exception handler
+ * and a virtual edge from method exit to method entry. Edge #0 always is the edge from the method entry to the first block ,
+ * edges starting at blocks that are unreachable from the method entry are omitted.</p>
+ *
+ * <p>Code gets attached to an edge as follows:</p>
+ * <ul>
+ *   <li>at the end of the source block if it has only one successor</li>
+ *   <li>at the start of the destination block if it has only one predecessor</li>
+ *   <li>between source and destination block if the edge is a fall-through</li>
+ *   <li>otherwise inside a trampoline at the end of the method that the jump/switch instruction (or the exception handler)
+ *   gets redirected to</li>
+ * </ul>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EdgeProfilingInstrumenter
+ * @see PathProfilingInstrumenter
+ */
+public abstract class AbstractProfilingInstrumenter implements Opcodes
+{
+    /**
+     * Index of the virtual method-entry node.
+     */
+    public static final int ENTRY = 0;
+
+    /**
+     * Index of the virtual method-exit node.
+     */
+    public static final int EXIT = 1;
+
+    protected final String className;
+    protected final MethodNode method;
+    protected final ControlFlowGraph graph;
+
+    protected AbstractInsnNode[] instructions;
+
+    // profiling graph nodes
+    protected int nodeCount;
+    protected int[] nodeOfInstruction;
+    protected int[] nodeFirst;
+    protected int[] nodeLast;
+    protected int[] nodeFirstByteCode;
+    protected int[] nodeLastByteCode;
+    protected int[] nodeInstructionCount;
+
+    // profiling graph edges
+    private final List<int[]> edges = new ArrayList<>();
+    private final List<Boolean> handlerEdges = new ArrayList<>();
+    protected int[] succCount;
+    protected int[] predCount;
+
+    private int counterIncrement = 1;
+
+    /**
+     * Create instance.
+     *
+     * @param className fully-qualified name of the class the method belongs to
+     * @param graph control-flow graph of the method to instrument
+     */
+    protected AbstractProfilingInstrumenter(String className,ControlFlowGraph graph)
+    {
+        if ( graph == null ) {
+            throw new IllegalArgumentException("graph must not be NULL.");
+        }
+        this.className = className;
+        this.graph = graph;
+        this.method = graph.getMethod();
+    }
+
+    /**
+     * Sets the value generated code adds to counters for each execution.
+     *
+     * <p>Used to scale counts when only some invocations execute the instrumented code.</p>
+     *
+     * @param counterIncrement
+     * @see ProfilingRewriter#setSamplingInterval(int)
+     */
+    public final void setCounterIncrement(int counterIncrement)
+    {
+        if ( counterIncrement < 1 ) {
+            throw new IllegalArgumentException("Counter increment must be >= 1 , was: "+counterIncrement);
+        }
+        this.counterIncrement = counterIncrement;
+    }
+
+    protected final int getCounterIncrement()
+    {
+        return counterIncrement;
+    }
+
+    /**
+     * Pushes the counter increment as a <code>long</code> value.
+     *
+     * @return
+     * @see #setCounterIncrement(int)
+     */
+    protected final AbstractInsnNode pushCounterIncrement()
+    {
+        return counterIncrement == 1 ? new InsnNode( LCONST_1 ) : new LdcInsnNode( Long.valueOf( counterIncrement ) );
+    }
+
+    /**
+     * Creates the profiling graph.
+     *
+     * @return <code>false</code> if the method uses subroutines (JSR/RET instructions) and cannot be instrumented
+     */
+    protected final boolean createProfilingGraph()
+    {
+        instructions = method.instructions.toArray();
+        for ( AbstractInsnNode insn : instructions )
+        {
+            if ( insn.getOpcode() == JSR || insn.getOpcode() == RET ) {
+                return false;
+            }
+        }
+        createNodes();
+        createEdges();
+        return true;
+    }
+
+    /*
+     * Numbers blocks in order of their first instruction using a single pass over the
+     * method's instructions , blocks are looked up in the graph's per-instruction table.
+     */
+    private void createNodes()
+    {
+        final Map<IBlock,Integer> nodes = new IdentityHashMap<>();
+        final int[] blockNodes = new int[ instructions.length ];
+        int node = EXIT+1;
+        for ( int insn = 0 ; insn < instructions.length ; insn++ )
+        {
+            final IBlock block = graph.getBlockForInstruction( insn );
+            if ( block == null || block instanceof MethodEntry || block instanceof MethodExit )
+            {
+                blockNodes[insn] = -1;
+                continue;
+            }
+            Integer existing = nodes.get( block );
+            if ( existing == null )
+            {
+                existing = node++;
+                nodes.put( block , existing );
+            }
+            blockNodes[insn] = existing;
+        }
+
+        nodeCount = node;
+        nodeOfInstruction = blockNodes;
+        nodeFirst = new int[ nodeCount ];
+        nodeLast = new int[ nodeCount ];
+        nodeFirstByteCode = new int[ nodeCount ];
+        nodeLastByteCode = new int[ nodeCount ];
+        nodeInstructionCount = new int[ nodeCount ];
+        Arrays.fill( nodeFirst , -1 );
+        Arrays.fill( nodeLast , -1 );
+        Arrays.fill( nodeFirstByteCode , -1 );
+        Arrays.fill( nodeLastByteCode , -1 );
+
+        for ( int insn = 0 ; insn < instructions.length ; insn++ )
+        {
+            final int current = nodeOfInstruction[insn];
+            if ( current == -1 ) {
+                continue;
+            }
+            if ( nodeFirst[current] == -1 ) {
+                nodeFirst[current] = insn;
+            }
+            nodeLast[current] = insn;
+            if ( instructions[insn].getOpcode() >= 0 )
+            {
+                if ( nodeFirstByteCode[current] == -1 ) {
+                    nodeFirstByteCode[current] = insn;
+                }
+                nodeLastByteCode[current] = insn;
+                nodeInstructionCount[current]++;
+            }
+        }
+    }
+
+    private int nodeOf(IBlock block)
+    {
+        if ( block instanceof MethodExit ) {
+            return EXIT;
+        }
+        if ( block instanceof MethodEntry ) {
+            return ENTRY;
+        }
+        return nodeOfInstruction[ block.getFirstInstructionNum() ];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createEdges()
+    {
+        final Set<Long> existing = new HashSet<>();
+
+        // edge #0 is method entry
+        addEdge( ENTRY , nodeOfInstruction[0] , false , existing );
+
+        for ( TryCatchBlockNode tcb : (List<TryCatchBlockNode>) method.tryCatchBlocks ) {
+            addEdge( ENTRY , nodeOfInstruction[ method.instructions.indexOf( tcb.handler ) ] , true , existing );
+        }
+
+        final List<IBlock> blocks = new ArrayList<>( graph.getAllNodes() );
+        final Map<IBlock,Integer> nodes = new HashMap<>();
+        for ( IBlock block : blocks ) {
+            nodes.put( block , nodeOf( block ) );
+        }
+
+        for ( int node = EXIT+1 ; node < nodeCount ; node++ )
+        {
+            final AbstractInsnNode last = lastByteCodeInstruction( node );
+            if ( last != null && last.getOpcode() == ATHROW ) {
+                addEdge( node , EXIT , false , existing );
+            }
+        }
+
+        for ( IBlock block : blocks )
+        {
+            if ( block instanceof MethodEntry ) {
+                continue;
+            }
+            final int src = nodes.get( block );
+            for ( Edge edge : block.getEdges() )
+            {
+                if ( ! edge.isSuccessor( block ) || edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                    continue;
+                }
+                final int dst = nodes.get( edge.dst );
+                if ( dst == EXIT )
+                {
+                    // the analyzer always links the last block to the method exit , ignore this edge unless the block actually returns
+                    final AbstractInsnNode last = lastByteCodeInstruction( src );
+                    if ( last == null || last.getOpcode() < IRETURN || last.getOpcode() > RETURN ) {
+                        continue;
+                    }
+                }
+                addEdge( src , dst , false , existing );
+            }
+        }
+
+        // remove edges not reachable from method entry
+        final boolean[] reachable = new boolean[ nodeCount ];
+        reachable[ ENTRY ] = true;
+        boolean changed = true;
+        while ( changed )
+        {
+            changed = false;
+            for ( int[] edge : edges )
+            {
+                if ( reachable[ edge[0] ] && ! reachable[ edge[1] ] ) {
+                    reachable[ edge[1] ] = changed = true;
+                }
+            }
+        }
+        for ( int e = edges.size() - 1 ; e >= 0 ; e-- )
+        {
+            if ( ! reachable[ edges.get(e)[0] ] ) {
+                edges.remove( e );
+                handlerEdges.remove( e );
+            }
+        }
+
+        // virtual edge that turns the graph into a circulation , never instrumented
+        addEdge( EXIT , ENTRY , false , existing );
+
+        succCount = new int[ nodeCount ];
+        predCount = new int[ nodeCount ];
+        for ( int[] edge : edges )
+        {
+            succCount[ edge[0] ]++;
+            predCount[ edge[1] ]++;
+        }
+    }
+
+    private void addEdge(int src,int dst,boolean isHandler,Set<Long> existing)
+    {
+        if ( existing.add( ( ((long) src) << 32 ) | dst ) )
+        {
+            edges.add( new int[] { src , dst } );
+            handlerEdges.add( isHandler );
+        }
+    }
+
+    protected final int getEdgeCount()
+    {
+        return edges.size();
+    }
+
+    protected final int getEdgeSource(int edge)
+    {
+        return edges.get( edge )[0];
+    }
+
+    protected final int getEdgeDestination(int edge)
+    {
+        return edges.get( edge )[1];
+    }
+
+    /**
+     * Returns whether an edge models entering an exception handler.
+     *
+     * @param edge
+     * @return
+     */
+    protected final boolean isHandlerEdge(int edge)
+    {
+        return handlerEdges.get( edge );
+    }
+
+    /**
+     * Returns the outgoing edges of each node , excluding the virtual edge from method exit to method entry.
+     *
+     * @return
+     */
+    protected final List<List<Integer>> getSuccessorEdges()
+    {
+        final List<List<Integer>> result = new ArrayList<>( nodeCount );
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            result.add( new ArrayList<Integer>() );
+        }
+        for ( int e = 0 ; e < edges.size() ; e++ )
+        {
+            if ( getEdgeSource( e ) != EXIT ) {
+                result.get( getEdgeSource( e ) ).add( e );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds loop back-edges using depth-first search starting at the method entry.
+     *
+     * <p>The virtual edge from method exit to method entry is never reported as a back-edge. Removing
+     * all back-edges from the profiling graph yields a directed acyclic graph.</p>
+     *
+     * @return
+     */
+    protected final boolean[] findBackEdges()
+    {
+        final List<List<Integer>> successors = getSuccessorEdges();
+        final boolean[] result = new boolean[ edges.size() ];
+
+        final byte[] state = new byte[ nodeCount ]; // 0 = unvisited , 1 = on stack , 2 = done
+        final int[] stack = new int[ nodeCount ];
+        final int[] nextSucc = new int[ nodeCount ];
+        int top = 0;
+        stack[top++] = ENTRY;
+        state[ ENTRY ] = 1;
+        while ( top > 0 )
+        {
+            final int node = stack[top-1];
+            final List<Integer> succ = successors.get( node );
+            if ( nextSucc[node] == succ.size() )
+            {
+                state[node] = 2;
+                top--;
+                continue;
+            }
+            final int e = succ.get( nextSucc[node]++ );
+            final int dst = getEdgeDestination( e );
+            if ( state[dst] == 0 )
+            {
+                state[dst] = 1;
+                stack[top++] = dst;
+            }
+            else if ( state[dst] == 1 )
+            {
+                result[e] = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Allocates a new local variable slot.
+     *
+     * @param size 1 or 2 (long/double)
+     * @return
+     */
+    protected final int newLocal(int size)
+    {
+        final int result = method.maxLocals;
+        method.maxLocals += size;
+        return result;
+    }
+
+    /**
+     * Returns whether code should be attached to a given edge.
+     *
+     * <p>The default implementation does not attach code to any edge.</p>
+     *
+     * @param edge
+     * @return
+     */
+    protected boolean hasEdgeCode(int edge)
+    {
+        return false;
+    }
+
+    /**
+     * Creates the code to attach to an edge.
+     *
+     * <p>Invoked once for each location the code gets inserted at , the generated code must leave the operand
+     * stack unchanged. Only invoked for edges {@link #hasEdgeCode(int)} returned <code>true</code> for.</p>
+     *
+     * @param edge
+     * @return
+     */
+    protected InsnList createEdgeCode(int edge)
+    {
+        return new InsnList();
+    }
+
+    /**
+     * Inserts the method prologue and the code for all edges.
+     *
+     * @param prologue code to insert at method entry , code for the edge from method entry to the first block
+     * gets appended to it
+     */
+    @SuppressWarnings("unchecked")
+    protected final void insertCode(InsnList prologue)
+    {
+        final Map<LabelNode,Integer> labelIndices = new IdentityHashMap<>();
+        for ( int i = 0 ; i < instructions.length ; i++ )
+        {
+            if ( instructions[i] instanceof LabelNode ) {
+                labelIndices.put( (LabelNode) instructions[i] , i );
+            }
+        }
+
+        final List<TryCatchBlockNode> tryCatchBlocks = method.tryCatchBlocks;
+        final int[] handlerNodes = new int[ tryCatchBlocks.size() ];
+        for ( int i = 0 ; i < handlerNodes.length ; i++ ) {
+            handlerNodes[i] = nodeOfInstruction[ labelIndices.get( tryCatchBlocks.get(i).handler ) ];
+        }
+
+        final InsnList trampolines = new InsnList();
+        for ( int e = 0 ; e < edges.size() ; e++ )
+        {
+            if ( ! hasEdgeCode( e ) ) {
+                continue;
+            }
+            final int src = getEdgeSource( e );
+            final int dst = getEdgeDestination( e );
+
+            if ( isHandlerEdge( e ) )
+            {
+                // redirect exception handler to trampoline
+                final Map<LabelNode,LabelNode> redirects = new IdentityHashMap<>();
+                for ( int i = 0 ; i < tryCatchBlocks.size() ; i++ )
+                {
+                    if ( handlerNodes[i] == dst ) {
+                        tryCatchBlocks.get(i).handler = trampoline( tryCatchBlocks.get(i).handler , redirects , trampolines , e );
+                    }
+                }
+            }
+            else if ( src == ENTRY )
+            {
+                prologue.add( createEdgeCode( e ) );
+            }
+            else if ( succCount[src] == 1 )
+            {
+                final AbstractInsnNode last = lastByteCodeInstruction( src );
+                if ( last != null && isTransfer( last ) ) {
+                    method.instructions.insertBefore( last , createEdgeCode( e ) );
+                } else {
+                    method.instructions.insert( instructions[ nodeLast[src] ] , createEdgeCode( e ) );
+                }
+            }
+            else if ( predCount[dst] == 1 && dst != EXIT )
+            {
+                final AbstractInsnNode first = firstByteCodeInstruction( dst );
+                if ( first != null ) {
+                    method.instructions.insertBefore( first , createEdgeCode( e ) );
+                } else {
+                    method.instructions.insert( instructions[ nodeLast[dst] ] , createEdgeCode( e ) );
+                }
+            }
+            else
+            {
+                // split edge
+                final AbstractInsnNode last = lastByteCodeInstruction( src );
+                final Map<LabelNode,LabelNode> redirects = new IdentityHashMap<>();
+                if ( last instanceof JumpInsnNode )
+                {
+                    final JumpInsnNode jump = (JumpInsnNode) last;
+                    if ( isTarget( jump.label , dst , labelIndices ) ) {
+                        jump.label = trampoline( jump.label , redirects , trampolines , e );
+                    }
+                }
+                else if ( last instanceof TableSwitchInsnNode )
+                {
+                    final TableSwitchInsnNode tblSwitch = (TableSwitchInsnNode) last;
+                    if ( isTarget( tblSwitch.dflt , dst , labelIndices ) ) {
+                        tblSwitch.dflt = trampoline( tblSwitch.dflt , redirects , trampolines , e );
+                    }
+                    redirect( (List<LabelNode>) tblSwitch.labels , dst , labelIndices , redirects , trampolines , e );
+                }
+                else if ( last instanceof LookupSwitchInsnNode )
+                {
+                    final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) last;
+                    if ( isTarget( lookup.dflt , dst , labelIndices ) ) {
+                        lookup.dflt = trampoline( lookup.dflt , redirects , trampolines , e );
+                    }
+                    redirect( (List<LabelNode>) lookup.labels , dst , labelIndices , redirects , trampolines , e );
+                }
+
+                if ( fallsThrough( last ) && nodeLast[src]+1 < instructions.length && nodeOfInstruction[ nodeLast[src]+1 ] == dst ) {
+                    method.instructions.insert( instructions[ nodeLast[src] ] , createEdgeCode( e ) );
+                }
+            }
+        }
+
+        method.instructions.insert( prologue );
+        method.instructions.add( trampolines );
+    }
+
+    protected final AbstractInsnNode lastByteCodeInstruction(int node)
+    {
+        final int index = nodeLastByteCode[node];
+        return index != -1 ? instructions[index] : null;
+    }
+
+    protected final AbstractInsnNode firstByteCodeInstruction(int node)
+    {
+        final int index = nodeFirstByteCode[node];
+        return index != -1 ? instructions[index] : null;
+    }
+
+    private static boolean isTransfer(AbstractInsnNode insn)
+    {
+        final int opCode = insn.getOpcode();
+        return insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode ||
+                ( opCode >= IRETURN && opCode <= RETURN ) || opCode == ATHROW;
+    }
+
+    private static boolean fallsThrough(AbstractInsnNode last)
+    {
+        if ( last == null ) {
+            return true;
+        }
+        return ! isTransfer( last ) || ( last instanceof JumpInsnNode && last.getOpcode() != GOTO );
+    }
+
+    private boolean isTarget(LabelNode label,int node,Map<LabelNode,Integer> labelIndices)
+    {
+        final Integer index = labelIndices.get( label );
+        return index != null && nodeOfInstruction[ index ] == node;
+    }
+
+    private void redirect(List<LabelNode> labels,int dst,Map<LabelNode,Integer> labelIndices,
+            Map<LabelNode,LabelNode> redirects,InsnList trampolines,int edge)
+    {
+        for ( int i = 0 ; i < labels.size() ; i++ )
+        {
+            if ( isTarget( labels.get(i) , dst , labelIndices ) ) {
+                labels.set( i , trampoline( labels.get(i) , redirects , trampolines , edge ) );
+            }
+        }
+    }
+
+    private LabelNode trampoline(LabelNode target,Map<LabelNode,LabelNode> redirects,InsnList trampolines,int edge)
+    {
+        LabelNode result = redirects.get( target );
+        if ( result == null )
+        {
+            result = new LabelNode();
+            trampolines.add( result );
+            trampolines.add( createEdgeCode( edge ) );
+            trampolines.add( new JumpInsnNode( GOTO , target ) );
+            redirects.put( target , result );
+        }
+        return result;
+    }
+
+    protected static AbstractInsnNode pushInt(int value)
+    {
+        if ( value >= -1 && value <= 5 ) {
+            return new InsnNode( ICONST_0 + value );
+        }
+        if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            return new IntInsnNode( BIPUSH , value );
+        }
+        if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            return new IntInsnNode( SIPUSH , value );
+        }
+        return new LdcInsnNode( value );
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+
+/**
+ * Loads the profiling agent into an already running JVM.
+ * 
+ * <p>Uses the Attach API (<code>com.sun.tools.attach.VirtualMachine</code>) through reflection so that
+ * this class can be compiled and loaded without <code>tools.jar</code> , on JDKs that
+ * still ship the Attach API as a separate JAR file it gets loaded from <code>${java.home}/../lib/tools.jar</code>.</p>
+ * 
+ * <p>Example:</p>
+ * <pre>
+ * java -cp target/profilingagent.jar de.codesourcery.asm.rewrite.AgentLauncher 4711 "packages=some.package;mode=edges"
+ * </pre>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingClassTransformer#agentmain(String, java.lang.instrument.Instrumentation)
+ */
+public class AgentLauncher
+{
+    private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+    
+    public static void main(String[] args) throws Exception
+    {
+        File agentJar = null;
+        String pid = null;
+        String options = null;
+        try 
+        {
+            for ( int i = 0 ; i < args.length ; i++ ) 
+            {
+                switch( args[i] ) 
+                {
+                    case "-agent":
+                        agentJar = new File( args[i+1] );
+                        i++;
+                        break;
+                    default:
+                        if ( pid == null ) {
+                            pid = args[i];
+                        } else if ( options == null ) {
+                            options = args[i];
+                        } else {
+                            throw new RuntimeException("Unexpected argument: "+args[i]);
+                        }
+                }
+            }
+            if ( pid == null ) {
+                throw new RuntimeException("No PID given");
+            }
+            if ( agentJar == null ) {
+                agentJar = findAgentJar();
+            }
+        } 
+        catch(Exception e) 
+        {
+            System.out.println("ERROR: "+e.getMessage());
+            printUsage();
+            return;
+        }
+        
+        attach( pid , agentJar , options );
+        System.out.println("Agent "+agentJar.getAbsolutePath()+" loaded into JVM "+pid);
+    }
+    
+    private static void printUsage() {
+        System.out.println("\n\nUsage: [-agent <JAR>] <PID> [<agent options>]\n\n"+
+                "[-agent <JAR>] => agent JAR file to load , defaults to the JAR file containing this class\n"+
+                "<PID> => process ID of the JVM to attach to\n"+
+                "[<agent options>] => agent options , see "+ProfilingClassTransformer.class.getName()+"\n\n");
+    }
+    
+    /**
+     * Loads an agent into a running JVM.
+     * 
+     * @param pid process ID of the target JVM
+     * @param agentJar JAR file containing the agent
+     * @param options agent options , may be <code>null</code>
+     * @throws Exception if the Attach API is not available or attaching/loading the agent failed
+     */
+    public static void attach(String pid,File agentJar,String options) throws Exception 
+    {
+        if ( pid == null ) {
+            throw new IllegalArgumentException("pid must not be NULL.");
+        }
+        if ( agentJar == null ) {
+            throw new IllegalArgumentException("agentJar must not be NULL.");
+        }
+        if ( ! agentJar.isFile() ) {
+            throw new IllegalArgumentException("Agent JAR "+agentJar.getAbsolutePath()+" does not exist");
+        }
+        
+        final Class<?> vmClass = loadVirtualMachineClass();
+        try 
+        {
+            final Object vm = vmClass.getMethod( "attach" , String.class ).invoke( null , pid );
+            try {
+                vmClass.getMethod( "loadAgent" , String.class , String.class ).invoke( vm , agentJar.getAbsolutePath() , options );
+            } finally {
+                vmClass.getMethod( "detach" ).invoke( vm );
+            }
+        } 
+        catch(InvocationTargetException e) 
+        {
+            if ( e.getCause() instanceof Exception ) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    private static Class<?> loadVirtualMachineClass() throws Exception
+    {
+        try {
+            return Class.forName( VIRTUAL_MACHINE_CLASS );
+        } 
+        catch(ClassNotFoundException e) {
+            // Attach API not on the class path , try tools.jar
+        }
+        final File toolsJar = new File( System.getProperty("java.home") , ".."+File.separator+"lib"+File.separator+"tools.jar" );
+        if ( ! toolsJar.isFile() ) {
+            throw new ClassNotFoundException("Attach API is not available , neither found "+VIRTUAL_MACHINE_CLASS+" nor "+toolsJar.getAbsolutePath());
+        }
+        final ClassLoader loader = new URLClassLoader( new URL[] { toolsJar.toURI().toURL() } , AgentLauncher.class.getClassLoader() );
+        return Class.forName( VIRTUAL_MACHINE_CLASS , true , loader );
+    }
+    
+    private static File findAgentJar() throws URISyntaxException 
+    {
+        final CodeSource source = AgentLauncher.class.getProtectionDomain().getCodeSource();
+        if ( source == null || source.getLocation() == null ) {
+            throw new RuntimeException("Unable to determine location of agent JAR , use -agent <JAR>");
+        }
+        final File result = new File( source.getLocation().toURI() );
+        if ( ! result.isFile() ) {
+            throw new RuntimeException(result.getAbsolutePath()+" is no JAR file , use -agent <JAR>");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.util.ASMUtil;
+import de.codesourcery.asm.util.IJoinpointFilter;
+
+/**
+ * Finds methods of a class whose number of executed byte-code instructions is a compile-time constant 
+ * so that their cost can be added to the calling block instead of instrumenting them.
+ * 
+ * <p>A method is folded if</p>
+ * <ul>
+ *   <li>it would be instrumented otherwise (selected by the filter , no subroutines)</li>
+ *   <li>it is private (and thus can only be called from within its class) and not a constructor or class initializer</li>
+ *   <li>it is not invoked reflectively , that is neither a serialization hook (<code>writeObject</code> , <code>readResolve</code> , ...)
+ *   nor annotated with a runtime-visible annotation (as used by frameworks to mark callbacks)</li>
+ *   <li>it contains no branches , switches , exception handlers or <code>ATHROW</code> instructions</li>
+ *   <li>all its call sites are in methods that get instrumented or folded themselves , 
+ *   and it is not referenced through method handles (e.g. lambda bodies)</li>
+ * </ul>
+ * 
+ * <p>The cost of a folded method includes the cost of all folded methods it calls. Just like block counts ,
+ * the cost of a folded method is accounted in full even if it completes abruptly.</p>
+ * 
+ * <p>Block counts get multiplied by the sampling interval and must stay below {@link StatisticsManager#MAX_GRANULARITY} ,
+ * so methods are not folded if the instructions of any calling method plus the costs of all folded methods it calls 
+ * could exceed {@link #MAX_BLOCK_COST}.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see InstructionCountingInstrumenter#setFoldedCallees(Map)
+ */
+final class ConstantCostAnalyzer implements Opcodes
+{
+    /**
+     * Max. number of instructions a single block may account for , including folded callees.
+     */
+    public static final int MAX_BLOCK_COST = StatisticsManager.MAX_GRANULARITY / ProfilingRewriter.MAX_SAMPLING_INTERVAL;
+
+    // first class file version with nest mates that may call private methods directly (Java 11)
+    private static final int V11 = 55;
+
+    // private methods invoked by serialization through reflection
+    private static final Set<String> SERIALIZATION_HOOKS = new HashSet<>( Arrays.asList( 
+            "writeObject(Ljava/io/ObjectOutputStream;)V" , 
+            "readObject(Ljava/io/ObjectInputStream;)V" ,
+            "readObjectNoData()V" ,
+            "writeReplace()Ljava/lang/Object;" , 
+            "readResolve()Ljava/lang/Object;" ) );
+
+    private ConstantCostAnalyzer() {
+    }
+
+    /**
+     * Finds the methods of a class that can be folded into their callers.
+     * 
+     * @param className fully-qualified name of the class
+     * @param cn the class
+     * @param filter filter that selects methods to instrument
+     * @return costs of folded methods by method name and descriptor (e.g. <code>getX()I</code>)
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String,Integer> analyze(String className,ClassNode cn,IJoinpointFilter filter) 
+    {
+        final Map<String,Integer> result = new HashMap<>();
+        if ( ( cn.version & 0xffff ) >= V11 ) {
+            return result;
+        }
+
+        final String owner = cn.name;
+        final Map<String,MethodNode> candidates = new HashMap<>();
+        final Set<String> instrumented = new HashSet<>();
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            if ( isInstrumented( className , mn , filter ) ) 
+            {
+                instrumented.add( mn.name+mn.desc );
+                if ( isStraightLine( mn ) ) {
+                    candidates.put( mn.name+mn.desc , mn );
+                }
+            }
+        }
+        if ( candidates.isEmpty() ) {
+            return result;
+        }
+
+        // callees invoked from code that never gets instrumented or referenced by method handles would lose their counts 
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            final boolean callerInstrumented = instrumented.contains( mn.name+mn.desc );
+            for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof MethodInsnNode ) 
+                {
+                    final MethodInsnNode call = (MethodInsnNode) insn;
+                    if ( ! callerInstrumented && call.owner.equals( owner ) ) {
+                        candidates.remove( call.name+call.desc );
+                    }
+                } 
+                else if ( insn instanceof InvokeDynamicInsnNode ) 
+                {
+                    final InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insn;
+                    removeHandle( indy.bsm , owner , candidates );
+                    for ( Object arg : indy.bsmArgs ) {
+                        removeHandle( arg , owner , candidates );
+                    }
+                } 
+                else if ( insn instanceof LdcInsnNode ) {
+                    removeHandle( ( (LdcInsnNode) insn ).cst , owner , candidates );
+                }
+            }
+        }
+
+        // folded methods calling each other need to form a DAG , instrumented callers must not overflow their block counts
+        final Map<String,Long> costs = new HashMap<>();
+        boolean changed = true;
+        while ( changed ) 
+        {
+            changed = false;
+            costs.clear();
+            for ( String key : candidates.keySet() ) 
+            {
+                final String offender = computeCost( key , owner , candidates , costs , new HashSet<String>() );
+                if ( offender != null ) 
+                {
+                    candidates.remove( offender );
+                    changed = true;
+                    break;
+                }
+            }
+            if ( ! changed ) 
+            {
+                final String offender = findOverflowingCallee( cn , instrumented , candidates , costs );
+                if ( offender != null ) 
+                {
+                    candidates.remove( offender );
+                    changed = true;
+                }
+            }
+        }
+
+        for ( Map.Entry<String,Long> entry : costs.entrySet() ) {
+            result.put( entry.getKey() , entry.getValue().intValue() );
+        }
+        return result;
+    }
+
+    /*
+     * Computes the cost of a candidate , returns the candidate that needs to be removed 
+     * because it is part of a call cycle or too expensive.
+     */
+    private static String computeCost(String key,String owner,Map<String,MethodNode> candidates,Map<String,Long> costs,Set<String> inProgress) 
+    {
+        if ( costs.containsKey( key ) ) {
+            return null;
+        }
+        if ( ! inProgress.add( key ) ) {
+            return key;
+        }
+        final MethodNode mn = candidates.get( key );
+        long cost = ASMUtil.countByteCodeInstructions( mn );
+        for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn instanceof MethodInsnNode && ( (MethodInsnNode) insn ).owner.equals( owner ) ) 
+            {
+                final String callee = ( (MethodInsnNode) insn ).name+( (MethodInsnNode) insn ).desc;
+                if ( candidates.containsKey( callee ) ) 
+                {
+                    final String offender = computeCost( callee , owner , candidates , costs , inProgress );
+                    if ( offender != null ) {
+                        return offender;
+                    }
+                    cost += costs.get( callee );
+                }
+            }
+        }
+        inProgress.remove( key );
+        if ( cost > MAX_BLOCK_COST ) {
+            return key;
+        }
+        costs.put( key , cost );
+        return null;
+    }
+
+    /*
+     * Returns the most expensive folded callee of the first instrumented method whose instructions plus 
+     * folded callees exceed MAX_BLOCK_COST. This bounds every block of the method , whatever its block structure.
+     */
+    @SuppressWarnings("unchecked")
+    private static String findOverflowingCallee(ClassNode cn,Set<String> instrumented,Map<String,MethodNode> candidates,Map<String,Long> costs) 
+    {
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            final String key = mn.name+mn.desc;
+            if ( ! instrumented.contains( key ) || candidates.containsKey( key ) ) {
+                continue;
+            }
+            long total = ASMUtil.countByteCodeInstructions( mn );
+            String mostExpensive = null;
+            for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof MethodInsnNode && ( (MethodInsnNode) insn ).owner.equals( cn.name ) ) 
+                {
+                    final String callee = ( (MethodInsnNode) insn ).name+( (MethodInsnNode) insn ).desc;
+                    final Long cost = costs.get( callee );
+                    if ( cost != null ) 
+                    {
+                        total += cost;
+                        if ( mostExpensive == null || cost > costs.get( mostExpensive ) ) {
+                            mostExpensive = callee;
+                        }
+                    }
+                }
+            }
+            if ( total > MAX_BLOCK_COST ) {
+                return mostExpensive;
+            }
+        }
+        return null;
+    }
+
+    private static void removeHandle(Object value,String owner,Map<String,MethodNode> candidates) 
+    {
+        if ( value instanceof Handle && ( (Handle) value ).getOwner().equals( owner ) ) {
+            candidates.remove( ( (Handle) value ).getName()+( (Handle) value ).getDesc() );
+        }
+    }
+
+    /*
+     * Mirrors the checks ProfilingRewriter applies before instrumenting a method.
+     */
+    private static boolean isInstrumented(String className,MethodNode mn,IJoinpointFilter filter) 
+    {
+        if ( ( mn.access & (ACC_ABSTRACT|ACC_NATIVE) ) != 0 || mn.instructions.size() == 0 ) {
+            return false;
+        }
+        if ( ! filter.matches( className , mn.name ) || ! filter.matches( className , mn.name , mn.desc , ASMUtil.countByteCodeInstructions( mn ) ) ) {
+            return false;
+        }
+        for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getOpcode() == JSR || insn.getOpcode() == RET ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStraightLine(MethodNode mn) 
+    {
+        if ( ( mn.access & ACC_PRIVATE ) == 0 || mn.name.equals("<init>") || mn.name.equals("<clinit>") ) {
+            return false;
+        }
+        // the JVM would execute these without accounting for their cost
+        if ( SERIALIZATION_HOOKS.contains( mn.name+mn.desc ) || ( mn.visibleAnnotations != null && ! mn.visibleAnnotations.isEmpty() ) ) {
+            return false;
+        }
+        if ( mn.tryCatchBlocks != null && ! mn.tryCatchBlocks.isEmpty() ) {
+            return false;
+        }
+        for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            switch( insn.getType() ) 
+            {
+                case AbstractInsnNode.JUMP_INSN:
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    return false;
+                default:
+                    if ( insn.getOpcode() == ATHROW ) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+}
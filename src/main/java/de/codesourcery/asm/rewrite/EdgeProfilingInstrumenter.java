@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.profiling.EdgeProfile;
+import de.codesourcery.asm.profiling.MethodProfileRegistry;
+
+/**
+ * Instruments a single method for edge profiling with optimal counter placement.
+ *
+ * <p>A maximum spanning tree of the method's profiling graph is computed using estimated edge
+ * frequencies (edges nested more deeply inside loops are considered to be executed more often) and
+ * only edges that are not part of the spanning tree get a counter. The execution counts of all other edges and blocks
+ * are later reconstructed by {@link EdgeProfile}.</p>
+ *
+ * <p>The generated byte-code loads the method's counter array into a new local variable at method entry:</p>
+ * <pre>
+ *   final long[] $edges = MethodProfileRegistry.getCounters( &lt;profile ID&gt; );
+ *   ...
+ *   $edges[ &lt;counter&gt; ]++;
+ * </pre>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EdgeProfile
+ * @see MethodProfileRegistry
+ */
+public class EdgeProfilingInstrumenter extends AbstractProfilingInstrumenter
+{
+    // weight of edges that must be part of the spanning tree resp. must not be part of it
+    private static final long WEIGHT_TREE = Long.MAX_VALUE;
+    private static final long WEIGHT_CHORD = Long.MIN_VALUE;
+
+    private static final int MAX_LOOP_DEPTH = 15;
+
+    private int[] edgeCounter;
+    private int counterSlot;
+
+    /**
+     * Create instance.
+     *
+     * @param className fully-qualified name of the class the method belongs to
+     * @param graph control-flow graph of the method to instrument
+     */
+    public EdgeProfilingInstrumenter(String className,ControlFlowGraph graph)
+    {
+        super( className , graph );
+    }
+
+    /**
+     * Instruments the method.
+     *
+     * <p>The {@link MethodNode} is modified in-place , the
+     * method's profile gets registered with the {@link MethodProfileRegistry}.</p>
+     *
+     * @return the method's profile or <code>null</code> if the method could not be instrumented
+     * because it uses subroutines (JSR/RET instructions)
+     */
+    public EdgeProfile instrument()
+    {
+        if ( ! createProfilingGraph() ) {
+            return null;
+        }
+        final int edgeCount = getEdgeCount();
+
+        // find spanning tree , instrument remaining edges (chords)
+        final boolean[] inTree = computeSpanningTree( computeWeights() );
+        edgeCounter = new int[ edgeCount ];
+        int counters = 0;
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            edgeCounter[e] = inTree[e] ? -1 : counters++;
+        }
+
+        final int[] edgeSrc = new int[ edgeCount ];
+        final int[] edgeDst = new int[ edgeCount ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            edgeSrc[e] = getEdgeSource( e );
+            edgeDst[e] = getEdgeDestination( e );
+        }
+
+        final EdgeProfile profile = new EdgeProfile( className , method.name , method.desc ,
+                Arrays.copyOf( nodeFirst , nodeCount ) , nodeInstructionCount , edgeSrc , edgeDst , edgeCounter );
+        final int profileId = MethodProfileRegistry.register( profile );
+
+        counterSlot = newLocal( 1 );
+
+        final InsnList prologue = new InsnList();
+        prologue.add( pushInt( profileId ) );
+        prologue.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/MethodProfileRegistry" , "getCounters" , "(I)[J" ) );
+        prologue.add( new VarInsnNode( ASTORE , counterSlot ) );
+
+        insertCode( prologue );
+        return profile;
+    }
+
+    @Override
+    protected boolean hasEdgeCode(int edge)
+    {
+        return edgeCounter[edge] != -1;
+    }
+
+    /*
+     * $edges[ counter ] += <counter increment>;
+     */
+    @Override
+    protected InsnList createEdgeCode(int edge)
+    {
+        final InsnList result = new InsnList();
+        result.add( new VarInsnNode( ALOAD , counterSlot ) );
+        result.add( pushInt( edgeCounter[edge] ) );
+        result.add( new InsnNode( DUP2 ) );
+        result.add( new InsnNode( LALOAD ) );
+        result.add( pushCounterIncrement() );
+        result.add( new InsnNode( LADD ) );
+        result.add( new InsnNode( LASTORE ) );
+        return result;
+    }
+
+    private long[] computeWeights()
+    {
+        final int edgeCount = getEdgeCount();
+
+        final List<List<Integer>> predecessors = new ArrayList<>();
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            predecessors.add( new ArrayList<Integer>() );
+        }
+        for ( int e = 0 ; e < edgeCount ; e++ )
+        {
+            if ( getEdgeSource( e ) != EXIT ) {
+                predecessors.get( getEdgeDestination( e ) ).add( e );
+            }
+        }
+
+        // each back-edge closes a natural loop , increment nesting depth of all nodes inside it
+        final int[] loopDepth = new int[ nodeCount ];
+        final boolean[] backEdges = findBackEdges();
+        for ( int backEdge = 0 ; backEdge < edgeCount ; backEdge++ )
+        {
+            if ( ! backEdges[backEdge] ) {
+                continue;
+            }
+            final int header = getEdgeDestination( backEdge );
+            final int tail = getEdgeSource( backEdge );
+            final boolean[] inLoop = new boolean[ nodeCount ];
+            final List<Integer> worklist = new ArrayList<>();
+            inLoop[header] = true;
+            if ( ! inLoop[tail] )
+            {
+                inLoop[tail] = true;
+                worklist.add( tail );
+            }
+            while ( ! worklist.isEmpty() )
+            {
+                final int current = worklist.remove( worklist.size() - 1 );
+                for ( int e : predecessors.get( current ) )
+                {
+                    final int pred = getEdgeSource( e );
+                    if ( ! inLoop[pred] )
+                    {
+                        inLoop[pred] = true;
+                        worklist.add( pred );
+                    }
+                }
+            }
+            for ( int n = 0 ; n < nodeCount ; n++ )
+            {
+                if ( inLoop[n] ) {
+                    loopDepth[n]++;
+                }
+            }
+        }
+
+        final long[] weights = new long[ edgeCount ];
+        for ( int e = 0 ; e < edgeCount ; e++ )
+        {
+            final int src = getEdgeSource( e );
+            final int dst = getEdgeDestination( e );
+            if ( src == EXIT ) {
+                weights[e] = WEIGHT_TREE;
+            } else if ( isHandlerEdge( e ) ) {
+                weights[e] = WEIGHT_CHORD;
+            }
+            else
+            {
+                long frequency = 1;
+                for ( int i = Math.min( MAX_LOOP_DEPTH , Math.min( loopDepth[ src ] , loopDepth[ dst ] ) ) ; i > 0 ; i-- ) {
+                    frequency *= 10;
+                }
+                // prefer edges that would need to be split when instrumented
+                final boolean needsSplit = succCount[ src ] > 1 && predCount[ dst ] > 1;
+                weights[e] = frequency*2 + ( needsSplit ? 1 : 0 );
+            }
+        }
+        return weights;
+    }
+
+    private boolean[] computeSpanningTree(final long[] weights)
+    {
+        final int edgeCount = getEdgeCount();
+        final Integer[] order = new Integer[ edgeCount ];
+        for ( int e = 0 ; e < edgeCount ; e++ ) {
+            order[e] = e;
+        }
+        Arrays.sort( order , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer e1, Integer e2)
+            {
+                final int result = Long.compare( weights[e2] , weights[e1] );
+                return result != 0 ? result : Integer.compare( e1 , e2 );
+            }
+        });
+
+        // Kruskal
+        final int[] parent = new int[ nodeCount ];
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            parent[n] = n;
+        }
+        final boolean[] result = new boolean[ edgeCount ];
+        for ( int e : order )
+        {
+            if ( weights[e] == WEIGHT_CHORD ) {
+                continue;
+            }
+            final int root1 = find( parent , getEdgeSource( e ) );
+            final int root2 = find( parent , getEdgeDestination( e ) );
+            if ( root1 != root2 )
+            {
+                parent[root1] = root2;
+                result[e] = true;
+            }
+        }
+        return result;
+    }
+
+    private static int find(int[] parent,int node)
+    {
+        while ( parent[node] != node )
+        {
+            parent[node] = parent[ parent[node] ];
+            node = parent[node];
+        }
+        return node;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.profiling.BlockHeatMap;
+
+/**
+ * Instruments a single method so that each reachable basic block increments its own counter
+ * in the {@link BlockHeatMap}.
+ *
+ * <p>The generated byte-code loads the current thread's stripe of the method's counter page into a new 
+ * local variable at method entry and increments the block's counter before the first instruction of each block:</p>
+ * <pre>
+ *   final long[] $heat = BlockHeatMap.getCounters( &lt;page&gt; );
+ *   ...
+ *   $heat[ &lt;offset of block&gt; ]++;
+ * </pre>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see BlockHeatMap
+ */
+public class HeatMapInstrumenter extends AbstractProfilingInstrumenter
+{
+    private int counterSlot;
+
+    /**
+     * Create instance.
+     *
+     * @param className fully-qualified name of the class the method belongs to
+     * @param graph control-flow graph of the method to instrument
+     */
+    public HeatMapInstrumenter(String className,ControlFlowGraph graph)
+    {
+        super( className , graph );
+    }
+
+    /**
+     * Instruments the method.
+     *
+     * <p>The {@link MethodNode} is modified in-place , the
+     * method's blocks get registered with the {@link BlockHeatMap}.</p>
+     *
+     * @return ID of the method's first block or -1 if the method could not be instrumented
+     * because it uses subroutines (JSR/RET instructions) or has too many blocks
+     */
+    public int instrument()
+    {
+        if ( ! createProfilingGraph() ) {
+            return -1;
+        }
+
+        // only reachable blocks that contain actual byte-code get a counter
+        final int[] blockNodes = new int[ nodeCount ];
+        int blockCount = 0;
+        for ( int node = EXIT+1 ; node < nodeCount ; node++ )
+        {
+            if ( predCount[node] > 0 && nodeInstructionCount[node] > 0 ) {
+                blockNodes[ blockCount++ ] = node;
+            }
+        }
+
+        final int[] firstInstruction = new int[ blockCount ];
+        final int[] lastInstruction = new int[ blockCount ];
+        final int[] instructionCount = new int[ blockCount ];
+        for ( int i = 0 ; i < blockCount ; i++ )
+        {
+            firstInstruction[i] = nodeFirst[ blockNodes[i] ];
+            lastInstruction[i] = nodeLast[ blockNodes[i] ];
+            instructionCount[i] = nodeInstructionCount[ blockNodes[i] ];
+        }
+
+        final int firstBlockId = BlockHeatMap.register( className , method.name , method.desc ,
+                firstInstruction , lastInstruction , instructionCount );
+        if ( firstBlockId == -1 ) {
+            return -1;
+        }
+
+        counterSlot = newLocal( 1 );
+        final int offset = BlockHeatMap.getPageOffset( firstBlockId );
+        for ( int i = 0 ; i < blockCount ; i++ )
+        {
+            final AbstractInsnNode first = firstByteCodeInstruction( blockNodes[i] );
+            method.instructions.insertBefore( first , createIncrement( offset + i ) );
+        }
+
+        final InsnList prologue = new InsnList();
+        prologue.add( pushInt( BlockHeatMap.getPage( firstBlockId ) ) );
+        prologue.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/BlockHeatMap" , "getCounters" , "(I)[J" ) );
+        prologue.add( new VarInsnNode( ASTORE , counterSlot ) );
+
+        insertCode( prologue );
+        return firstBlockId;
+    }
+
+    /*
+     * $heat[ index ] += <counter increment>;
+     */
+    private InsnList createIncrement(int index)
+    {
+        final InsnList result = new InsnList();
+        result.add( new VarInsnNode( ALOAD , counterSlot ) );
+        result.add( pushInt( index ) );
+        result.add( new InsnNode( DUP2 ) );
+        result.add( new InsnNode( LALOAD ) );
+        result.add( pushCounterIncrement() );
+        result.add( new InsnNode( LADD ) );
+        result.add( new InsnNode( LASTORE ) );
+        return result;
+    }
+}
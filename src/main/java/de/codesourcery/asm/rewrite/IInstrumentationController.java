@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+/**
+ * Management interface for switching instrumentation of already loaded classes on and off at runtime.
+ * 
+ * <p>Patterns use the same syntax as the agent's <code>packages</code> option , a pattern may 
+ * optionally be suffixed with <code>#methodName</code> to only instrument methods with this name
+ * (<code>some.package.MyClass#doWork</code>).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see InstrumentationController
+ */
+public interface IInstrumentationController
+{
+    /**
+     * Starts instrumenting all classes matching a set of patterns.
+     * 
+     * <p>Replaces any patterns set by a previous invocation , already loaded classes are 
+     * retransformed so that classes no longer matching get their original byte-code back.</p>
+     * 
+     * @param patterns comma-separated list of patterns
+     * @return number of retransformed classes
+     * @throws IllegalArgumentException if no patterns were specified
+     * @throws IllegalStateException if retransforming classes failed
+     */
+    public int instrument(String patterns) throws IllegalArgumentException,IllegalStateException;
+    
+    /**
+     * Stops instrumentation and restores the original byte-code of all instrumented classes.
+     * 
+     * <p>Collected profiling data is kept.</p>
+     * 
+     * @return number of retransformed classes
+     * @throws IllegalStateException if retransforming classes failed
+     */
+    public int restore() throws IllegalStateException;
+    
+    /**
+     * Check whether classes are currently being instrumented.
+     * 
+     * @return
+     */
+    public boolean isActive();
+    
+    /**
+     * Returns the patterns classes currently need to match in order to be instrumented.
+     * 
+     * @return patterns , empty array if instrumentation is inactive
+     */
+    public String[] getPatterns();
+    
+    /**
+     * Returns the number of classes whose currently active version is instrumented.
+     * 
+     * @return
+     */
+    public int getInstrumentedClassCount();
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+/**
+ * Instruments a single method so that it adds the number of instructions of each basic block
+ * to the current thread's {@link ExecutionStatistics} whenever the block is entered.
+ *
+ * <p>The generated byte-code loads the current thread's statistics into a new local variable 
+ * at method entry and inserts the following code before the first instruction of each reachable block:</p>
+ * <pre>
+ *   if ( ! $stat.shared ) {
+ *       $stat.executedInstructionCount += &lt;Number of instructions in block&gt;;
+ *       if ( $stat.executedInstructionCount >= 0 ) {
+ *           StatisticsManager.account( $stat );
+ *       }
+ *   } else {
+ *       StatisticsManager.accountShared( $stat , &lt;Number of instructions in block&gt; );
+ *   }
+ * </pre>
+ *
+ * <p>Cells shared by several virtual threads may be updated concurrently , so their counts are added atomically
+ * instead of being batched.</p>
+ *
+ * <p>Calls to methods of the same class that have been {@link #setFoldedCallees(Map) folded} add the callee's
+ * constant cost to the calling block's count.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager
+ */
+public class InstructionCountingInstrumenter extends AbstractProfilingInstrumenter
+{
+    private static final String STATISTICS_CLASS = "de/codesourcery/asm/profiling/ExecutionStatistics";
+    private static final String MANAGER_CLASS = "de/codesourcery/asm/profiling/StatisticsManager";
+
+    private int statSlot;
+    private Map<String,Integer> foldedCallees = Collections.emptyMap();
+
+    /**
+     * Create instance.
+     *
+     * @param className fully-qualified name of the class the method belongs to
+     * @param graph control-flow graph of the method to instrument
+     */
+    public InstructionCountingInstrumenter(String className,ControlFlowGraph graph)
+    {
+        super( className , graph );
+    }
+
+    /**
+     * Sets the methods of the instrumented class that do not get instrumented themselves because they
+     * have a constant cost.
+     *
+     * @param foldedCallees costs by method name and descriptor (e.g. <code>getX()I</code>)
+     * @see ConstantCostAnalyzer
+     */
+    public void setFoldedCallees(Map<String,Integer> foldedCallees)
+    {
+        if ( foldedCallees == null ) {
+            throw new IllegalArgumentException("foldedCallees must not be NULL.");
+        }
+        this.foldedCallees = foldedCallees;
+    }
+
+    /**
+     * Instruments the method.
+     *
+     * <p>The {@link MethodNode} is modified in-place.</p>
+     *
+     * @return <code>false</code> if the method could not be instrumented
+     * because it uses subroutines (JSR/RET instructions)
+     */
+    @SuppressWarnings("unchecked")
+    public boolean instrument()
+    {
+        if ( ! createProfilingGraph() ) {
+            return false;
+        }
+
+        final int[] costs = computeBlockCosts();
+        statSlot = newLocal( 1 );
+        for ( int node = EXIT+1 ; node < nodeCount ; node++ )
+        {
+            if ( predCount[node] > 0 && costs[node] > 0 ) {
+                method.instructions.insertBefore( firstByteCodeInstruction( node ) , createIncrement( costs[node] ) );
+            }
+        }
+
+        final LabelNode scopeStart = new LabelNode();
+        final InsnList prologue = new InsnList();
+        prologue.add( new MethodInsnNode( INVOKESTATIC , MANAGER_CLASS , "getStatistics" , "()L"+STATISTICS_CLASS+";" ) );
+        prologue.add( new VarInsnNode( ASTORE , statSlot ) );
+        prologue.add( scopeStart );
+
+        insertCode( prologue );
+
+        // declare variable if the method has debug information
+        if ( method.localVariables != null && ! method.localVariables.isEmpty() )
+        {
+            final LabelNode scopeEnd = new LabelNode();
+            method.instructions.add( scopeEnd );
+            ((List<LocalVariableNode>) method.localVariables).add( new LocalVariableNode( "$stat" ,
+                    Type.getDescriptor( ExecutionStatistics.class ) , null , scopeStart , scopeEnd , statSlot ) );
+        }
+        return true;
+    }
+
+    /*
+     * Number of instructions of each block plus the costs of all folded methods it calls.
+     */
+    private int[] computeBlockCosts()
+    {
+        final int[] result = Arrays.copyOf( nodeInstructionCount , nodeCount );
+        if ( foldedCallees.isEmpty() ) {
+            return result;
+        }
+        // bounded by ConstantCostAnalyzer , checked again since setFoldedCallees() accepts arbitrary costs
+        final long[] sums = new long[ nodeCount ];
+        final String owner = className.replace( '.' , '/' );
+        for ( int insn = 0 ; insn < instructions.length ; insn++ )
+        {
+            if ( instructions[insn].getType() == AbstractInsnNode.METHOD_INSN && nodeOfInstruction[insn] != -1 )
+            {
+                final MethodInsnNode call = (MethodInsnNode) instructions[insn];
+                final Integer cost = call.owner.equals( owner ) ? foldedCallees.get( call.name+call.desc ) : null;
+                if ( cost != null ) {
+                    sums[ nodeOfInstruction[insn] ] += cost;
+                }
+            }
+        }
+        for ( int node = 0 ; node < nodeCount ; node++ ) 
+        {
+            final long total = result[node] + sums[node];
+            if ( total > ConstantCostAnalyzer.MAX_BLOCK_COST ) {
+                throw new IllegalStateException("Block cost of "+total+" instructions in "+className+"#"+method.name+method.desc+
+                        " exceeds "+ConstantCostAnalyzer.MAX_BLOCK_COST);
+            }
+            result[node] = (int) total;
+        }
+        return result;
+    }
+
+    /*
+     * if ( ! $stat.shared ) {
+     *     $stat.executedInstructionCount += count * <counter increment>;
+     *     if ( $stat.executedInstructionCount >= 0 ) {
+     *         StatisticsManager.account( $stat );
+     *     }
+     * } else {
+     *     StatisticsManager.accountShared( $stat , count * <counter increment> );
+     * }
+     */
+    private InsnList createIncrement(int count)
+    {
+        final LabelNode shared = new LabelNode();
+        final LabelNode rest = new LabelNode();
+        final InsnList result = new InsnList();
+        result.add( new VarInsnNode( ALOAD , statSlot ) );
+        result.add( new FieldInsnNode( GETFIELD , STATISTICS_CLASS , "shared" , "Z" ) );
+        result.add( new JumpInsnNode( IFNE , shared ) );
+        result.add( new VarInsnNode( ALOAD , statSlot ) );
+        result.add( new InsnNode( DUP ) );
+        result.add( new FieldInsnNode( GETFIELD , STATISTICS_CLASS , "executedInstructionCount" , "I" ) );
+        result.add( pushInt( count * getCounterIncrement() ) );
+        result.add( new InsnNode( IADD ) );
+        result.add( new FieldInsnNode( PUTFIELD , STATISTICS_CLASS , "executedInstructionCount" , "I" ) );
+        result.add( new VarInsnNode( ALOAD , statSlot ) );
+        result.add( new FieldInsnNode( GETFIELD , STATISTICS_CLASS , "executedInstructionCount" , "I" ) );
+        result.add( new JumpInsnNode( IFLT , rest ) );
+        result.add( new VarInsnNode( ALOAD , statSlot ) );
+        result.add( new MethodInsnNode( INVOKESTATIC , MANAGER_CLASS , "account" , "(L"+STATISTICS_CLASS+";)V" ) );
+        result.add( new JumpInsnNode( GOTO , rest ) );
+        result.add( shared );
+        result.add( new VarInsnNode( ALOAD , statSlot ) );
+        result.add( pushInt( count * getCounterIncrement() ) );
+        result.add( new MethodInsnNode( INVOKESTATIC , MANAGER_CLASS , "accountShared" , "(L"+STATISTICS_CLASS+";I)V" ) );
+        result.add( rest );
+        return result;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.codesourcery.asm.rewrite.ProfilingClassTransformer.MyTransformer;
+import de.codesourcery.asm.util.IJoinpointFilter;
+
+/**
+ * Switches instrumentation of already loaded classes on and off by retransforming them.
+ * 
+ * <p>Requires a JVM that supports class retransformation and a transformer that has been registered
+ * as being retransformation-capable. When instrumentation gets switched off , the JVM passes the 
+ * original class bytes to the transformer which returns them unchanged so the class
+ * is restored to it's original state and no longer incurs any profiling overhead.</p>
+ * 
+ * <p>Profiles collected while instrumentation was active are kept. Instrumenting a class again registers
+ * new method profiles.</p>
+ * 
+ * <p>Classes are retransformed in batches of {@link #getBatchSize()} classes so that application threads 
+ * get a chance to run in between.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingClassTransformer#getController()
+ */
+public class InstrumentationController implements IInstrumentationController
+{
+    /**
+     * Default number of classes to retransform at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    
+    private final Instrumentation instrumentation;
+    private final MyTransformer transformer;
+    
+    private String[] patterns;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    
+    /**
+     * Create instance.
+     * 
+     * @param instrumentation
+     * @param transformer transformer that has been registered with retransformation support
+     * @param patterns initially active patterns , may be empty
+     */
+    public InstrumentationController(Instrumentation instrumentation,MyTransformer transformer,String[] patterns)
+    {
+        if ( instrumentation == null ) {
+            throw new IllegalArgumentException("instrumentation must not be NULL.");
+        }
+        if ( transformer == null ) {
+            throw new IllegalArgumentException("transformer must not be NULL.");
+        }
+        if ( patterns == null ) {
+            throw new IllegalArgumentException("patterns must not be NULL.");
+        }
+        if ( ! instrumentation.isRetransformClassesSupported() ) {
+            throw new IllegalArgumentException("JVM does not support retransforming classes");
+        }
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.patterns = patterns.clone();
+    }
+    
+    @Override
+    public synchronized int instrument(String patterns) throws IllegalArgumentException,IllegalStateException
+    {
+        final String[] parsed = ProfilingClassTransformer.parsePatterns( patterns );
+        if ( parsed.length == 0 ) {
+            throw new IllegalArgumentException("At least one pattern is required");
+        }
+        final IJoinpointFilter filter = ProfilingClassTransformer.createFilter( parsed );
+        transformer.setFilter( filter );
+        this.patterns = parsed;
+        return retransform( filter );
+    }
+    
+    @Override
+    public synchronized int restore() throws IllegalStateException
+    {
+        final IJoinpointFilter filter = ProfilingClassTransformer.createFilter( new String[0] );
+        transformer.setFilter( filter );
+        this.patterns = new String[0];
+        return retransform( filter );
+    }
+    
+    /**
+     * Sets the maximum number of classes to retransform at once.
+     * 
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if ( batchSize < 1 ) {
+            throw new IllegalArgumentException("Batch size must be >= 1 , was: "+batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+    
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+    
+    /**
+     * Retransforms all loaded classes matching the currently active patterns.
+     * 
+     * <p>Used after dynamically attaching the agent to a running JVM.</p>
+     * 
+     * @return number of retransformed classes
+     * @throws IllegalStateException if retransforming classes failed
+     */
+    public synchronized int retransformMatching() throws IllegalStateException
+    {
+        return retransform( transformer.getFilter() );
+    }
+    
+    private int retransform(IJoinpointFilter filter) 
+    {
+        // retransform classes that are currently instrumented or need to be
+        final List<Class<?>> classes = new ArrayList<>();
+        for ( Class<?> clazz : instrumentation.getAllLoadedClasses() ) 
+        {
+            if ( ! instrumentation.isModifiableClass( clazz ) ) {
+                continue;
+            }
+            final String name = clazz.getName();
+            if ( transformer.isInstrumented( name ) || filter.matches( name ) ) {
+                classes.add( clazz );
+            }
+        }
+        
+        final int size = batchSize;
+        Throwable failure = null;
+        int failed = 0;
+        for ( int start = 0 ; start < classes.size() ; start += size ) 
+        {
+            final List<Class<?>> batch = classes.subList( start , Math.min( start + size , classes.size() ) );
+            try {
+                instrumentation.retransformClasses( batch.toArray( new Class<?>[ batch.size() ] ) );
+            } 
+            catch(UnmodifiableClassException | RuntimeException | LinkageError e) 
+            {
+                if ( failure == null ) {
+                    failure = e;
+                }
+                failed += batch.size();
+            }
+            Thread.yield();
+        }
+        if ( failure != null ) {
+            throw new IllegalStateException("Failed to retransform "+failed+" of "+classes.size()+" classes: "+failure.getMessage(),failure);
+        }
+        return classes.size();
+    }
+    
+    @Override
+    public synchronized boolean isActive()
+    {
+        return patterns.length > 0;
+    }
+    
+    @Override
+    public synchronized String[] getPatterns()
+    {
+        return patterns.clone();
+    }
+    
+    @Override
+    public int getInstrumentedClassCount()
+    {
+        return transformer.getInstrumentedClassCount();
+    }
+}
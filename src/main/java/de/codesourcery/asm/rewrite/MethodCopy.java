@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import de.codesourcery.asm.profiling.Sampler;
+
+/**
+ * Copy of a method's uninstrumented code , used to create dual-version methods for sampled profiling.
+ * 
+ * <p>The copy must be taken before the method gets instrumented. Afterwards , {@link #insertDispatch(MethodNode, int)} 
+ * prepends it to the instrumented code together with a check that selects the version to execute:</p>
+ * <pre>
+ *   if ( Sampler.sample( &lt;interval&gt; ) ) goto INSTRUMENTED;
+ *   &lt;copy of original code&gt;
+ * INSTRUMENTED:
+ *   &lt;instrumented code&gt;
+ * </pre>
+ * 
+ * <p>Both versions live in the same method so the class's layout stays unchanged and it can still be retransformed. 
+ * Stack map frames of the copy are dropped , they need to be recomputed when writing the class.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see Sampler
+ */
+final class MethodCopy implements Opcodes
+{
+    private final InsnList instructions = new InsnList();
+    private final List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<>();
+    private final List<LocalVariableNode> localVariables = new ArrayList<>();
+    
+    @SuppressWarnings("unchecked")
+    public MethodCopy(MethodNode method) 
+    {
+        final Map<LabelNode,LabelNode> labels = new IdentityHashMap<>();
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn instanceof LabelNode ) {
+                labels.put( (LabelNode) insn , new LabelNode() );
+            }
+        }
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getType() != AbstractInsnNode.FRAME ) {
+                instructions.add( insn.clone( labels ) );
+            }
+        }
+        for ( TryCatchBlockNode node : (List<TryCatchBlockNode>) method.tryCatchBlocks ) {
+            tryCatchBlocks.add( new TryCatchBlockNode( labels.get( node.start ) , labels.get( node.end ) , labels.get( node.handler ) , node.type ) );
+        }
+        if ( method.localVariables != null ) 
+        {
+            for ( LocalVariableNode node : (List<LocalVariableNode>) method.localVariables ) {
+                localVariables.add( new LocalVariableNode( node.name , node.desc , node.signature , labels.get( node.start ) , labels.get( node.end ) , node.index ) );
+            }
+        }
+    }
+    
+    /**
+     * Turns an instrumented method into a dual-version method.
+     * 
+     * <p>May only be invoked once.</p>
+     * 
+     * @param method instrumented version of the method this copy was created from
+     * @param interval sampling interval to pass to {@link Sampler#sample(int)}
+     */
+    @SuppressWarnings("unchecked")
+    public void insertDispatch(MethodNode method,int interval) 
+    {
+        final LabelNode instrumented = new LabelNode();
+        final InsnList dispatch = new InsnList();
+        dispatch.add( AbstractProfilingInstrumenter.pushInt( interval ) );
+        dispatch.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/Sampler" , "sample" , "(I)Z" ) );
+        dispatch.add( new JumpInsnNode( IFNE , instrumented ) );
+        
+        method.instructions.insert( instrumented );
+        method.instructions.insert( instructions );
+        method.instructions.insert( dispatch );
+        
+        // handlers of both versions cover disjoint ranges , their relative order does not matter
+        method.tryCatchBlocks.addAll( tryCatchBlocks );
+        if ( method.localVariables != null ) {
+            method.localVariables.addAll( localVariables );
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.profiling.MethodProfileRegistry;
+import de.codesourcery.asm.profiling.PathProfile;
+
+/**
+ * Instruments a single method for Ball-Larus path profiling.
+ * 
+ * <p>Each loop back-edge <code>v -&gt; w</code> of the method's profiling graph is replaced by two edges 
+ * <code>ENTRY -&gt; w</code> and <code>v -&gt; EXIT</code> , yielding a directed acyclic graph. Edges
+ * of this graph get an increment assigned so that summing up the increments along any path from method entry
+ * to method exit yields a unique number between zero and the number of paths minus one.</p>
+ * 
+ * <p>The generated byte-code keeps the current path number in a new local variable and counts each completed path 
+ * in a per-method table:</p>
+ * <pre>
+ *   final long[] $paths = MethodProfileRegistry.getCounters( &lt;profile ID&gt; );
+ *   int $path = 0;
+ *   ...
+ *   $path += &lt;increment&gt;;             // regular edge
+ *   ...
+ *   $paths[ $path + &lt;increment&gt; ]++;  // loop back-edge
+ *   $path = &lt;increment&gt;;   
+ *   ...
+ *   $paths[ $path + &lt;increment&gt; ]++;  // method exit
+ *   return;
+ * </pre>
+ * 
+ * <p>Methods with more than {@link #MAX_PATHS} paths are not instrumented.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see PathProfile
+ * @see MethodProfileRegistry
+ */
+public class PathProfilingInstrumenter extends AbstractProfilingInstrumenter
+{
+    /**
+     * Maximum number of paths through a method , limits the size of the path table (and 
+     * keeps increments within the range of the IINC instruction).
+     */
+    public static final int MAX_PATHS = 1 << 15;
+
+    private static final int NONE = Integer.MIN_VALUE;
+
+    // per profiling graph edge
+    private int[] increment; // added to path register on regular edges 
+    private int[] countIncrement; // used to index path table on back-edges and exit edges 
+    private int[] resetValue; // assigned to path register on entry/handler edges and back-edges
+
+    private int pathSlot;
+    private int tableSlot;
+
+    /**
+     * Create instance.
+     * 
+     * @param className fully-qualified name of the class the method belongs to
+     * @param graph control-flow graph of the method to instrument
+     */
+    public PathProfilingInstrumenter(String className,ControlFlowGraph graph)
+    {
+        super( className , graph );
+    }
+
+    /**
+     * Instruments the method.
+     * 
+     * <p>The {@link MethodNode} is modified in-place , the
+     * method's profile gets registered with the {@link MethodProfileRegistry}.</p>
+     * 
+     * @return the method's profile or <code>null</code> if the method could not be instrumented
+     * because it uses subroutines (JSR/RET instructions) or has too many paths
+     */
+    public PathProfile instrument()
+    {
+        if ( ! createProfilingGraph() ) {
+            return null;
+        }
+
+        final int edgeCount = getEdgeCount();
+        final boolean[] backEdges = findBackEdges();
+
+        // create DAG , remembering which DAG edges correspond to which profiling graph edge
+        final List<int[]> dagEdges = new ArrayList<>(); // { src , dst , type }
+        final int[] dagEdge = new int[ edgeCount ];
+        final int[] loopStartEdge = new int[ edgeCount ];
+        final int[] loopEndEdge = new int[ edgeCount ];
+        Arrays.fill( dagEdge , -1 );
+        Arrays.fill( loopStartEdge , -1 );
+        Arrays.fill( loopEndEdge , -1 );
+        for ( int e = 0 ; e < edgeCount ; e++ ) 
+        {
+            final int src = getEdgeSource( e );
+            final int dst = getEdgeDestination( e );
+            if ( src == EXIT ) {
+                continue;
+            }
+            if ( backEdges[e] ) 
+            {
+                loopStartEdge[e] = dagEdges.size();
+                dagEdges.add( new int[] { ENTRY , dst , PathProfile.EDGE_LOOP_START } );
+                loopEndEdge[e] = dagEdges.size();
+                dagEdges.add( new int[] { src , EXIT , PathProfile.EDGE_LOOP_END } );
+            } 
+            else 
+            {
+                dagEdge[e] = dagEdges.size();
+                dagEdges.add( new int[] { src , dst , isHandlerEdge( e ) ? PathProfile.EDGE_HANDLER : PathProfile.EDGE_REGULAR } );
+            }
+        }
+
+        final long[] values = computeIncrements( dagEdges );
+        if ( values == null ) {
+            return null;
+        }
+
+        final int dagEdgeCount = dagEdges.size();
+        final int[] edgeSrc = new int[ dagEdgeCount ];
+        final int[] edgeDst = new int[ dagEdgeCount ];
+        final int[] edgeIncrement = new int[ dagEdgeCount ];
+        final byte[] edgeTypes = new byte[ dagEdgeCount ];
+        for ( int i = 0 ; i < dagEdgeCount ; i++ ) 
+        {
+            edgeSrc[i] = dagEdges.get(i)[0];
+            edgeDst[i] = dagEdges.get(i)[1];
+            edgeTypes[i] = (byte) dagEdges.get(i)[2];
+            edgeIncrement[i] = (int) values[i];
+        }
+        final int pathCount = (int) values[ dagEdgeCount ];
+
+        // derive instrumentation actions
+        increment = new int[ edgeCount ];
+        countIncrement = new int[ edgeCount ];
+        resetValue = new int[ edgeCount ];
+        Arrays.fill( countIncrement , NONE );
+        Arrays.fill( resetValue , NONE );
+        for ( int e = 0 ; e < edgeCount ; e++ ) 
+        {
+            if ( getEdgeSource( e ) == EXIT ) {
+                continue;
+            }
+            if ( backEdges[e] ) 
+            {
+                countIncrement[e] = edgeIncrement[ loopEndEdge[e] ];
+                resetValue[e] = edgeIncrement[ loopStartEdge[e] ];
+            } 
+            else if ( getEdgeSource( e ) == ENTRY ) 
+            {
+                resetValue[e] = edgeIncrement[ dagEdge[e] ];
+            } 
+            else if ( getEdgeDestination( e ) == EXIT ) 
+            {
+                countIncrement[e] = edgeIncrement[ dagEdge[e] ];
+            } else {
+                increment[e] = edgeIncrement[ dagEdge[e] ];
+            }
+        }
+
+        final PathProfile profile = new PathProfile( className , method.name , method.desc , 
+                Arrays.copyOf( nodeFirst , nodeCount ) , nodeInstructionCount , edgeSrc , edgeDst , edgeIncrement , edgeTypes , pathCount );
+        final int profileId = MethodProfileRegistry.register( profile );
+
+        tableSlot = newLocal( 1 );
+        pathSlot = newLocal( 1 );
+
+        final InsnList prologue = new InsnList();
+        prologue.add( pushInt( profileId ) );
+        prologue.add( new MethodInsnNode( INVOKESTATIC , "de/codesourcery/asm/profiling/MethodProfileRegistry" , "getCounters" , "(I)[J" ) );
+        prologue.add( new VarInsnNode( ASTORE , tableSlot ) );
+
+        insertCode( prologue );
+        return profile;
+    }
+
+    /*
+     * Computes the Ball-Larus increment for each DAG edge by visiting nodes in 
+     * reverse topological order. 
+     * 
+     * Returns increments with the total number of paths appended or NULL if there
+     * are too many paths.
+     */
+    private long[] computeIncrements(List<int[]> dagEdges) 
+    {
+        final List<List<Integer>> successors = new ArrayList<>( nodeCount );
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            successors.add( new ArrayList<Integer>() );
+        }
+        for ( int i = 0 ; i < dagEdges.size() ; i++ ) {
+            successors.get( dagEdges.get(i)[0] ).add( i );
+        }
+
+        final long[] result = new long[ dagEdges.size() + 1 ];
+        final long[] pathCount = new long[ nodeCount ];
+
+        // post-order DFS visits successors before their predecessors
+        final boolean[] visited = new boolean[ nodeCount ];
+        final int[] stack = new int[ nodeCount ];
+        final int[] nextSucc = new int[ nodeCount ];
+        int top = 0;
+        stack[top++] = ENTRY;
+        visited[ ENTRY ] = true;
+        while ( top > 0 ) 
+        {
+            final int node = stack[top-1];
+            final List<Integer> succ = successors.get( node );
+            if ( nextSucc[node] < succ.size() ) 
+            {
+                final int dst = dagEdges.get( succ.get( nextSucc[node]++ ) )[1];
+                if ( ! visited[dst] ) 
+                {
+                    visited[dst] = true;
+                    stack[top++] = dst;
+                }
+                continue;
+            }
+            top--;
+
+            if ( node == EXIT ) 
+            {
+                pathCount[node] = 1;
+                continue;
+            }
+            long paths = 0;
+            for ( int e : succ ) 
+            {
+                result[e] = paths;
+                paths += pathCount[ dagEdges.get(e)[1] ];
+                if ( paths > MAX_PATHS ) {
+                    return null;
+                }
+            }
+            pathCount[node] = paths;
+        }
+        result[ dagEdges.size() ] = pathCount[ ENTRY ];
+        return result;
+    }
+
+    @Override
+    protected boolean hasEdgeCode(int edge)
+    {
+        return increment[edge] != 0 || countIncrement[edge] != NONE || resetValue[edge] != NONE;
+    }
+
+    @Override
+    protected InsnList createEdgeCode(int edge)
+    {
+        final InsnList result = new InsnList();
+        if ( countIncrement[edge] != NONE ) 
+        {
+            // $paths[ $path + countIncrement ] += <counter increment>
+            result.add( new VarInsnNode( ALOAD , tableSlot ) );
+            result.add( new VarInsnNode( ILOAD , pathSlot ) );
+            if ( countIncrement[edge] != 0 ) 
+            {
+                result.add( pushInt( countIncrement[edge] ) );
+                result.add( new InsnNode( IADD ) );
+            }
+            result.add( new InsnNode( DUP2 ) );
+            result.add( new InsnNode( LALOAD ) );
+            result.add( pushCounterIncrement() );
+            result.add( new InsnNode( LADD ) );
+            result.add( new InsnNode( LASTORE ) );
+        }
+        if ( resetValue[edge] != NONE ) 
+        {
+            // $path = resetValue
+            result.add( pushInt( resetValue[edge] ) );
+            result.add( new VarInsnNode( ISTORE , pathSlot ) );
+        }
+        if ( increment[edge] != 0 ) {
+            // $path += increment
+            result.add( new IincInsnNode( pathSlot , increment[edge] ) );
+        }
+        return result;
+    }
+}
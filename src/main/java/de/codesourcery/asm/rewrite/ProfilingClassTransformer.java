@@ -17,20 +17,44 @@ package de.codesourcery.asm.rewrite;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.objectweb.asm.ClassReader;
 
+import de.codesourcery.asm.profiling.BlockHeatMap;
+import de.codesourcery.asm.profiling.IProfilingStatistics;
+import de.codesourcery.asm.profiling.MethodProfileRegistry;
+import de.codesourcery.asm.profiling.MetricsServer;
+import de.codesourcery.asm.profiling.ProfileExporter;
+import de.codesourcery.asm.profiling.ProfilingStatistics;
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.rewrite.ProfilingRewriter.InstrumentationMode;
+import de.codesourcery.asm.util.ClassHierarchy;
 import de.codesourcery.asm.util.IClassReaderProvider;
 import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asm.util.JoinpointFilter;
 
 /**
  * A Java instrumentation agent that applies the {@link ProfilingRewriter} to
@@ -45,9 +69,16 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * java "-javaagent:target/profilingagent.jar=packages=TestClass;debug=true" ...
  * </pre>
  * 
+ * <p>The agent may also be loaded into an already running JVM using {@link AgentLauncher} , in this case
+ * retransformation support is always enabled and already loaded classes matching the <code>packages</code> option get 
+ * retransformed in batches. Attaching to a JVM that already runs the agent just replaces the active patterns.</p>
+ * 
  * <p>
- * The agent supports the following agent options of which only <code>packages</code> is mandatory. Multiple
- * options need to be separated by semicolons (packages=a;debug=true;...)</p>
+ * The agent supports the following agent options of which only <code>packages</code> is mandatory (unless
+ * <code>retransform=true</code> is used). Multiple options need to be separated by semicolons (packages=a;debug=true;...). 
+ * A semicolon only separates options if it is followed by an option name and '=' , so descriptors of object types may be used 
+ * in patterns as they are (<code>packages=a.B#foo(Ljava/lang/String;)V;debug=true</code>). A pattern whose descriptor ends with
+ * a semicolon needs a second one if another option follows (<code>packages=a.B#getName()Ljava/lang/String;;debug=true</code>).</p>
  * 
  * <table border="1">
  *   <tr>
@@ -59,8 +90,23 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *   <tr>
  *     <td>packages</td>
  *     <td>YES</td>
- *     <td>comma-separated list of patterns a fully-qualified classname needs to match in order to be instrumented</td>
- *     <td>packages=some.package,some.package.MyClass,ClassInAnyPackage</td>
+ *     <td>comma-separated list of patterns selecting the classes and methods to instrument , see {@link JoinpointFilter} for the syntax. 
+ *     A pattern may be suffixed with <code>#methodName</code> or <code>#methodName(descriptor)</code> to only instrument 
+ *     some methods , patterns prefixed with '-' exclude classes or methods</td>
+ *     <td>packages=some.package,some.package.MyClass,ClassInAnyPackage,MyClass#doWork(Ljava/lang/String;)V,-some.package.internal.*</td>
+ *   </tr>
+ *   <tr>
+ *     <td>excludes</td>
+ *     <td>no</td>
+ *     <td>comma-separated list of patterns of classes and methods that are never instrumented , also applies 
+ *     to patterns set at runtime through the {@link IInstrumentationController}</td>
+ *     <td>excludes=*#get*()*,*#set*,some.framework.*</td>
+ *   </tr>
+ *   <tr>
+ *     <td>minSize</td>
+ *     <td>no</td>
+ *     <td>minimum number of byte-code instructions a method needs to have in order to be instrumented , defaults to 0</td>
+ *     <td>minSize=10</td>
  *   </tr>
  *   <tr>
  *     <td>debug</td>
@@ -74,6 +120,98 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *     <td>name of directory where instrumented classes should be written to</td>
  *     <td>debugDir=/tmp</td>
  *   </tr>  
+ *   <tr>
+ *     <td>mode</td>
+ *     <td>no</td>
+ *     <td>kind of instrumentation (see {@link ProfilingRewriter.InstrumentationMode}) , defaults to <code>blocks</code></td>
+ *     <td>mode=edges</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>report</td>
+ *     <td>no</td>
+ *     <td>file to write the edge/path profile or block heat map to when the JVM terminates , defaults to standard output (not used with <code>mode=blocks</code>)</td>
+ *     <td>report=/tmp/profile.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>flushThreshold</td>
+ *     <td>no</td>
+ *     <td>number of instructions a thread executes before its instruction count gets flushed , defaults to {@link StatisticsManager#DEFAULT_GRANULARITY} (only used with <code>mode=blocks</code>)</td>
+ *     <td>flushThreshold=1000000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>export</td>
+ *     <td>no</td>
+ *     <td>memory-mapped file to periodically publish per-thread instruction counts and block heat map counters to (see {@link ProfileExporter})</td>
+ *     <td>export=/tmp/profile.bin</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>exportInterval</td>
+ *     <td>no</td>
+ *     <td>milliseconds between updates of the export file , defaults to 1000</td>
+ *     <td>exportInterval=100</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>samplingInterval</td>
+ *     <td>no</td>
+ *     <td>only execute the instrumented code of a method on average every n-th invocation and scale counts accordingly 
+ *     (see {@link ProfilingRewriter#setSamplingInterval(int)}) , defaults to 1 (no sampling)</td>
+ *     <td>samplingInterval=100</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>foldCosts</td>
+ *     <td>no</td>
+ *     <td>do not instrument private , loop-free methods but add their constant cost to the calling blocks 
+ *     (see {@link ProfilingRewriter#setCostFolding(boolean)}) , only used with <code>mode=blocks</code></td>
+ *     <td>foldCosts=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>retransform</td>
+ *     <td>no</td>
+ *     <td>enables switching instrumentation on and off at runtime through {@link #getController()} and the JMX MBean
+ *     <code>de.codesourcery.asm:type=InstrumentationController</code> , <code>packages</code> becomes optional 
+ *     and no classes get instrumented until requested if it is omitted</td>
+ *     <td>retransform=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>jmx</td>
+ *     <td>no</td>
+ *     <td>registers the platform MXBean <code>de.codesourcery.asm:type=ProfilingStatistics</code> (see {@link IProfilingStatistics}) 
+ *     that exposes instruction counts , disabled by default because it initializes the platform MBean server during JVM startup</td>
+ *     <td>jmx=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>metricsPort</td>
+ *     <td>no</td>
+ *     <td>starts an HTTP server on this port that serves instruction counts in the Prometheus text format (<code>/metrics</code>) 
+ *     and as JSON (<code>/snapshot</code>) , see {@link MetricsServer}. Port 0 picks a free port</td>
+ *     <td>metricsPort=9404</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>metricsHost</td>
+ *     <td>no</td>
+ *     <td>address the HTTP server listens on , defaults to {@link #DEFAULT_METRICS_HOST}</td>
+ *     <td>metricsHost=0.0.0.0</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>batchSize</td>
+ *     <td>no</td>
+ *     <td>maximum number of already loaded classes to retransform at once , defaults to {@link InstrumentationController#DEFAULT_BATCH_SIZE}</td>
+ *     <td>batchSize=20</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>cache</td>
+ *     <td>no</td>
+ *     <td>directory to persist instrumented classes in so that later JVM runs can skip rewriting them (see {@link TransformedClassCache}) , 
+ *     may be shared by multiple JVMs. Only used with <code>mode=blocks</code> , the other modes embed IDs into the generated code that 
+ *     are only valid for the current JVM</td>
+ *     <td>cache=/tmp/classcache</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>cacheSize</td>
+ *     <td>no</td>
+ *     <td>maximum size of the cache directory in bytes , defaults to {@link #DEFAULT_CACHE_SIZE}</td>
+ *     <td>cacheSize=10000000</td>
+ *   </tr>  
  * </table>
  * </p>
  * 
@@ -85,22 +223,97 @@ public class ProfilingClassTransformer
     private static final String OPTION_DEBUG = "debug";
     private static final String OPTION_DEBUG_WRITE_CLASSFILES = "debugDir";
     private static final String OPTION_PACKAGES = "packages";
+    private static final String OPTION_MODE = "mode";
+    private static final String OPTION_REPORT = "report";
+    private static final String OPTION_FLUSH_THRESHOLD = "flushThreshold";
+    private static final String OPTION_EXPORT = "export";
+    private static final String OPTION_EXPORT_INTERVAL = "exportInterval";
+    private static final String OPTION_RETRANSFORM = "retransform";
+    private static final String OPTION_BATCH_SIZE = "batchSize";
+    private static final String OPTION_SAMPLING_INTERVAL = "samplingInterval";
+    private static final String OPTION_CACHE = "cache";
+    private static final String OPTION_CACHE_SIZE = "cacheSize";
+    private static final String OPTION_EXCLUDES = "excludes";
+    private static final String OPTION_MIN_SIZE = "minSize";
+    private static final String OPTION_FOLD_COSTS = "foldCosts";
+    private static final String OPTION_JMX = "jmx";
+    private static final String OPTION_METRICS_PORT = "metricsPort";
+    private static final String OPTION_METRICS_HOST = "metricsHost";
+    
+    private static final long DEFAULT_EXPORT_INTERVAL = 1000;
+    
+    /**
+     * Default maximum size of the {@link TransformedClassCache} in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 64*1024*1024;
+    
+    /**
+     * Default address the {@link MetricsServer} listens on.
+     */
+    public static final String DEFAULT_METRICS_HOST = "127.0.0.1";
+    
+    /**
+     * JMX object name the {@link IInstrumentationController} gets registered under.
+     */
+    public static final String CONTROLLER_OBJECT_NAME = "de.codesourcery.asm:type=InstrumentationController";
+    
+    /**
+     * JMX object name the {@link IProfilingStatistics} get registered under.
+     */
+    public static final String STATISTICS_OBJECT_NAME = "de.codesourcery.asm:type=ProfilingStatistics";
+    
+    private static volatile InstrumentationController controller;
+    private static boolean started;
+    
+    // applied to all filters created by createFilter()
+    private static volatile String[] excludes = new String[0];
+    private static volatile int minMethodSize;
 
     public static void premain(String agentArgs, Instrumentation inst) 
+    {
+        start( agentArgs , inst , false );
+    }
+    
+    /**
+     * Entry point when the agent gets loaded into a running JVM.
+     * 
+     * @param agentArgs
+     * @param inst
+     * @see AgentLauncher
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) 
+    {
+        start( agentArgs , inst , true );
+    }
+    
+    private static synchronized void start(String agentArgs, Instrumentation inst, boolean attached) 
     {
         // parse options
         final Map<String, String> options = parseArgs( agentArgs);
         
-        if ( StringUtils.isBlank( options.get(OPTION_PACKAGES ) ) )
+        if ( started ) 
+        {
+            if ( controller == null ) {
+                throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" is already running without retransformation support");
+            }
+            if ( StringUtils.isNotBlank( options.get( OPTION_PACKAGES ) ) ) {
+                controller.instrument( options.get( OPTION_PACKAGES ) );
+            }
+            return;
+        }
+        
+        final boolean retransform = attached || "true".equalsIgnoreCase( options.get( OPTION_RETRANSFORM ) );
+        
+        if ( ! retransform && StringUtils.isBlank( options.get(OPTION_PACKAGES ) ) )
         {
             throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires the 'packages=....' option");
         }
 
         final boolean debug = options.containsKey(OPTION_DEBUG);
         
-        final String[] packages = options.get(OPTION_PACKAGES ).split(",");
+        final String[] packages = parsePatterns( options.get(OPTION_PACKAGES ) );
         
-        if ( ArrayUtils.isEmpty( packages ) ) 
+        if ( ! retransform && ArrayUtils.isEmpty( packages ) ) 
         {
             throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires at least one pattern with the 'packages=....' option");            
         }
@@ -109,28 +322,273 @@ public class ProfilingClassTransformer
             System.out.println("ProfilingClassTransformer activated (packages: "+StringUtils.join(packages," , " )+")");
         }
 
-        final IJoinpointFilter filter = new IJoinpointFilter() {
-            
-            @Override
-            public boolean matches(String clazz, String methodName)
+        excludes = parsePatterns( options.get( OPTION_EXCLUDES ) );
+        try {
+            minMethodSize = options.containsKey( OPTION_MIN_SIZE ) ? Integer.parseInt( options.get( OPTION_MIN_SIZE ) ) : 0;
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid minimum method size '"+options.get( OPTION_MIN_SIZE )+"'",e);
+        }
+        
+        final IJoinpointFilter filter;
+        try {
+            filter = createFilter( packages );
+        } catch(IllegalArgumentException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid patterns: "+e.getMessage(),e);
+        }
+        
+        final InstrumentationMode mode;
+        try {
+            mode = options.containsKey( OPTION_MODE ) ? InstrumentationMode.valueOf( options.get( OPTION_MODE ).toUpperCase() ) : InstrumentationMode.BLOCKS;
+        } catch(IllegalArgumentException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" does not support mode '"+options.get( OPTION_MODE )+"'");
+        }
+
+        if ( options.containsKey( OPTION_FLUSH_THRESHOLD ) ) 
+        {
+            try {
+                StatisticsManager.setGranularity( Integer.parseInt( options.get( OPTION_FLUSH_THRESHOLD ) ) );
+            } catch(IllegalArgumentException e) {
+                throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid flush threshold '"+options.get( OPTION_FLUSH_THRESHOLD )+"'",e);
+            }
+        }
+
+        final int samplingInterval;
+        try {
+            samplingInterval = options.containsKey( OPTION_SAMPLING_INTERVAL ) ? Integer.parseInt( options.get( OPTION_SAMPLING_INTERVAL ) ) : 1;
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid sampling interval '"+options.get( OPTION_SAMPLING_INTERVAL )+"'",e);
+        }
+
+        if ( mode != InstrumentationMode.BLOCKS ) {
+            final File reportFile = options.containsKey( OPTION_REPORT ) ? new File( options.get( OPTION_REPORT ) ) : null;
+            Runtime.getRuntime().addShutdownHook( new Thread("profile-report") {
+                
+                @Override
+                public void run()
+                {
+                    writeProfile( reportFile , mode , samplingInterval );
+                }
+            });
+        }
+
+        if ( options.containsKey( OPTION_EXPORT ) ) {
+            startExport( new File( options.get( OPTION_EXPORT ) ) , options.get( OPTION_EXPORT_INTERVAL ) );
+        }
+
+        final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
+        final MyTransformer transformer = new MyTransformer(filter,debug,debugOutputDir,mode);
+        try {
+            transformer.setSamplingInterval( samplingInterval );
+        } catch(IllegalArgumentException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid sampling interval: "+e.getMessage(),e);
+        }
+        transformer.setCostFolding( "true".equalsIgnoreCase( options.get( OPTION_FOLD_COSTS ) ) );
+        if ( options.containsKey( OPTION_CACHE ) ) 
+        {
+            if ( mode == InstrumentationMode.BLOCKS ) {
+                transformer.setCache( createCache( new File( options.get( OPTION_CACHE ) ) , options.get( OPTION_CACHE_SIZE ) , debug ) );
+            } else {
+                System.err.println("Agent "+ProfilingClassTransformer.class.getName()+" ignores the '"+OPTION_CACHE+"' option with mode "+mode);
+            }
+        }
+        if ( "true".equalsIgnoreCase( options.get( OPTION_JMX ) ) ) {
+            // initializing the platform MBean server loads lots of classes , do this before the transformer is active
+            registerMBean( new ProfilingStatistics() , IProfilingStatistics.class , STATISTICS_OBJECT_NAME , true );
+        }
+        if ( options.containsKey( OPTION_METRICS_PORT ) ) {
+            // loads the HTTP server classes , do this before the transformer is active
+            startMetricsServer( options.get( OPTION_METRICS_HOST ) , options.get( OPTION_METRICS_PORT ) , debug );
+        }
+        if ( ! retransform ) {
+            inst.addTransformer( transformer , false ); // no re-transformation support
+            started = true;
+            return;
+        }
+        
+        if ( ! inst.isRetransformClassesSupported() ) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires a JVM that supports retransforming classes");
+        }
+        final InstrumentationController newController = new InstrumentationController( inst , transformer , packages );
+        if ( options.containsKey( OPTION_BATCH_SIZE ) ) 
+        {
+            try {
+                newController.setBatchSize( Integer.parseInt( options.get( OPTION_BATCH_SIZE ) ) );
+            } catch(IllegalArgumentException e) {
+                throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid batch size '"+options.get( OPTION_BATCH_SIZE )+"'",e);
+            }
+        }
+        // initializing the platform MBean server loads lots of classes , do this before the transformer is active
+        registerMBean( newController , IInstrumentationController.class , CONTROLLER_OBJECT_NAME , false );
+        inst.addTransformer( transformer , true );
+        controller = newController;
+        started = true;
+        
+        if ( attached && packages.length > 0 ) 
+        {
+            final int count = newController.retransformMatching();
+            if ( debug ) {
+                System.out.println("ProfilingClassTransformer retransformed "+count+" already loaded classes");
+            }
+        }
+    }
+    
+    /**
+     * Returns the controller for switching instrumentation on and off at runtime.
+     * 
+     * @return controller or <code>null</code> if the agent is not running or
+     * has not been started with the <code>retransform=true</code> option
+     */
+    public static IInstrumentationController getController() 
+    {
+        return controller;
+    }
+    
+    private static <T> void registerMBean(T bean,Class<T> mbeanInterface,String objectName,boolean mxBean) 
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( new StandardMBean( bean , mbeanInterface , mxBean ) , new ObjectName( objectName ) );
+        } 
+        catch(JMException e) {
+            System.err.println("Agent "+ProfilingClassTransformer.class.getName()+" failed to register MBean "+objectName+" ("+e.getMessage()+")");
+        }
+    }
+    
+    /**
+     * Splits a comma-separated list of patterns.
+     * 
+     * @param patterns patterns , may be <code>null</code>
+     * @return non-blank , trimmed patterns
+     */
+    static String[] parsePatterns(String patterns) 
+    {
+        final List<String> result = new ArrayList<>();
+        if ( patterns != null ) 
+        {
+            for ( String pattern : patterns.split(",") ) 
             {
-                return true;
+                if ( StringUtils.isNotBlank( pattern ) ) {
+                    result.add( pattern.trim() );
+                }
             }
+        }
+        return result.toArray( new String[ result.size() ] );
+    }
+    
+    /**
+     * Creates a filter from patterns , the patterns from the <code>excludes</code> option 
+     * and the <code>minSize</code> option get added automatically.
+     * 
+     * @param patterns patterns as described by {@link JoinpointFilter}
+     * @return filter , matches nothing if no patterns are given
+     * @throws IllegalArgumentException if a pattern is malformed
+     */
+    static IJoinpointFilter createFilter(String[] patterns) throws IllegalArgumentException
+    {
+        final List<String> all = new ArrayList<>( Arrays.asList( patterns ) );
+        for ( String exclude : excludes ) {
+            all.add( exclude.startsWith("-") ? exclude : "-"+exclude );
+        }
+        return JoinpointFilter.compile( all.toArray( new String[ all.size() ] ) , minMethodSize );
+    }
+
+    private static TransformedClassCache createCache(File directory,String size,boolean debug) 
+    {
+        final long maxSize;
+        try {
+            maxSize = size != null ? Long.parseLong( size ) : DEFAULT_CACHE_SIZE;
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid cache size '"+size+"'",e);
+        }
+        final TransformedClassCache cache;
+        try {
+            cache = new TransformedClassCache( directory , maxSize );
+        } catch(IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" failed to create cache in "+directory.getAbsolutePath(),e);
+        }
+        if ( debug ) 
+        {
+            Runtime.getRuntime().addShutdownHook( new Thread("class-cache-report") {
+                
+                @Override
+                public void run()
+                {
+                    System.out.println( cache );
+                }
+            });
+        }
+        return cache;
+    }
+
+    private static void startMetricsServer(String host,String port,boolean debug) 
+    {
+        final InetSocketAddress address;
+        try {
+            address = new InetSocketAddress( host != null ? host : DEFAULT_METRICS_HOST , Integer.parseInt( port ) );
+        } catch(IllegalArgumentException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid metrics port '"+port+"'",e);
+        }
+        final MetricsServer server;
+        try {
+            server = new MetricsServer( address );
+        } catch(IOException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" failed to start metrics server on "+address,e);
+        }
+        server.start();
+        if ( debug ) {
+            System.out.println("ProfilingClassTransformer serves metrics on http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort()+MetricsServer.METRICS_PATH);
+        }
+    }
+    
+    private static void startExport(File file,String interval) 
+    {
+        final long intervalMillis;
+        try {
+            intervalMillis = interval != null ? Long.parseLong( interval ) : DEFAULT_EXPORT_INTERVAL;
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" got invalid export interval '"+interval+"'",e);
+        }
+        final ProfileExporter exporter;
+        try {
+            exporter = new ProfileExporter( file );
+        } catch(IOException e) {
+            throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" failed to create export file "+file.getAbsolutePath(),e);
+        }
+        final Thread publisher = exporter.start( intervalMillis );
+        Runtime.getRuntime().addShutdownHook( new Thread("profile-export-shutdown") {
             
             @Override
-            public boolean matches(String clazz)
+            public void run()
             {
-                for ( String p : packages ) {
-                    if ( clazz.contains( p ) ) {
-                        return true;
-                    }
-                }
-                return false;
+                publisher.interrupt();
+                exporter.close();
             }
-        };
-        
-        final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
-        inst.addTransformer(new MyTransformer(filter,debug,debugOutputDir) , false ); // no re-transformation support
+        });
+    }
+
+    private static void writeProfile(File reportFile,InstrumentationMode mode,int samplingInterval) 
+    {
+        if ( reportFile == null ) {
+            writeProfile( new PrintWriter( System.out ) , mode , samplingInterval );
+            return;
+        }
+        try ( PrintWriter writer = new PrintWriter( new FileWriter( reportFile ) ) ) {
+            writeProfile( writer , mode , samplingInterval );
+        } 
+        catch(IOException e) {
+            System.err.println("Failed to write profile to "+reportFile.getAbsolutePath()+" ("+e.getMessage()+")");
+        }
+    }
+
+    private static void writeProfile(PrintWriter writer,InstrumentationMode mode,int samplingInterval) 
+    {
+        if ( samplingInterval > 1 ) {
+            writer.println("Sampled every "+samplingInterval+". invocation , counts are estimates");
+        }
+        if ( mode == InstrumentationMode.HEATMAP ) {
+            BlockHeatMap.writeReport( writer );
+        } else {
+            MethodProfileRegistry.writeReport( writer );
+        }
     }
 
     private static Map<String,String> parseArgs(String arguments) 
@@ -139,8 +597,9 @@ public class ProfilingClassTransformer
         if ( StringUtils.isBlank( arguments ) ) {
             return result;
         }
-        for ( String pair : arguments.split(";") ) {
-            final String[] keyValue = pair.split("=");
+        // semicolons inside descriptors (e.g. Ljava/lang/String;) are never followed by 'name='
+        for ( String pair : arguments.split(";(?=\\w+=)") ) {
+            final String[] keyValue = pair.split("=",2);
             if ( keyValue.length != 2 ) {
                 throw new IllegalArgumentException("Malformed agent options: '"+arguments+"'");
             }
@@ -149,28 +608,138 @@ public class ProfilingClassTransformer
         return result;
     }
     
+    // cache key configuration and the filter it was computed for
+    private static final class CacheConfiguration 
+    {
+        public final IJoinpointFilter filter;
+        public final String description; // null if the filter cannot be described
+        
+        public CacheConfiguration(IJoinpointFilter filter, String description)
+        {
+            this.filter = filter;
+            this.description = description;
+        }
+    }
+    
     public static final class MyTransformer implements ClassFileTransformer 
     {
         private final ProfilingRewriter rewriter = new ProfilingRewriter();
-        private final IJoinpointFilter filter;
+        private final Set<String> instrumentedClasses = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+        private volatile IJoinpointFilter filter;
+        private volatile TransformedClassCache cache;
+        private volatile CacheConfiguration cacheConfiguration;
         private final boolean debug;
         private final File debugWriteClassfiles;
         
         public MyTransformer(IJoinpointFilter filter,boolean debug,File debugWriteClassfiles) 
+        {
+            this( filter , debug , debugWriteClassfiles , InstrumentationMode.BLOCKS );
+        }
+        
+        public MyTransformer(IJoinpointFilter filter,boolean debug,File debugWriteClassfiles,InstrumentationMode mode) 
         {
             this.filter = filter;
+            rewriter.setInstrumentationMode( mode );
             this.debug = debug;
             if ( debug ) {
                 rewriter.setDebugMode( true );
                 rewriter.setVerboseMode( true );
             }
             this.debugWriteClassfiles = debugWriteClassfiles;
+            updateCacheConfiguration();
+        }
+        
+        /**
+         * Sets the filter that selects classes and methods to instrument.
+         * 
+         * <p>Only affects classes that get loaded or retransformed afterwards.</p>
+         * 
+         * @param filter
+         */
+        public void setFilter(IJoinpointFilter filter)
+        {
+            if ( filter == null ) {
+                throw new IllegalArgumentException("filter must not be NULL.");
+            }
+            this.filter = filter;
+            updateCacheConfiguration();
+        }
+        
+        public IJoinpointFilter getFilter()
+        {
+            return filter;
+        }
+        
+        /**
+         * Sets the sampling interval of the rewriter.
+         * 
+         * @param samplingInterval
+         * @see ProfilingRewriter#setSamplingInterval(int)
+         */
+        public void setSamplingInterval(int samplingInterval)
+        {
+            rewriter.setSamplingInterval( samplingInterval );
+            updateCacheConfiguration();
+        }
+        
+        /**
+         * Enables folding costs of constant-cost methods into their callers.
+         * 
+         * @param costFolding
+         * @see ProfilingRewriter#setCostFolding(boolean)
+         */
+        public void setCostFolding(boolean costFolding)
+        {
+            rewriter.setCostFolding( costFolding );
+            updateCacheConfiguration();
+        }
+        
+        /**
+         * Sets the cache to look up instrumented classes in before rewriting them.
+         * 
+         * <p>The cache is only used with {@link InstrumentationMode#BLOCKS} and when
+         * debug mode is off , other modes generate code that is only valid in the current JVM.</p>
+         * 
+         * @param cache cache or <code>null</code> to always rewrite classes
+         */
+        public void setCache(TransformedClassCache cache)
+        {
+            this.cache = cache;
+        }
+        
+        public TransformedClassCache getCache()
+        {
+            return cache;
+        }
+        
+        /**
+         * Check whether the currently active version of a class has been instrumented by this transformer.
+         * 
+         * @param fqName fully-qualified class name
+         * @return
+         */
+        public boolean isInstrumented(String fqName)
+        {
+            return instrumentedClasses.contains( fqName );
+        }
+        
+        public int getInstrumentedClassCount()
+        {
+            return instrumentedClasses.size();
         }
         
         public byte[] transform(ClassLoader l, String name, Class<?> c,ProtectionDomain d, final byte[] b) throws IllegalClassFormatException 
         {
+            if ( name == null ) {
+                return null; // anonymous class
+            }
             final String fqName = name.replace("/",".");
-            if ( ! filter.matches( fqName ) ) {
+            final IJoinpointFilter filter = this.filter;
+            if ( ! filter.matches( fqName ) ) 
+            {
+                if ( c != null ) {
+                    instrumentedClasses.remove( fqName ); // retransformation , b is the original class file
+                }
                 return b;
             }
             
@@ -193,12 +762,36 @@ public class ProfilingClassTransformer
                 }
             };
             
+            // cache is bypassed if the filter has been replaced concurrently
+            final CacheConfiguration configuration = this.cacheConfiguration;
+            final TransformedClassCache cache = ( debug || rewriter.getInstrumentationMode() != InstrumentationMode.BLOCKS || 
+                    configuration.filter != filter || configuration.description == null ) ? null : this.cache;
             try {
-                final byte[] result = rewriter.rewrite(provider, filter);
+                byte[] result = null;
+                if ( cache != null ) 
+                {
+                    final ClassHierarchy hierarchy = ClassHierarchy.forClassLoader( l );
+                    hierarchy.register( new ClassReader( b ) );
+                    result = cache.get( b , configuration.description , hierarchy );
+                }
+                if ( result == null ) 
+                {
+                    final Map<String,String> resolvedSuperClasses = cache != null ? new HashMap<String,String>() : null;
+                    result = rewriter.rewrite(provider, filter, l, resolvedSuperClasses);
+                    if ( cache != null ) 
+                    {
+                        try {
+                            cache.put( b , configuration.description , result , resolvedSuperClasses );
+                        } catch(IOException e) {
+                            System.err.println("Failed to cache transformed class "+fqName+" ("+e.getMessage()+")");
+                        }
+                    }
+                }
                 if ( debugWriteClassfiles != null ) 
                 {
                     writeDebugClassfile( fqName , result );
                 }
+                instrumentedClasses.add( fqName );
                 return result;
             } 
             catch (Exception e) {
@@ -207,6 +800,24 @@ public class ProfilingClassTransformer
             }
         }
         
+        /*
+         * Everything besides the class file and the class hierarchy that influences the rewriter's output:
+         * instrumentation mode , sampling interval , cost folding , filter patterns and minimum method size. 
+         * Computed whenever one of them changes instead of once per class.
+         */
+        private synchronized void updateCacheConfiguration() 
+        {
+            final IJoinpointFilter filter = this.filter;
+            String description = null;
+            if ( filter instanceof JoinpointFilter ) 
+            {
+                final JoinpointFilter patterns = (JoinpointFilter) filter;
+                description = rewriter.getInstrumentationMode()+";sampling="+rewriter.getSamplingInterval()+";fold="+rewriter.isCostFolding()+
+                        ";minSize="+patterns.getMinInstructionCount()+";patterns="+StringUtils.join( patterns.getPatterns() , "," );
+            } 
+            cacheConfiguration = new CacheConfiguration( filter , description );
+        }
+        
         private void writeDebugClassfile(String fqName , byte[] data) 
         {
             final File outfile = new File( debugWriteClassfiles , fqName.replace(".",File.separator)+".class" );
@@ -18,19 +18,15 @@ package de.codesourcery.asm.rewrite;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
 import java.util.ListIterator;
 import java.util.Map;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Handle;
-import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
@@ -38,10 +34,16 @@ import org.objectweb.asm.tree.analysis.AnalyzerException;
 import de.codesourcery.asm.controlflow.ControlFlowAnalyzer;
 import de.codesourcery.asm.controlflow.ControlFlowGraph;
 import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.profiling.BlockHeatMap;
 import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.IMethodProfile;
+import de.codesourcery.asm.profiling.MethodProfileRegistry;
+import de.codesourcery.asm.profiling.Sampler;
 import de.codesourcery.asm.profiling.StatisticsManager;
 import de.codesourcery.asm.util.ASMUtil;
+import de.codesourcery.asm.util.ClassHierarchy;
 import de.codesourcery.asm.util.Disassembler;
+import de.codesourcery.asm.util.HierarchyClassWriter;
 import de.codesourcery.asm.util.IClassReaderProvider;
 import de.codesourcery.asm.util.IJoinpointFilter;
 
@@ -64,13 +66,24 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * <pre>
  * public void testMethod() { 
  *   final ExecutionStatistics $stat  = StatisticsManager.getStatistics();
- *   $stat.executedInstructionCount += 1; // original method was empty and thus only contained a single RETURN instruction
- *   if ( $stat.executedInstructionCount >= 0 ) {
- *     StatisticsManager.account();
+ *   if ( ! $stat.shared ) {
+ *     $stat.executedInstructionCount += 1; // original method was empty and thus only contained a single RETURN instruction
+ *     if ( $stat.executedInstructionCount >= 0 ) {
+ *       StatisticsManager.account( $stat );
+ *     }
+ *   } else {
+ *     StatisticsManager.accountShared( $stat , 1 ); // virtual thread outside of any scope
  *   }
  * }
  * </pre>
  * 
+ * <p>Alternatively , methods can be instrumented for edge profiling (see {@link InstrumentationMode#EDGES}) or 
+ * path profiling (see {@link InstrumentationMode#PATHS}).</p>
+ * 
+ * <p>To reduce overhead , instrumentation can be restricted to a sample of all method invocations (see {@link #setSamplingInterval(int)}).
+ * Each instrumented method then contains both its original and its instrumented code , a check at method entry 
+ * selects the instrumented version on average every n-th time and counters are incremented by n instead of 1.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * 
  * @see ControlFlowAnalyzer
@@ -80,8 +93,66 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  */
 public class ProfilingRewriter implements Opcodes
 {
+    /**
+     * Kind of instrumentation to apply.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static enum InstrumentationMode 
+    {
+        /**
+         * Count executed instructions per thread by updating {@link ExecutionStatistics} at
+         * the start of each block.
+         */
+        BLOCKS,
+        /**
+         * Count edge executions per method , using as few counters as possible. Only edges that are
+         * not part of a maximum spanning tree of the control-flow graph are instrumented , block execution 
+         * counts and executed instructions are reconstructed offline.
+         * 
+         * @see EdgeProfilingInstrumenter
+         * @see MethodProfileRegistry
+         */
+        EDGES,
+        /**
+         * Count how often each acyclic path (Ball-Larus path) through a method is executed. 
+         * 
+         * @see PathProfilingInstrumenter
+         * @see MethodProfileRegistry
+         */
+        PATHS,
+        /**
+         * Count executions of each block in a single , application-wide counter table.
+         * 
+         * @see HeatMapInstrumenter
+         * @see BlockHeatMap
+         */
+        HEATMAP;
+    }
+
+    /**
+     * Version of the instrumentation code.
+     *
+     * <p>Needs to be incremented whenever a change to the rewriter or one of the instrumenters alters
+     * the generated byte-code so that persisted results become invalid.</p>
+     *
+     * @see TransformedClassCache
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * Largest supported sampling interval.
+     */
+    public static final int MAX_SAMPLING_INTERVAL = 1024;
+
+    // methods with more instructions are never sampled , duplicating their code might exceed the maximum method size
+    private static final int MAX_SAMPLED_INSTRUCTIONS = 4000;
+
     private boolean debug = false;
     private boolean verbose = false;
+    private InstrumentationMode mode = InstrumentationMode.BLOCKS;
+    private int samplingInterval = 1;
+    private boolean costFolding = false;
 
     public ProfilingRewriter() {
     }
@@ -125,6 +196,63 @@ public class ProfilingRewriter implements Opcodes
         this.verbose = verbose;
     }
 
+    public void setInstrumentationMode(InstrumentationMode mode)
+    {
+        if ( mode == null ) {
+            throw new IllegalArgumentException("mode must not be NULL.");
+        }
+        this.mode = mode;
+    }
+    
+    public InstrumentationMode getInstrumentationMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Sets how often the instrumented code of a method should be executed.
+     * 
+     * <p>With an interval <code>n</code> larger than 1 , instrumented methods keep an uninstrumented copy of their code
+     * and only execute the instrumented version on average every <code>n</code>-th invocation (per thread, see {@link Sampler}).
+     * Counters are incremented by <code>n</code> so all profiles contain estimated execution counts. Methods 
+     * that are too large to be duplicated are always executing their instrumented code.</p>
+     * 
+     * @param samplingInterval interval between 1 (no sampling , default) and {@link #MAX_SAMPLING_INTERVAL}
+     */
+    public void setSamplingInterval(int samplingInterval)
+    {
+        if ( samplingInterval < 1 || samplingInterval > MAX_SAMPLING_INTERVAL ) {
+            throw new IllegalArgumentException("Sampling interval must be in range [1,"+MAX_SAMPLING_INTERVAL+"] , was: "+samplingInterval);
+        }
+        this.samplingInterval = samplingInterval;
+    }
+
+    public int getSamplingInterval()
+    {
+        return samplingInterval;
+    }
+
+    /**
+     * Enables folding the costs of private , loop-free methods into their callers.
+     * 
+     * <p>Such methods execute a constant number of instructions , instead of instrumenting them their cost
+     * gets added to the count of each calling block. This reduces the overhead for small helper methods while
+     * keeping instruction totals identical. When sampling , folded costs are only counted if the calling method 
+     * executes its instrumented version. Only used with {@link InstrumentationMode#BLOCKS}.</p>
+     * 
+     * @param costFolding
+     * @see ConstantCostAnalyzer
+     */
+    public void setCostFolding(boolean costFolding)
+    {
+        this.costFolding = costFolding;
+    }
+
+    public boolean isCostFolding()
+    {
+        return costFolding;
+    }
+
     private void logVerbose(String msg) {
         if ( verbose ) {
             System.out.println( msg );
@@ -151,63 +279,90 @@ public class ProfilingRewriter implements Opcodes
         return rewrite( provider , filter );
     }
     
-    @SuppressWarnings("unchecked")
+    /**
+     * Rewrites a class , resolving types using the class loader that loaded this class.
+     * 
+     * @param provider
+     * @param filter
+     * @return
+     * @throws IOException
+     * @throws AnalyzerException
+     * @see #rewrite(IClassReaderProvider, IJoinpointFilter, ClassLoader)
+     */
     public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter) throws IOException, AnalyzerException 
     {
-        // first pass: create control flow graphs (CFGs) for all methods and constructors
+        return rewrite( provider , filter , ProfilingRewriter.class.getClassLoader() );
+    }
+    
+    /**
+     * Rewrites a class.
+     * 
+     * <p>The class file is parsed only once: methods matching the filter are buffered as {@link MethodNode}s , analyzed and
+     * instrumented in-place before being written , all other methods are copied to the output verbatim. If
+     * {@link #setCostFolding(boolean) cost folding} is enabled , the class is instead parsed into a {@link ClassNode} 
+     * that gets analyzed by {@link ConstantCostAnalyzer} and then written from the tree.</p>
+     * 
+     * <p>Stack map frames are computed using a {@link ClassHierarchy} that reads class-file headers through 
+     * the given class loader's resources , no classes are loaded while rewriting.</p>
+     * 
+     * @param provider
+     * @param filter
+     * @param classLoader class loader the rewritten class will be defined by , <code>null</code> for the bootstrap class loader
+     * @return
+     * @throws IOException
+     * @throws AnalyzerException
+     */
+    public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter,ClassLoader classLoader) throws IOException, AnalyzerException 
+    {
+        return rewrite( provider , filter , classLoader , null );
+    }
+    
+    /**
+     * Rewrites a class and reports the parts of the class hierarchy the result depends on.
+     * 
+     * @param provider
+     * @param filter
+     * @param classLoader class loader the rewritten class will be defined by , <code>null</code> for the bootstrap class loader
+     * @param resolvedSuperClasses map that receives all common super-classes computed for stack map frames , may be <code>null</code>
+     * @return
+     * @throws IOException
+     * @throws AnalyzerException
+     * @see HierarchyClassWriter#getResolvedSuperClasses()
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter,ClassLoader classLoader,Map<String,String> resolvedSuperClasses) throws IOException, AnalyzerException 
+    {
         final String classToAnalyze = provider.getClassName();
-        logVerbose("Analyzing "+classToAnalyze+" ... ");
-
-        final ClassNode cn = new ClassNode();
-        provider.getClassReader().accept( cn , 0 );
-
-        final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
-
-        final Map<String,ControlFlowGraph> graphs = new HashMap<>();
-        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
-        {
-            if ( filter.matches( classToAnalyze , mn.name ) ) {
-                logVerbose("Analyzing method "+mn.name);
-                if ( debug ) {
-                	System.out.println( Disassembler.disassemble( mn , true , true ) );
-                }
-                final ControlFlowGraph graph = analyzer.analyze( classToAnalyze , mn );
-                if ( debug ) {
-                	System.out.println("Method "+mn.name+"_"+mn.desc+" has the following blocks");
-                	for ( IBlock bl : graph.getAllNodes() ) {
-                		if ( bl.isVirtual(mn) ) {
-                    		System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (virtual)");                			
-                		} else {
-                    		final int first = bl.getFirstByteCodeInstructionNum( mn );
-                    		System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (first = "+first+")");                			
-                		}
-                	}
-                }
-				graphs.put( methodNodeToKey( mn ), graph );
-            } else {
-                logVerbose("Ignoring method "+mn.name);
-            }
-        }
-
-        // second pass: rewrite methods and constructors by inserting custom code at the start of each basic block in the control flow graph
         logVerbose("Rewriting "+classToAnalyze+" ... ");
 
-        final ClassWriter writer;
-        if ( graphs.isEmpty() ) 
+        final ClassReader reader = provider.getClassReader();
+        final HierarchyClassWriter writer = new HierarchyClassWriter( reader , ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS , 
+                ClassHierarchy.forClassLoader( classLoader ) );
+        final MyClassVisitor visitor;
+        if ( costFolding && mode == InstrumentationMode.BLOCKS ) 
+        {
+            // folding needs to see all call sites before the first method gets written
+            final ClassNode classNode = new ClassNode();
+            reader.accept( classNode , 0 );
+            visitor = new MyClassVisitor( writer , classToAnalyze , filter , ConstantCostAnalyzer.analyze( classToAnalyze , classNode , filter ) );
+            classNode.accept( visitor );
+        } 
+        else 
         {
-            writer = new ClassWriter(0);
-            provider.getClassReader().accept( writer , 0 );
-        } else {
-            writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-            provider.getClassReader().accept( new MyClassVisitor( writer,graphs ) , 0 );
+            visitor = new MyClassVisitor( writer , classToAnalyze , filter , Collections.<String,Integer>emptyMap() );
+            reader.accept( visitor , 0 );
+        }
+        if ( visitor.failure != null ) {
+            throw visitor.failure;
         }
         
         final byte[] result = writer.toByteArray();
+        if ( resolvedSuperClasses != null ) {
+            resolvedSuperClasses.putAll( writer.getResolvedSuperClasses() );
+        }
         if ( debug ) {
-        	final ClassReader reader = new ClassReader( result );
-        	
         	final ClassNode classNode = new ClassNode();
-        	reader.accept( classNode , 0 );
+        	new ClassReader( result ).accept( classNode , 0 );
         	
         	System.out.println("==== Transformed class "+classToAnalyze+" ====");
         	
@@ -223,572 +378,161 @@ public class ProfilingRewriter implements Opcodes
         return result;
     }
 
-    private static String methodNodeToKey(MethodNode mn) {
-        return methodNodeToKey( mn.name , mn.desc );
-    }
-
-    private static String methodNodeToKey(String methodName,String methodDesc) {
-        return methodName+"_"+methodDesc;
-    }    
-
-    protected final class MyClassVisitor extends ClassVisitor 
-    {
-        private final Map<String,ControlFlowGraph> graphs;
-
-        protected MyClassVisitor(ClassVisitor cv,Map<String,ControlFlowGraph> graphs)
-        {
-            super(ASM4, cv);
-            this.graphs = graphs;
-        }
-
-        @Override
-        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
-        {
-            final MethodVisitor result = super.visitMethod(access, name, desc, signature, exceptions);
-
-            final ControlFlowGraph cfg = graphs.get( methodNodeToKey( name , desc )  );
-
-            if ( cfg == null ) // no CFG , write method unaltered
-            {
-                if ( debug ) {
-                    System.out.println("DEBUG: Found no CFG for method "+methodNodeToKey( name , desc ) );
-                }
-                return result;
-            }
-
-            // determine number of slot where we'll store our newly introduced local variable (see below)
-            // Since we already scanned the class file while creating the CFG , we can make use of this knowledge
-            // (otherwise we would've to subclass LocalVariablesSorter)
-            final int slotNr = cfg.getMethod().maxLocals;
-
-            if ( debug ) {
-                System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" with "+slotNr+" local vars ***");
-            }            
-
-            /* Setup visitor stack:
-             * 
-             * 1. InstructionCountingVisitor - keeps track of the index of the current byte-code instruction within the method
-             * 2. LoadVarVisitor - introduces a new local variable at the start of each method/constructor:  ExecutionStatistics $stat = StatisticsManager#getStatistics()
-             * 3. BasicBlockVisitor - at the start of each control flow graph node , introduces byte-code that increments  $stat by the number of instructions in this block
-             *                        and invokes StatisticsManager#account() if necessary 
-             */
-            final InstructionCountingVisitor visitor1 = new InstructionCountingVisitor();
-
-            final boolean isConstructor = name.equals("<init>");
-            final LoadVarVisitor visitor2 = new  LoadVarVisitor(new BasicBlockVisitor( result , visitor1 , cfg , slotNr , isConstructor ) , slotNr , isConstructor );
-
-            visitor1.setDelegate( visitor2 );
-            return visitor1;
-        }
-    }
-
     /**
-     * This visitor generates bytecode at the start of a method that loads
-     * the results of calling {@link StatisticsManager#getStatistics()} into a local variable.
+     * Creates the control-flow graph of a method and instruments it according to the 
+     * current instrumentation mode.
      * 
-     * <p>The generated byte-code is the equivalent of calling:
-     * 
-     * <pre>
-     *   final ExecutionStatistics $stat = StatisticsManager#getStatistics();
-     * </pre>
-     * </p>
-     * @author tobias.gierke@code-sourcery.de
+     * @param analyzer
+     * @param className
+     * @param mn
+     * @param foldedCallees methods of the class whose costs are added to the calling blocks
+     * @throws AnalyzerException
      */
-    protected final class LoadVarVisitor extends DeferredMethodVisitor {
-
-        private boolean superConstructorInvoked = false;        
-        private boolean atFirstLabel = true;
-
-        private final boolean visitingConstructor;
-        public final int variableSlot;
-
-        // scope for our newly introduced variable , required for visitLocalVariable() call later
-        private Label scopeStart;
-        private Label scopeEnd;           
-
-        protected LoadVarVisitor(MethodVisitor mv,int variableSlot,boolean visitingConstructor)
-        {
-            super(mv);
-            this.variableSlot = variableSlot;
-            this.visitingConstructor = visitingConstructor;
+    private void instrument(ControlFlowAnalyzer analyzer,String className,MethodNode mn,Map<String,Integer> foldedCallees) throws AnalyzerException 
+    {
+        logVerbose("Analyzing method "+mn.name);
+        if ( debug ) {
+            System.out.println( Disassembler.disassemble( mn , true , true ) );
         }
-
-        @Override
-        public void visitCode()
-        {
-            super.visitCode();
-            scopeStart = null;
-            scopeEnd = null;            
-        }        
-
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc)
-        {
-            super.visitMethodInsn(opcode, owner, name, desc);
-            if ( visitingConstructor && ! superConstructorInvoked && opcode == Opcodes.INVOKESPECIAL && name.equals("<init>" ) ) {
-                superConstructorInvoked = true;
-                insertCode();
+        final ControlFlowGraph graph = analyzer.analyze( mn );
+        if ( debug ) {
+            System.out.println("Method "+mn.name+"_"+mn.desc+" has the following blocks");
+            for ( IBlock bl : graph.getAllNodes() ) {
+                if ( bl.isVirtual(mn) ) {
+                    System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (virtual)");                            
+                } else {
+                    final int first = bl.getFirstByteCodeInstructionNum( mn );
+                    System.out.println( bl+" with "+bl.getByteCodeInstructionCount( mn )+" instructions (first = "+first+")");                          
+                }
             }
         }
 
-        private void insertCode() {
-            if ( debug ) {
-                System.out.println("DEBUG: >>>>>>>>>>>>>>>>>>> Loading ExecutionStatistics into local variable slot #"+variableSlot);
-            }           
-            scopeStart = new Label();
-            super.visitLabel( scopeStart );
-            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
-            super.visitVarInsn(ASTORE, variableSlot);                 
-        }
+        // take copy of uninstrumented code if sampling
+        final int interval = samplingInterval > 1 && ASMUtil.countByteCodeInstructions( mn ) <= MAX_SAMPLED_INSTRUCTIONS ? samplingInterval : 1;
+        final MethodCopy original = interval > 1 ? new MethodCopy( mn ) : null;
 
-        @Override
-        public void visitLabel(Label label)
+        final boolean instrumented;
+        switch( mode ) 
         {
-            if ( scopeStart == null ) {
-                scopeStart = label;
-            }
-            scopeEnd = label;
-
-            super.visitLabel(label);
-
-            // if visiting a regular method, we'll insert our code right after the first label
-            // constructors get special treatment in visitMethodInsn()
-            if ( ! visitingConstructor && atFirstLabel ) {
-                atFirstLabel = false;
-                insertCode();
-            }
+            case BLOCKS:
+                final InstructionCountingInstrumenter counter = new InstructionCountingInstrumenter( className , graph );
+                counter.setCounterIncrement( interval );
+                counter.setFoldedCallees( foldedCallees );
+                instrumented = counter.instrument();
+                if ( ! instrumented ) {
+                    logVerbose("Method "+mn.name+" uses subroutines, not instrumented");
+                }
+                break;
+            case EDGES:
+            case PATHS:
+                final IMethodProfile profile;
+                if ( mode == InstrumentationMode.EDGES ) 
+                {
+                    final EdgeProfilingInstrumenter edges = new EdgeProfilingInstrumenter( className , graph );
+                    edges.setCounterIncrement( interval );
+                    profile = edges.instrument();
+                } 
+                else 
+                {
+                    final PathProfilingInstrumenter paths = new PathProfilingInstrumenter( className , graph );
+                    paths.setCounterIncrement( interval );
+                    profile = paths.instrument();
+                }
+                instrumented = profile != null;
+                if ( profile == null ) {
+                    logVerbose("Method "+mn.name+" uses subroutines or has too many paths, not instrumented");
+                } else {
+                    logVerbose("Instrumented "+profile);
+                }
+                break;
+            case HEATMAP:
+                final HeatMapInstrumenter heatMap = new HeatMapInstrumenter( className , graph );
+                heatMap.setCounterIncrement( interval );
+                final int firstBlockId = heatMap.instrument();
+                instrumented = firstBlockId != -1;
+                if ( firstBlockId == -1 ) {
+                    logVerbose("Method "+mn.name+" uses subroutines or has too many blocks, not instrumented");
+                } else {
+                    logVerbose("Instrumented "+mn.name+mn.desc+" , first block ID: "+firstBlockId);
+                }
+                break;
+            default:
+                throw new RuntimeException("Unhandled mode: "+mode);
         }
 
-        @Override
-        public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index)
+        if ( instrumented && original != null ) 
         {
-            super.visitLocalVariable(name, desc, signature, start, end, index);
-
-            if ( index == variableSlot-1 ) 
-            {
-                if ( debug ) {
-                    System.out.println("DEBUG: >>>>>>>>>>>>>>>>>>> Declaring local variable at slot #"+variableSlot);
-                }                 
-                // signature may be NULL if variable does not use generics
-                String descriptor = Type.getDescriptor( ExecutionStatistics.class );
-                super.visitLocalVariable("$stat", desc, descriptor , scopeStart, scopeEnd , variableSlot); 
-            }
-        }        
+            original.insertDispatch( mn , interval );
+            logVerbose("Method "+mn.name+" samples every "+interval+". invocation");
+        } 
+        else if ( instrumented && samplingInterval > 1 ) {
+            logVerbose("Method "+mn.name+" is too large to be sampled , always instrumented");
+        }
     }
 
-    // for each basic control block, inserts code that increments ExecutionStatistics#executedInstructionCount for the current thread
-    // and invokes StatisticsManager#account() once the instruction count is >= 0
-    protected final class BasicBlockVisitor extends DeferredMethodVisitor 
+    /**
+     * Buffers methods matching the joinpoint filter , instruments them and 
+     * writes them to the delegate. Other methods are passed through unaltered.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class MyClassVisitor extends ClassVisitor 
     {
-        private final boolean visitingConstructor;
-        private final ControlFlowGraph cfg;
-        private final InstructionCountingVisitor counter;
-        private final int variableSlot;
-
-        private boolean superConstructorCallSeen = false;
+        private final String className;
+        private final IJoinpointFilter filter;
+        private final Map<String,Integer> foldedCallees;
+        private final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+        
+        protected AnalyzerException failure;
 
-        protected BasicBlockVisitor(MethodVisitor mv,InstructionCountingVisitor instructionCounter,
-                ControlFlowGraph cfg,int variableSlot,boolean visitingConstructor)
+        protected MyClassVisitor(ClassVisitor cv,String className,IJoinpointFilter filter,Map<String,Integer> foldedCallees)
         {
-            super(mv);
-            this.counter = instructionCounter;
-            this.cfg = cfg;
-            this.variableSlot = variableSlot;
-            this.visitingConstructor = visitingConstructor;
-        }
-
-        protected int currentInstructionNum() {
-            return counter.getCurrentInstructionNum();
+            super(ASM4, cv);
+            this.className = className;
+            this.filter = filter;
+            this.foldedCallees = foldedCallees;
         }
 
-        private void maybeInsertCode() 
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
         {
-            final int insnNum = currentInstructionNum();
-            final IBlock block = cfg.getBlockForInstruction( insnNum );
-
-            if ( block == null ) {
-                System.out.println("DEBUG: Found no block that starts at instruction "+insnNum);                
-                return;
-            }
-            
-            if ( block.isVirtual( cfg.getMethod() ) ) {
-            	return;
+            final MethodVisitor result = super.visitMethod(access, name, desc, signature, exceptions);
+            if ( result == null || ( access & (ACC_ABSTRACT|ACC_NATIVE) ) != 0 ) {
+                return result;
             }
-
-            if ( visitingConstructor && ! superConstructorCallSeen && block.getIndexOfSuperConstructorCall( cfg.getMethod() )+1 == insnNum ) 
+            if ( ! filter.matches( className , name ) ) 
             {
-                superConstructorCallSeen = true;
-                // we're inside a constructor and the current block contains the INVOKESPECIAL init()
-                // => insert our code AFTER the INVOKESPECIAL instruction
-                if ( debug ) {
-                    System.out.println("DEBUG: >>>>>>>>>>>>>>>>>>> Inserting constructor code before instruction "+insnNum );
-                    System.out.println("Block:\n"+block.disassemble( cfg.getMethod() , true , true ));
-                }                
-                insertCode( block );
-            } 
-            else if ( ( ! visitingConstructor || (visitingConstructor && superConstructorCallSeen) ) && 
-                    block.getFirstByteCodeInstructionNum( cfg.getMethod() ) == insnNum )
+                // returning the ClassWriter's visitor directly lets ASM copy the method verbatim
+                logVerbose("Ignoring method "+name);
+                return result;
+            }
+            if ( foldedCallees.containsKey( name+desc ) ) 
             {
-                // we're at the start of a basic block , inject custom code in front of it
-                if ( debug ) {
-                    System.out.println("DEBUG: >>>>>>>>>>>>>>>>>>> Inserting code before instruction "+insnNum );
-                    System.out.println( block+" has "+block.getByteCodeInstructionCount( cfg.getMethod() )+" instructions." );
-                    System.out.println("Block:\n"+block.disassemble( cfg.getMethod() , true , true ));
-                }                
-                insertCode( block );
-            } 
-        }
-
-        /**
-         * Insert bytecode.
-         * 
-         * <p>
-         * This method inserts bytecode for the following java code:
-         * 
-         * <pre>
-         *   // hint: the $stat variable has already been declared at the start of the method
-         *   $stat.executedInstructionCount += &lt;Number of instructions in upcoming block&gt;;
-         *   if ( $stat.executedInstructionCount >= 0 ) {
-         *       StatisticsManager.account();
-         *   }         
-         * </pre>
-         * 
-         * </p>
-         * @param block block that will begin on the next instruction
-         */
-        private void insertCode(IBlock block) 
-        {
-        	// note: local variable @ #variableSlot is already initialized with reference to the
-        	// current thread's ExecutionStatistics instance here
-
-            //            mv.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
-            //            mv.visitVarInsn(ASTORE, variableSlot);              
-
-            // push reference to ExecutionStatistics on stack & duplicate it   
-            super.visitVarInsn(ALOAD, variableSlot);
-            super.visitInsn(DUP);
-
-            /* Stack is now:
-             * 
-             * ExecutionStatistics <-- stack ptr
-             * ExecutionStatistics 
-             */
-            // fetch the current value of ExecutionStatistics#executedInstructionCount and put it on the stack
-            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
-
-            // push the number of instructions in this block onto the stack
-            final int insCount = block.getByteCodeInstructionCount(cfg.getMethod() );
-            if ( insCount <= Byte.MAX_VALUE ) {
-            	super.visitIntInsn(BIPUSH , insCount );
-            } else if ( insCount <= Short.MAX_VALUE ) {
-            	super.visitIntInsn(SIPUSH , insCount );
-            } else {
-            	super.visitLdcInsn( insCount );
+                logVerbose("Method "+name+desc+" has a constant cost of "+foldedCallees.get( name+desc )+" instructions , folded into its callers");
+                return result;
             }
 
-            /* Stack is now:
-             * 
-             * <instruction count >
-             * ExecutionStatistics#executedInstructionCount
-             * ExecutionStatistics 
-             */
-
-            // pops two values from the stack, adds them and pushes the result onto the stack
-            super.visitInsn(IADD);
-
-            /* Stack is now:
-             * 
-             * <instruction count > + ExecutionStatistics#executedInstructionCount
-             * ExecutionStatistics 
-             */              
-
-            // update ExecutionStatistics#executedInstructionCount (pops value off the stack)
-            super.visitFieldInsn(PUTFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
-
-            // *** stack is now empty again ***
-
-            // put ExecutionStatistics reference on stack 
-            super.visitVarInsn(ALOAD, variableSlot);
-
-            /* Stack is now:
-             * 
-             * ExecutionStatistics 
-             */
-
-            // read updated ExecutionStatistics#executedInstructionCount and put it on the stack
-            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
-
-            /* Stack is now:
-             * 
-             * ExecutionStatistics#executedInstructionCount 
-             */
-
-            final Label rest = new Label(); // label used to jump to the actual start of the current control block
-            
-            // conditional branch , do NOT invoke StatisticsManager#account() if value on stack is less than zero ( < 0 )
-            super.visitJumpInsn(IFLT, rest);
-
-            // *** stack is now empty again ***
-
-            // invoke StatisticsManager#account()
-            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "account", "()V");
-
-            // assign location to label
-            super.visitLabel(rest);
-        }
-
-        @Override
-        public void visitInsn(int opcode)
-        {
-            maybeInsertCode();
-            super.visitInsn(opcode);
-        }
-
-        @Override
-        public void visitIntInsn(int opcode, int operand)
-        {
-            maybeInsertCode();
-            super.visitIntInsn(opcode, operand);
-        }
-
-        @Override
-        public void visitVarInsn(int opcode, int var)
-        {
-            maybeInsertCode();
-            super.visitVarInsn(opcode, var);
-        }
-
-        @Override
-        public void visitTypeInsn(int opcode, String type)
-        {
-            maybeInsertCode();
-            super.visitTypeInsn(opcode, type);
-        }
-
-        @Override
-        public void visitFieldInsn(int opcode, String owner, String name, String desc)
-        {
-            maybeInsertCode();
-            super.visitFieldInsn(opcode, owner, name, desc);
-        }
-
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc)
-        {
-            maybeInsertCode();
-            super.visitMethodInsn(opcode, owner, name, desc);
-        }
-
-        @Override
-        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs)
-        {
-            maybeInsertCode();
-            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
-        }
-
-        @Override
-        public void visitJumpInsn(int opcode, Label label)
-        {
-            maybeInsertCode();
-            super.visitJumpInsn(opcode, label);
-        }
-
-        @Override
-        public void visitLabel(Label label)
-        {
-            maybeInsertCode();
-            super.visitLabel(label);
-        }
-
-        @Override
-        public void visitLdcInsn(Object cst)
-        {
-            maybeInsertCode();
-            super.visitLdcInsn(cst);
-        }
-
-        @Override
-        public void visitIincInsn(int var, int increment)
-        {
-            maybeInsertCode();
-            super.visitIincInsn(var, increment);
-        }
-
-        @Override
-        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
-        {
-            maybeInsertCode();
-            super.visitTableSwitchInsn(min, max, dflt, labels);
-        }
-
-        @Override
-        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
-        {
-            maybeInsertCode();
-            super.visitLookupSwitchInsn(dflt, keys, labels);
-        }
-
-        @Override
-        public void visitMultiANewArrayInsn(String desc, int dims)
-        {
-            maybeInsertCode();
-            super.visitMultiANewArrayInsn(desc, dims);
-        }       
-    }
-
-    // subclass that exposes the protected "mv" field of MethodVisitor so
-    // we can set the delegate after object construction
-    protected class DeferredMethodVisitor extends MethodVisitor {
-
-        protected DeferredMethodVisitor(MethodVisitor mv)
-        {
-            super(ASM4, mv);
-        }
-
-        protected DeferredMethodVisitor()
-        {
-            super(ASM4);
-        }
-
-        public void setDelegate(MethodVisitor mv) {
-            this.mv = mv;
+            return new MethodNode(ASM4, access, name, desc, signature, exceptions) {
+
+                @Override
+                public void visitEnd()
+                {
+                    super.visitEnd();
+                    if ( ! filter.matches( className , name , desc , ASMUtil.countByteCodeInstructions( this ) ) ) {
+                        logVerbose("Ignoring method "+name+desc);
+                    }
+                    else if ( failure == null ) 
+                    {
+                        try {
+                            instrument( analyzer , className , this , foldedCallees );
+                        } 
+                        catch (AnalyzerException e) {
+                            failure = e;
+                        }
+                    }
+                    accept( result );
+                }
+            };
         }
     }
-
-    // keeps track of the current byte-code instruction's index within a method
-    protected final class InstructionCountingVisitor extends DeferredMethodVisitor 
-    {
-        protected int currentInstructionCount=0;
-
-        public int getCurrentInstructionNum() {
-            return currentInstructionCount;
-        }
-
-        private void incInsnCount() {
-            currentInstructionCount++;
-            if ( debug ) {
-                System.out.println("DEBUG: Now at instruction "+currentInstructionCount);
-            }
-        }
-
-        @Override
-        public void visitInsn(int opcode)
-        {
-            super.visitInsn(opcode);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitCode()
-        {
-            super.visitCode();
-            currentInstructionCount = 0;
-        }
-
-        @Override
-        public void visitIntInsn(int opcode, int operand)
-        {
-            super.visitIntInsn(opcode, operand);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitVarInsn(int opcode, int var)
-        {
-            super.visitVarInsn(opcode, var);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitTypeInsn(int opcode, String type)
-        {
-            super.visitTypeInsn(opcode, type);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitFieldInsn(int opcode, String owner, String name, String desc)
-        {
-            super.visitFieldInsn(opcode, owner, name, desc);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc)
-        {
-            super.visitMethodInsn(opcode, owner, name, desc);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs)
-        {
-            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitJumpInsn(int opcode, Label label)
-        {
-            super.visitJumpInsn(opcode, label);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitLabel(Label label)
-        {
-            super.visitLabel(label);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitLdcInsn(Object cst)
-        {
-            super.visitLdcInsn(cst);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitIincInsn(int var, int increment)
-        {
-            super.visitIincInsn(var, increment);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
-        {
-            super.visitTableSwitchInsn(min, max, dflt, labels);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
-        {
-            super.visitLookupSwitchInsn(dflt, keys, labels);
-            incInsnCount();
-        }
-
-        @Override
-        public void visitMultiANewArrayInsn(String desc, int dims)
-        {
-            super.visitMultiANewArrayInsn(desc, dims);
-            incInsnCount();
-        }
-
-		@Override
-		public void visitFrame(int type, int nLocal, Object[] local,
-				int nStack, Object[] stack) {
-			super.visitFrame(type, nLocal, local, nStack, stack);
-            incInsnCount();			
-		}
-
-		@Override
-		public void visitLineNumber(int line, Label start) {
-			super.visitLineNumber(line, start);
-            incInsnCount();			
-		}
-        
-        
-    }    
 }
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.codesourcery.asm.controlflow.ControlFlowAnalyzer;
+import de.codesourcery.asm.controlflow.ControlFlowGraphCache;
+import de.codesourcery.asm.util.ClassHierarchy;
+import de.codesourcery.asm.util.ContentAddressedStore;
+import de.codesourcery.asm.util.HierarchyClassWriter;
+
+/**
+ * Persistent, content-addressed on-disk cache of instrumented class files.
+ * 
+ * <p>Entries are keyed by the SHA-1 hash of the original class file's bytes , a string describing the rewriter configuration 
+ * that was used to transform it , the {@link ProfilingRewriter#VERSION} and the {@link ControlFlowAnalyzer#VERSION}. Storage 
+ * and eviction of entries is left to a {@link ContentAddressedStore}.</p>
+ * 
+ * <p>The stack map frames of a transformed class depend on the class hierarchy it was transformed against. Each entry
+ * records the common super-classes that were computed while writing the class , lookups re-resolve them through the 
+ * {@link ClassHierarchy} of the requesting class loader and treat the entry as missing if any of them differs. This 
+ * keeps entries valid when the cache is shared by applications using different versions of the same libraries.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGraphCache
+ * @see ContentAddressedStore
+ */
+public class TransformedClassCache
+{
+    private static final int MAGIC = 0xCAFE0C1A;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String SUFFIX = ".class";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ContentAddressedStore store;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache.
+     * 
+     * @param directory directory to store entries in, created if it does not exist
+     * @param maxSizeInBytes maximum total size of all entries 
+     * @throws IOException if the directory could not be created
+     */
+    public TransformedClassCache(File directory,long maxSizeInBytes) throws IOException
+    {
+        this.store = new ContentAddressedStore( directory , SUFFIX , maxSizeInBytes );
+    }
+
+    /**
+     * Looks up the transformed version of a class file.
+     * 
+     * @param classFile original class file bytes
+     * @param configuration describes everything besides the class file and the class hierarchy that influences the transformation result
+     * @param hierarchy class hierarchy the transformed class will be used with
+     * @return transformed class file or <code>null</code> if not cached or transformed against a different class hierarchy
+     */
+    public byte[] get(byte[] classFile,String configuration,ClassHierarchy hierarchy) 
+    {
+        if ( hierarchy == null ) {
+            throw new IllegalArgumentException("hierarchy must not be NULL.");
+        }
+        final byte[] result = read( key( classFile , configuration ) , hierarchy );
+        if ( result != null ) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Stores the transformed version of a class file.
+     * 
+     * @param classFile original class file bytes
+     * @param configuration describes everything besides the class file and the class hierarchy that influences the transformation result
+     * @param transformed transformed class file
+     * @param resolvedSuperClasses common super-classes computed while transforming the class
+     * @throws IOException
+     * @see HierarchyClassWriter#getResolvedSuperClasses()
+     */
+    public void put(byte[] classFile,String configuration,byte[] transformed,Map<String,String> resolvedSuperClasses) throws IOException 
+    {
+        if ( transformed == null ) {
+            throw new IllegalArgumentException("transformed class must not be NULL.");
+        }
+        if ( resolvedSuperClasses == null ) {
+            throw new IllegalArgumentException("resolvedSuperClasses must not be NULL.");
+        }
+        write( key( classFile , configuration ) , transformed , resolvedSuperClasses );
+    }
+
+    /**
+     * Returns the number of lookups that were answered from the cache.
+     * @return
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that required transforming the class.
+     * @return
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size of all cache entries.
+     * @return
+     */
+    public long getSize() {
+        return store.getSize();
+    }
+
+    private byte[] read(String key,final ClassHierarchy hierarchy) 
+    {
+        return store.read( key , new ContentAddressedStore.IEntryReader<byte[]>() {
+
+            @Override
+            public byte[] read(MappedByteBuffer buffer) throws IOException
+            {
+                if ( buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ) {
+                    throw new IOException("Not a cache entry");
+                }
+                final Map<String,String> resolvedSuperClasses = new LinkedHashMap<>();
+                for ( int count = buffer.getInt() ; count > 0 ; count-- ) {
+                    resolvedSuperClasses.put( readString( buffer ) , readString( buffer ) );
+                }
+                if ( ! isUpToDate( resolvedSuperClasses , hierarchy ) ) {
+                    return null; // another application's version of this class , keep entry
+                }
+                final int length = buffer.getInt();
+                if ( length != buffer.remaining() ) {
+                    throw new IOException("Truncated cache entry");
+                }
+                final byte[] result = new byte[ length ];
+                buffer.get( result );
+                return result;
+            }
+        });
+    }
+
+    /*
+     * Check whether the class hierarchy still yields the common super-classes the entry was written with.
+     */
+    private static boolean isUpToDate(Map<String,String> resolvedSuperClasses,ClassHierarchy hierarchy) 
+    {
+        for ( Map.Entry<String,String> entry : resolvedSuperClasses.entrySet() ) 
+        {
+            final String types = entry.getKey();
+            final int separator = types.indexOf( ' ' );
+            try 
+            {
+                if ( ! entry.getValue().equals( hierarchy.getCommonSuperClass( types.substring( 0 , separator ) , types.substring( separator+1 ) ) ) ) {
+                    return false;
+                }
+            } 
+            catch(TypeNotPresentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(MappedByteBuffer buffer) throws IOException
+    {
+        final int length = buffer.getInt();
+        if ( length < 0 || length > buffer.remaining() ) {
+            throw new IOException("Truncated cache entry");
+        }
+        final byte[] data = new byte[ length ];
+        buffer.get( data );
+        return new String( data , UTF8 );
+    }
+
+    private static void writeString(DataOutputStream out,String value) throws IOException
+    {
+        final byte[] data = value.getBytes( UTF8 );
+        out.writeInt( data.length );
+        out.write( data );
+    }
+
+    private void write(String key,final byte[] data,final Map<String,String> resolvedSuperClasses) throws IOException 
+    {
+        store.write( key , new ContentAddressedStore.IEntryWriter() {
+
+            @Override
+            public void write(DataOutputStream out) throws IOException
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeInt( resolvedSuperClasses.size() );
+                for ( Map.Entry<String,String> entry : resolvedSuperClasses.entrySet() ) 
+                {
+                    writeString( out , entry.getKey() );
+                    writeString( out , entry.getValue() );
+                }
+                out.writeInt( data.length );
+                out.write( data );
+            }
+        });
+    }
+
+    private static String key(byte[] classFile,String configuration) 
+    {
+        final String versions = ProfilingRewriter.VERSION+"/"+ControlFlowAnalyzer.VERSION+"/"+FORMAT_VERSION;
+        // length prefix keeps configuration and class file bytes apart
+        final byte[] config = configuration.getBytes( UTF8 );
+        return ContentAddressedStore.key( versions.getBytes( UTF8 ) , 
+                new byte[] { (byte) (config.length >>> 24) , (byte) (config.length >>> 16) , (byte) (config.length >>> 8) , (byte) config.length } , 
+                config , classFile );
+    }
+
+    @Override
+    public String toString() {
+        return "TransformedClassCache[ "+store+" , hits="+hits.get()+" , misses="+misses.get()+" ]";
+    }
+}
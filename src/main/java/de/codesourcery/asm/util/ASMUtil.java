@@ -29,6 +29,7 @@ import org.apache.commons.lang.ArrayUtils;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 
 /**
  * Various ASM-related utility methods.
@@ -41,6 +42,25 @@ public class ASMUtil
         public void logVerbose(String msg);
     }
     
+    /**
+     * Returns the number of actual byte-code instructions of a method , 
+     * pseudo-instructions like labels , line numbers and frames are not counted.
+     * 
+     * @param method
+     * @return
+     */
+    public static int countByteCodeInstructions(MethodNode method) 
+    {
+        int result = 0;
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getOpcode() >= 0 ) {
+                result++;
+            }
+        }
+        return result;
+    }
+    
     /**
      * Check whether an instruction is a conditional branch operation.
      *  
@@ -131,7 +151,7 @@ public class ASMUtil
                 else if ( parent.isFile() ) // path entry is a (ZIP/JAR) file 
                 { 
                     final Path archive = Paths.get( parent.getAbsolutePath() );
-                    final FileSystem fs = FileSystems.newFileSystem(archive , null);
+                    final FileSystem fs = FileSystems.newFileSystem(archive , (ClassLoader) null);
                     final Path classFilePath = fs.getPath( relPath );
 
                     if ( Files.exists( classFilePath ) ) 
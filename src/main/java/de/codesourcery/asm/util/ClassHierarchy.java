@@ -0,0 +1,296 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Type hierarchy of the classes visible to a <code>ClassLoader</code> , built by reading class-file
+ * headers through {@link ClassLoader#getResourceAsStream(String)}.
+ * 
+ * <p>Unlike {@link Class#forName(String, boolean, ClassLoader)} this never loads , defines or initializes any class 
+ * and is thus safe to use from within a <code>ClassFileTransformer</code>. Headers are read at most once per class and
+ * <code>ClassLoader</code>. The headers are parsed without checking the class-file version , so classes
+ * compiled for newer JVMs than ASM supports (including the runtime's own classes) can be resolved as well.</p>
+ * 
+ * <p>Types that cannot be resolved are reported with a {@link TypeNotPresentException} instead of 
+ * guessing <code>java/lang/Object</code> , which would produce stack map frames that fail verification.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see HierarchyClassWriter
+ */
+public final class ClassHierarchy
+{
+    private static final String OBJECT = "java/lang/Object";
+
+    // cached per class loader , NULL key is used for the bootstrap class loader
+    private static final Map<ClassLoader,ClassHierarchy> INSTANCES = new WeakHashMap<>();
+    
+    private final WeakReference<ClassLoader> classLoader;
+    private final boolean bootstrap;
+    private final ConcurrentHashMap<String,ClassInfo> classes = new ConcurrentHashMap<>();
+
+    private static final class ClassInfo 
+    {
+        public final String superName;
+        public final String[] interfaces;
+        public final boolean isInterface;
+
+        public ClassInfo(String superName, String[] interfaces, boolean isInterface)
+        {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+    
+    private ClassHierarchy(ClassLoader classLoader) 
+    {
+        this.classLoader = new WeakReference<>( classLoader );
+        this.bootstrap = classLoader == null;
+    }
+    
+    /**
+     * Returns the (shared) hierarchy for a class loader.
+     * 
+     * @param classLoader class loader , <code>null</code> for the bootstrap class loader
+     * @return
+     */
+    public static ClassHierarchy forClassLoader(ClassLoader classLoader) 
+    {
+        synchronized( INSTANCES ) 
+        {
+            ClassHierarchy result = INSTANCES.get( classLoader );
+            if ( result == null ) 
+            {
+                result = new ClassHierarchy( classLoader );
+                INSTANCES.put( classLoader , result );
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Adds a class that is not (yet) available as a resource , for example the class 
+     * currently being transformed.
+     * 
+     * @param reader
+     */
+    public void register(ClassReader reader) 
+    {
+        classes.put( reader.getClassName() , createInfo( reader ) );
+    }
+    
+    private static ClassInfo createInfo(ClassReader reader) 
+    {
+        return new ClassInfo( reader.getSuperName() , reader.getInterfaces() , ( reader.getAccess() & Opcodes.ACC_INTERFACE ) != 0 );
+    }
+    
+    private ClassInfo getInfo(String internalName) throws TypeNotPresentException
+    {
+        ClassInfo result = classes.get( internalName );
+        if ( result == null ) 
+        {
+            // missing classes are not cached , they may become available later on
+            result = readInfo( internalName );
+            classes.putIfAbsent( internalName , result );
+        }
+        return result;
+    }
+    
+    private ClassInfo readInfo(String internalName) throws TypeNotPresentException
+    {
+        final String resource = internalName+".class";
+        final ClassLoader loader = classLoader.get();
+        final InputStream in;
+        if ( bootstrap ) {
+            in = ClassLoader.getSystemResourceAsStream( resource );
+        } else if ( loader != null ) {
+            in = loader.getResourceAsStream( resource );
+        } else {
+            in = null; // class loader has been garbage-collected
+        }
+        if ( in == null ) {
+            throw new TypeNotPresentException( internalName , null );
+        }
+        try {
+            return readHeader( new DataInputStream( new BufferedInputStream( in ) ) );
+        } 
+        catch(IOException | RuntimeException e) {
+            throw new TypeNotPresentException( internalName , e );
+        } 
+        finally 
+        {
+            try {
+                in.close();
+            } catch(IOException e) { /* ok */ }
+        }
+    }
+    
+    /*
+     * Reads access flags , super class and interfaces , skipping over the constant pool
+     * without interpreting the class-file version.
+     */
+    private static ClassInfo readHeader(DataInputStream in) throws IOException
+    {
+        if ( in.readInt() != 0xCAFEBABE ) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        
+        final int poolSize = in.readUnsignedShort();
+        final String[] utf8 = new String[ poolSize ];
+        final int[] classNames = new int[ poolSize ];
+        for ( int i = 1 ; i < poolSize ; i++ ) 
+        {
+            final int tag = in.readUnsignedByte();
+            switch( tag ) 
+            {
+                case 1: // UTF8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // class
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 8:  // string
+                case 16: // method type
+                case 19: // module
+                case 20: // package
+                    skip( in , 2 );
+                    break;
+                case 15: // method handle
+                    skip( in , 3 );
+                    break;
+                case 3:  // int
+                case 4:  // float
+                case 9:  // field ref
+                case 10: // method ref
+                case 11: // interface method ref
+                case 12: // name and type
+                case 17: // dynamic
+                case 18: // invoke dynamic
+                    skip( in , 4 );
+                    break;
+                case 5: // long
+                case 6: // double
+                    skip( in , 8 );
+                    i++; // takes two slots
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag "+tag);
+            }
+        }
+        
+        final int access = in.readUnsignedShort();
+        in.readUnsignedShort(); // this class
+        final int superClass = in.readUnsignedShort();
+        final String[] interfaces = new String[ in.readUnsignedShort() ];
+        for ( int i = 0 ; i < interfaces.length ; i++ ) {
+            interfaces[i] = utf8[ classNames[ in.readUnsignedShort() ] ];
+        }
+        final String superName = superClass != 0 ? utf8[ classNames[ superClass ] ] : null;
+        return new ClassInfo( superName , interfaces , ( access & Opcodes.ACC_INTERFACE ) != 0 );
+    }
+    
+    private static void skip(DataInputStream in,int bytes) throws IOException
+    {
+        if ( in.skipBytes( bytes ) != bytes ) {
+            throw new IOException("Premature end of class file");
+        }
+    }
+    
+    /**
+     * Returns the most specific common super-class of two types , using the same 
+     * rules as ASM's <code>ClassWriter#getCommonSuperClass()</code>.
+     * 
+     * @param type1 internal name
+     * @param type2 internal name
+     * @return internal name of common super class
+     * @throws TypeNotPresentException if the class file of either type or one of their super types could not be read
+     */
+    public String getCommonSuperClass(String type1,String type2) throws TypeNotPresentException
+    {
+        if ( type1.equals( type2 ) ) {
+            return type1;
+        }
+        final ClassInfo info1 = getInfo( type1 );
+        final ClassInfo info2 = getInfo( type2 );
+        if ( getSuperTypes( type2 ).contains( type1 ) ) {
+            return type1;
+        }
+        if ( getSuperTypes( type1 ).contains( type2 ) ) {
+            return type2;
+        }
+        if ( info1.isInterface || info2.isInterface ) {
+            return OBJECT;
+        }
+        
+        final Set<String> superClasses2 = getSuperClasses( type2 );
+        String current = type1;
+        while ( current != null && ! superClasses2.contains( current ) ) {
+            current = getInfo( current ).superName;
+        }
+        return current != null ? current : OBJECT;
+    }
+    
+    // returns the type itself and all of its super classes
+    private Set<String> getSuperClasses(String internalName) 
+    {
+        final Set<String> result = new HashSet<>();
+        for ( String current = internalName ; current != null && result.add( current ) ; ) {
+            current = getInfo( current ).superName;
+        }
+        return result;
+    }
+    
+    // returns the type itself and all of its super classes and interfaces
+    private Set<String> getSuperTypes(String internalName) 
+    {
+        final Set<String> result = new HashSet<>();
+        final List<String> queue = new ArrayList<>();
+        queue.add( internalName );
+        while ( ! queue.isEmpty() ) 
+        {
+            final String current = queue.remove( queue.size() - 1 );
+            if ( ! result.add( current ) ) {
+                continue;
+            }
+            final ClassInfo info = getInfo( current );
+            if ( info.superName != null ) {
+                queue.add( info.superName );
+            }
+            for ( String intf : info.interfaces ) {
+                queue.add( intf );
+            }
+        }
+        return result;
+    }
+}
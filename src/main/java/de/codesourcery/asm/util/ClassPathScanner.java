@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Enumerates all .class files found in a list of classpath entries (directories or ZIP/JAR archives).
+ *
+ * <p>Just like with a regular classpath, a class found in an earlier entry hides classes with the
+ * same name in later entries. Class files are only read when {@link IClassReaderProvider#getClassReader()}
+ * is invoked, archives stay open until {@link #close()} is called.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ClassPathScanner implements Closeable
+{
+    private final List<ZipFile> archives = new ArrayList<>();
+    private final Map<String,IClassReaderProvider> classes = new LinkedHashMap<>();
+
+    /**
+     * Scans classpath entries.
+     *
+     * @param classPathEntries directories or ZIP/JAR archives
+     * @throws IOException if an entry is neither a directory nor a readable archive
+     */
+    public ClassPathScanner(List<File> classPathEntries) throws IOException
+    {
+        try
+        {
+            for ( File entry : classPathEntries )
+            {
+                if ( entry.isDirectory() ) {
+                    scanDirectory( entry , "" );
+                }
+                else if ( entry.isFile() )
+                {
+                    final ZipFile archive = new ZipFile( entry );
+                    archives.add( archive );
+                    scanArchive( archive );
+                } else {
+                    throw new IOException("Invalid entry on search classpath: '"+entry.getAbsolutePath()+"' is neither a directory nor JAR/ZIP archive");
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private void scanDirectory(File dir,String packagePrefix)
+    {
+        final File[] files = dir.listFiles();
+        if ( files == null ) {
+            return;
+        }
+        for ( final File file : files )
+        {
+            if ( file.isDirectory() ) {
+                scanDirectory( file , packagePrefix+file.getName()+"." );
+            }
+            else if ( file.getName().endsWith(".class") )
+            {
+                final String className = packagePrefix+file.getName().substring( 0 , file.getName().length() - ".class".length() );
+                addClass( className , new IClassReaderProvider() {
+
+                    @Override
+                    public ClassReader getClassReader() throws IOException
+                    {
+                        try ( InputStream in = new FileInputStream( file ) ) {
+                            return new ClassReader( readFully( in ) );
+                        }
+                    }
+
+                    @Override
+                    public String getClassName()
+                    {
+                        return className;
+                    }
+                });
+            }
+        }
+    }
+
+    private void scanArchive(final ZipFile archive)
+    {
+        for ( Enumeration<? extends ZipEntry> it = archive.entries() ; it.hasMoreElements() ; )
+        {
+            final ZipEntry entry = it.nextElement();
+            if ( entry.isDirectory() || ! entry.getName().endsWith(".class") ) {
+                continue;
+            }
+            final String path = entry.getName();
+            final String className = path.substring( 0 , path.length() - ".class".length() ).replace("/",".");
+            addClass( className , new IClassReaderProvider() {
+
+                @Override
+                public ClassReader getClassReader() throws IOException
+                {
+                    try ( InputStream in = archive.getInputStream( entry ) ) {
+                        return new ClassReader( readFully( in ) );
+                    }
+                    catch(IOException e) {
+                        throw new IOException("Failed to load class '"+className+"' from "+archive.getName(),e);
+                    }
+                }
+
+                @Override
+                public String getClassName()
+                {
+                    return className;
+                }
+            });
+        }
+    }
+
+    private void addClass(String className,IClassReaderProvider provider)
+    {
+        // module descriptors and package annotations are no regular classes
+        if ( className.endsWith("module-info") || className.endsWith("package-info") ) {
+            return;
+        }
+        if ( ! classes.containsKey( className ) ) {
+            classes.put( className , provider );
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream( 8*1024 );
+        final byte[] buffer = new byte[ 8*1024 ];
+        int len;
+        while ( ( len = in.read( buffer ) ) > 0 ) {
+            out.write( buffer , 0 , len );
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns all classes that were found, in classpath order.
+     *
+     * @return
+     */
+    public List<IClassReaderProvider> getClasses()
+    {
+        return new ArrayList<>( classes.values() );
+    }
+
+    @Override
+    public void close()
+    {
+        for ( ZipFile archive : archives )
+        {
+            try {
+                archive.close();
+            } catch(IOException e) { /* ok */ }
+        }
+        archives.clear();
+    }
+}
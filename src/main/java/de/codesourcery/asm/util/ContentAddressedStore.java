@@ -0,0 +1,286 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded directory of files addressed by SHA-1 keys , shared by the on-disk caches.
+ *
+ * <p>Entries are written to a temporary file first and then atomically renamed so that concurrent writers (other threads or
+ * other JVMs sharing the same directory) never observe partially written entries. Entries are read back through memory-mapped
+ * files. Once the total size of all entries exceeds the configured budget, the least recently used entries are deleted until
+ * the store is below 90% of the budget again.</p>
+ *
+ * <p>This class does not care about the contents of entries , callers supply the code to read and write them.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ContentAddressedStore
+{
+    private final File directory;
+    private final String suffix;
+    private final long maxSizeInBytes;
+
+    private final AtomicLong currentSize = new AtomicLong();
+
+    /**
+     * Reads the contents of an entry.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public interface IEntryReader<T>
+    {
+        /**
+         * Reads an entry.
+         *
+         * @param buffer entry contents , positioned at the start of the entry
+         * @return contents or <code>null</code> if the entry is valid but cannot be used by the caller
+         * @throws IOException if the entry is corrupted , it gets deleted in this case
+         */
+        public T read(MappedByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Writes the contents of an entry.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public interface IEntryWriter
+    {
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Create a store.
+     *
+     * @param directory directory to store entries in, created if it does not exist
+     * @param suffix file name suffix of entries , files without it are ignored
+     * @param maxSizeInBytes maximum total size of all entries
+     * @throws IOException if the directory could not be created
+     */
+    public ContentAddressedStore(File directory,String suffix,long maxSizeInBytes) throws IOException
+    {
+        if ( directory == null ) {
+            throw new IllegalArgumentException("directory must not be NULL.");
+        }
+        if ( maxSizeInBytes <= 0 ) {
+            throw new IllegalArgumentException("Cache size must be > 0");
+        }
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException("Failed to create cache directory "+directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.suffix = suffix;
+        this.maxSizeInBytes = maxSizeInBytes;
+
+        long size = 0;
+        for ( File file : listEntries() ) {
+            size += file.length();
+        }
+        currentSize.set( size );
+        if ( size > maxSizeInBytes ) {
+            evict();
+        }
+    }
+
+    /**
+     * Computes the SHA-1 hash of the concatenation of some byte arrays.
+     *
+     * @param parts
+     * @return hash as hex string
+     */
+    public static String key(byte[]... parts)
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not supported by this JVM?",e);
+        }
+        for ( byte[] part : parts ) {
+            digest.update( part );
+        }
+
+        final StringBuilder result = new StringBuilder();
+        for ( byte b : digest.digest() ) {
+            result.append( Character.forDigit( (b >>> 4) & 0x0f , 16 ) ).append( Character.forDigit( b & 0x0f , 16 ) );
+        }
+        return result.toString();
+    }
+
+    /**
+     * Reads an entry.
+     *
+     * <p>Entries that have been read successfully count as recently used.</p>
+     *
+     * @param key
+     * @param reader
+     * @return whatever the reader returned or <code>null</code> if there is no entry with this key or it is corrupted
+     */
+    public <T> T read(String key,IEntryReader<T> reader)
+    {
+        final File file = entryFile( key );
+        if ( ! file.isFile() ) {
+            return null;
+        }
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "r" ) ; FileChannel channel = raf.getChannel() )
+        {
+            final T result = reader.read( channel.map( FileChannel.MapMode.READ_ONLY , 0 , channel.size() ) );
+            if ( result != null ) {
+                // remember last access for LRU eviction
+                file.setLastModified( System.currentTimeMillis() );
+            }
+            return result;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            // corrupted or concurrently evicted entry, treat as miss
+            delete( file );
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry , replacing any existing entry with the same key.
+     *
+     * @param key
+     * @param writer
+     * @throws IOException
+     */
+    public void write(String key,IEntryWriter writer) throws IOException
+    {
+        final File file = entryFile( key );
+        final File parent = file.getParentFile();
+        if ( ! parent.isDirectory() && ! parent.mkdirs() && ! parent.isDirectory() ) {
+            throw new IOException("Failed to create cache directory "+parent.getAbsolutePath());
+        }
+
+        final File tmpFile = File.createTempFile( file.getName() , ".tmp" , parent );
+        try
+        {
+            try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) ) {
+                writer.write( out );
+            }
+            final long size = tmpFile.length();
+            Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+            if ( currentSize.addAndGet( size ) > maxSizeInBytes ) {
+                evict();
+            }
+        }
+        finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns the total size of all entries.
+     * @return
+     */
+    public long getSize() {
+        return currentSize.get();
+    }
+
+    private synchronized void evict()
+    {
+        if ( currentSize.get() <= maxSizeInBytes ) {
+            return;
+        }
+
+        // re-sync with what's actually on disk (other JVMs might share this directory)
+        final List<File> entries = listEntries();
+        final long[] lastAccess = new long[ entries.size() ];
+        final List<Integer> lruOrder = new ArrayList<>( entries.size() );
+        long size = 0;
+        for ( int i = 0 ; i < lastAccess.length ; i++ )
+        {
+            size += entries.get(i).length();
+            lastAccess[i] = entries.get(i).lastModified();
+            lruOrder.add( i );
+        }
+        currentSize.set( size );
+
+        Collections.sort( lruOrder , new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Long.compare( lastAccess[o1] , lastAccess[o2] );
+            }
+        });
+
+        final long lowWaterMark = maxSizeInBytes - maxSizeInBytes / 10;
+        for ( int i = 0 ; i < lruOrder.size() && currentSize.get() > lowWaterMark ; i++ ) {
+            delete( entries.get( lruOrder.get(i) ) );
+        }
+    }
+
+    private void delete(File file)
+    {
+        final long size = file.length();
+        if ( file.delete() ) {
+            currentSize.addAndGet( -size );
+        }
+    }
+
+    private List<File> listEntries()
+    {
+        final List<File> result = new ArrayList<>();
+        final File[] subDirs = directory.listFiles();
+        if ( subDirs != null )
+        {
+            for ( File subDir : subDirs )
+            {
+                final File[] files = subDir.isDirectory() ? subDir.listFiles() : null;
+                if ( files != null )
+                {
+                    for ( File file : files ) {
+                        if ( file.getName().endsWith( suffix ) ) {
+                            result.add( file );
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private File entryFile(String key) {
+        return new File( new File( directory , key.substring( 0 , 2 ) ) , key.substring( 2 )+suffix );
+    }
+
+    @Override
+    public String toString() {
+        return directory.getAbsolutePath()+" , size="+currentSize.get()+"/"+maxSizeInBytes;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * <code>ClassWriter</code> that computes common super-classes from a {@link ClassHierarchy}
+ * instead of loading classes.
+ * 
+ * <p>All answers are recorded so that callers can tell which parts of the class hierarchy
+ * the written class depends on (see {@link #getResolvedSuperClasses()}).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class HierarchyClassWriter extends ClassWriter
+{
+    private final ClassHierarchy hierarchy;
+    private final Map<String,String> resolved = new LinkedHashMap<>();
+    
+    /**
+     * Create instance.
+     * 
+     * @param classReader reader of the class being rewritten , gets registered with the hierarchy
+     * @param flags <code>ClassWriter</code> flags
+     * @param hierarchy 
+     */
+    public HierarchyClassWriter(ClassReader classReader,int flags,ClassHierarchy hierarchy)
+    {
+        super( classReader , flags );
+        if ( hierarchy == null ) {
+            throw new IllegalArgumentException("hierarchy must not be NULL.");
+        }
+        this.hierarchy = hierarchy;
+        hierarchy.register( classReader );
+    }
+    
+    @Override
+    protected String getCommonSuperClass(String type1, String type2)
+    {
+        final String result = hierarchy.getCommonSuperClass( type1 , type2 );
+        resolved.put( type1+" "+type2 , result );
+        return result;
+    }
+    
+    /**
+     * Returns all common super-classes computed so far.
+     * 
+     * @return common super-classes by both internal type names , separated by a blank (e.g. <code>"java/lang/Integer java/lang/Long"</code>)
+     */
+    public Map<String,String> getResolvedSuperClasses()
+    {
+        return Collections.unmodifiableMap( resolved );
+    }
+}
@@ -41,6 +41,12 @@ public interface IJoinpointFilter
         {
             return true;
         }
+
+        @Override
+        public boolean matches(String clazz, String methodName, String descriptor, int instructionCount)
+        {
+            return true;
+        }
     };
     
     /**
@@ -59,6 +65,12 @@ public interface IJoinpointFilter
         {
             return ! methodName.equals("<init>");
         }
+
+        @Override
+        public boolean matches(String clazz, String methodName, String descriptor, int instructionCount)
+        {
+            return ! methodName.equals("<init>");
+        }
     };    
     
     /**
@@ -77,4 +89,18 @@ public interface IJoinpointFilter
      * @return
      */
     public boolean matches(String clazz,String methodName);
+    
+    /**
+     * Check whether a given method with code matches.
+     * 
+     * <p>Methods rejected by {@link #matches(String, String)} must also be rejected by this method , 
+     * the opposite is not required.</p>
+     * 
+     * @param clazz fully-qualified class name
+     * @param methodName method name as read from a classfile. Constructor methods are always named '&lt;init&gt;'
+     * @param descriptor method descriptor , e.g. <code>(I)V</code>
+     * @param instructionCount number of byte-code instructions of the method
+     * @return
+     */
+    public boolean matches(String clazz,String methodName,String descriptor,int instructionCount);
 }
@@ -0,0 +1,398 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Joinpoint filter compiled from a list of include/exclude patterns.
+ * 
+ * <p>Each pattern has the form <code>[-]classPattern[#methodPattern[descriptorPattern]]</code> , a leading 
+ * '-' turns the pattern into an exclude.</p>
+ * 
+ * <ul>
+ *   <li><code>classPattern</code> may only contain a trailing '*' wildcard. Without a wildcard , the pattern matches 
+ *   the class with this name , its nested classes and all classes in the package with this name. Patterns without
+ *   a '.' are matched against simple class names (e.g. <code>MyClass</code> matches <code>a.b.MyClass</code>).</li>
+ *   <li><code>methodPattern</code> and <code>descriptorPattern</code> may contain '*' wildcards anywhere , the descriptor
+ *   pattern starts with '(' (e.g. <code>get*()*</code> matches all methods starting with 'get' that take no arguments).</li>
+ * </ul>
+ * 
+ * <p>Class patterns without a method pattern decide about all methods of a class , if several of them match a class the 
+ * longest one wins (excludes win ties). A method is selected if its class is selected that way or an include pattern with a 
+ * matching method pattern exists (that is more specific than an excluding class pattern) , unless a matching exclude pattern with 
+ * a method pattern exists or the method has less than the minimum number of byte-code instructions.</p>
+ * 
+ * <p>Class patterns are compiled into two prefix tries (one for fully-qualified and one for simple class names) so that 
+ * rejecting a class takes time proportional to the length of its name , independent of the number of patterns.</p>
+ * 
+ * <pre>
+ * com.acme.*,-com.acme.internal.*,com.acme.internal.Important#run,-*#get*()*
+ * </pre>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class JoinpointFilter implements IJoinpointFilter
+{
+    private final String[] patterns;
+    private final int minInstructionCount;
+
+    private final Node qualifiedNames = new Node();
+    private final Node simpleNames = new Node();
+
+    private JoinpointFilter(String[] patterns,int minInstructionCount) 
+    {
+        this.patterns = patterns;
+        this.minInstructionCount = minInstructionCount;
+    }
+
+    /**
+     * Compiles patterns into a filter.
+     * 
+     * @param patterns patterns , an empty array creates a filter that matches nothing
+     * @param minInstructionCount minimum number of byte-code instructions a method needs to have in order to match
+     * @return
+     * @throws IllegalArgumentException if a pattern is malformed
+     */
+    public static JoinpointFilter compile(String[] patterns,int minInstructionCount) throws IllegalArgumentException 
+    {
+        if ( patterns == null ) {
+            throw new IllegalArgumentException("patterns must not be NULL.");
+        }
+        if ( minInstructionCount < 0 ) {
+            throw new IllegalArgumentException("Minimum instruction count must be >= 0");
+        }
+        final JoinpointFilter result = new JoinpointFilter( patterns.clone() , minInstructionCount );
+        for ( String pattern : patterns ) {
+            result.add( pattern );
+        }
+        return result;
+    }
+
+    private void add(String pattern) 
+    {
+        if ( StringUtils.isBlank( pattern ) ) {
+            throw new IllegalArgumentException("Blank pattern");
+        }
+
+        String classPattern = pattern.trim();
+        final boolean exclude = classPattern.startsWith("-");
+        if ( exclude ) {
+            classPattern = classPattern.substring( 1 );
+        }
+
+        String methodPattern = null;
+        String descriptorPattern = null;
+        final int hashIndex = classPattern.indexOf( '#' );
+        if ( hashIndex != -1 ) 
+        {
+            methodPattern = classPattern.substring( hashIndex + 1 );
+            classPattern = classPattern.substring( 0 , hashIndex );
+            final int descIndex = methodPattern.indexOf( '(' );
+            if ( descIndex != -1 ) 
+            {
+                descriptorPattern = methodPattern.substring( descIndex );
+                methodPattern = methodPattern.substring( 0 , descIndex );
+            }
+            if ( methodPattern.isEmpty() ) {
+                methodPattern = "*";
+            }
+        }
+
+        if ( classPattern.isEmpty() ) {
+            throw new IllegalArgumentException("Pattern '"+pattern+"' has no class pattern");
+        }
+        final int wildcard = classPattern.indexOf( '*' );
+        if ( wildcard != -1 && wildcard != classPattern.length() - 1 ) {
+            throw new IllegalArgumentException("Class pattern '"+classPattern+"' may only contain a trailing '*'");
+        }
+
+        final Rule rule = new Rule( exclude , classPattern.length() , methodPattern , descriptorPattern );
+        if ( wildcard != -1 ) 
+        {
+            final String prefix = classPattern.substring( 0 , wildcard );
+            final Node trie = prefix.indexOf( '.' ) != -1 || prefix.isEmpty() ? qualifiedNames : simpleNames;
+            trie.getOrCreate( prefix ).addPrefixRule( rule );
+        } 
+        else if ( classPattern.indexOf( '.' ) != -1 ) 
+        {
+            qualifiedNames.getOrCreate( classPattern ).addExactRule( rule );
+            qualifiedNames.getOrCreate( classPattern+"$" ).addPrefixRule( rule );
+            qualifiedNames.getOrCreate( classPattern+"." ).addPrefixRule( rule );
+        } 
+        else 
+        {
+            simpleNames.getOrCreate( classPattern ).addExactRule( rule );
+            simpleNames.getOrCreate( classPattern+"$" ).addPrefixRule( rule );
+            qualifiedNames.getOrCreate( classPattern+"." ).addPrefixRule( rule );
+        }
+    }
+
+    @Override
+    public boolean matches(String clazz)
+    {
+        final Rule[] rules = findRules( clazz );
+        if ( rules.length == 0 ) {
+            return false;
+        }
+        final Rule classRule = decidingClassRule( rules );
+        if ( classRule != null && ! classRule.exclude ) {
+            return true;
+        }
+        for ( Rule rule : rules ) 
+        {
+            if ( isApplicableMethodInclude( rule , classRule ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean matches(String clazz, String methodName)
+    {
+        // exclude patterns with descriptors can only be checked by the other method
+        return matches( clazz , methodName , null , Integer.MAX_VALUE );
+    }
+
+    @Override
+    public boolean matches(String clazz, String methodName, String descriptor, int instructionCount)
+    {
+        if ( instructionCount < minInstructionCount ) {
+            return false;
+        }
+        final Rule[] rules = findRules( clazz );
+        if ( rules.length == 0 ) {
+            return false;
+        }
+        final Rule classRule = decidingClassRule( rules );
+        boolean included = classRule != null && ! classRule.exclude;
+        for ( Rule rule : rules ) 
+        {
+            if ( rule.methodPattern == null ) {
+                continue;
+            }
+            if ( rule.exclude ) 
+            {
+                if ( ( descriptor != null || rule.descriptorPattern == null ) && rule.matchesMethod( methodName , descriptor ) ) {
+                    return false;
+                }
+            } 
+            else if ( ! included && isApplicableMethodInclude( rule , classRule ) ) 
+            {
+                included = descriptor == null ? globMatches( rule.methodPattern , methodName ) : rule.matchesMethod( methodName , descriptor );
+            }
+        }
+        return included;
+    }
+
+    /**
+     * Returns the minimum number of byte-code instructions a method needs to have in order to match.
+     * 
+     * @return
+     */
+    public int getMinInstructionCount()
+    {
+        return minInstructionCount;
+    }
+
+    /**
+     * Returns the patterns this filter was compiled from.
+     * 
+     * @return
+     */
+    public String[] getPatterns()
+    {
+        return patterns.clone();
+    }
+
+    private static boolean isApplicableMethodInclude(Rule rule,Rule classRule) 
+    {
+        return ! rule.exclude && rule.methodPattern != null && ( classRule == null || rule.specificity > classRule.specificity );
+    }
+
+    private static Rule decidingClassRule(Rule[] rules) 
+    {
+        Rule result = null;
+        for ( Rule rule : rules ) 
+        {
+            if ( rule.methodPattern == null ) 
+            {
+                if ( result == null || rule.specificity > result.specificity || ( rule.specificity == result.specificity && rule.exclude ) ) {
+                    result = rule;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Rule[] findRules(String clazz) 
+    {
+        final List<Rule> result = new ArrayList<>();
+        qualifiedNames.collect( clazz , result );
+        simpleNames.collect( clazz.substring( clazz.lastIndexOf( '.' ) + 1 ) , result );
+        return result.toArray( new Rule[ result.size() ] );
+    }
+
+    /**
+     * Check whether a string matches a pattern with '*' wildcards.
+     * 
+     * @param pattern
+     * @param text
+     * @return
+     */
+    static boolean globMatches(String pattern,String text) 
+    {
+        int p = 0;
+        int t = 0;
+        int starP = -1;
+        int starT = -1;
+        while ( t < text.length() ) 
+        {
+            if ( p < pattern.length() && pattern.charAt( p ) == '*' ) 
+            {
+                starP = p++;
+                starT = t;
+            } 
+            else if ( p < pattern.length() && pattern.charAt( p ) == text.charAt( t ) ) 
+            {
+                p++;
+                t++;
+            } 
+            else if ( starP != -1 ) 
+            {
+                // let the last '*' consume one more character
+                p = starP + 1;
+                t = ++starT;
+            } else {
+                return false;
+            }
+        }
+        while ( p < pattern.length() && pattern.charAt( p ) == '*' ) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JoinpointFilter[ "+StringUtils.join( patterns , "," )+" , minInstructionCount="+minInstructionCount+" ]";
+    }
+
+    private static final class Rule 
+    {
+        public final boolean exclude;
+        public final int specificity;
+        public final String methodPattern;
+        public final String descriptorPattern;
+
+        public Rule(boolean exclude, int specificity, String methodPattern, String descriptorPattern)
+        {
+            this.exclude = exclude;
+            this.specificity = specificity;
+            this.methodPattern = methodPattern;
+            this.descriptorPattern = descriptorPattern;
+        }
+
+        public boolean matchesMethod(String methodName,String descriptor) 
+        {
+            if ( ! globMatches( methodPattern , methodName ) ) {
+                return false;
+            }
+            return descriptorPattern == null || globMatches( descriptorPattern , descriptor );
+        }
+    }
+
+    private static final class Node 
+    {
+        private static final Rule[] NO_RULES = new Rule[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] keys = new char[0];
+        private Node[] children = NO_CHILDREN;
+
+        // rules matching names that end at this node resp. all names passing through this node
+        private Rule[] exactRules = NO_RULES;
+        private Rule[] prefixRules = NO_RULES;
+
+        public Node getOrCreate(String key) 
+        {
+            Node current = this;
+            for ( int i = 0 ; i < key.length() ; i++ ) 
+            {
+                final char c = key.charAt( i );
+                Node next = current.child( c );
+                if ( next == null ) 
+                {
+                    next = new Node();
+                    current.keys = Arrays.copyOf( current.keys , current.keys.length + 1 );
+                    current.children = Arrays.copyOf( current.children , current.children.length + 1 );
+                    current.keys[ current.keys.length - 1 ] = c;
+                    current.children[ current.children.length - 1 ] = next;
+                }
+                current = next;
+            }
+            return current;
+        }
+
+        private Node child(char c) 
+        {
+            for ( int i = 0 ; i < keys.length ; i++ ) 
+            {
+                if ( keys[i] == c ) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        public void addExactRule(Rule rule) 
+        {
+            exactRules = Arrays.copyOf( exactRules , exactRules.length + 1 );
+            exactRules[ exactRules.length - 1 ] = rule;
+        }
+
+        public void addPrefixRule(Rule rule) 
+        {
+            prefixRules = Arrays.copyOf( prefixRules , prefixRules.length + 1 );
+            prefixRules[ prefixRules.length - 1 ] = rule;
+        }
+
+        public void collect(String name,List<Rule> result) 
+        {
+            Node current = this;
+            for ( int i = 0 ; current != null ; i++ ) 
+            {
+                if ( current.prefixRules.length > 0 ) {
+                    result.addAll( Arrays.asList( current.prefixRules ) );
+                }
+                if ( i == name.length() ) 
+                {
+                    if ( current.exactRules.length > 0 ) {
+                        result.addAll( Arrays.asList( current.exactRules ) );
+                    }
+                    return;
+                }
+                current = current.child( name.charAt( i ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link EdgeProfile} reconstructs the exact execution counts of all edges
+ * from the counters of the chords of any spanning tree.
+ *
+ * <p>Profiling graphs are built by hand , node #0 is the method entry , node #1 the method exit and
+ * the last edge is the virtual exit-to-entry edge.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class EdgeProfileTest
+{
+    private static final int A = 2;
+    private static final int B = 3;
+    private static final int C = 4;
+    private static final int D = 5;
+    private static final int E = 6;
+    private static final int F = 7;
+
+    // ENTRY -> A , A -> B | C , B -> D , C -> D , D -> EXIT
+    private static final int[][] DIAMOND = { {0,A} , {A,B} , {A,C} , {B,D} , {C,D} , {D,1} , {1,0} };
+
+    // ENTRY -> A , A -> B (loop header) , B -> C -> B , B -> D , D -> EXIT
+    private static final int[][] LOOP = { {0,A} , {A,B} , {B,C} , {C,B} , {B,D} , {D,1} , {1,0} };
+
+    // ENTRY -> A , A -> B (outer header) , B -> C (inner header) , C -> D -> C , C -> E -> B , B -> F , F -> EXIT
+    private static final int[][] NESTED_LOOP = { {0,A} , {A,B} , {B,C} , {C,D} , {D,C} , {C,E} , {E,B} , {B,F} , {F,1} , {1,0} };
+
+    @Test
+    public void testDiamond()
+    {
+        assertReconstructed( DIAMOND , 6 , new int[][] {
+                {A,B,D} , {A,B,D} , {A,C,D} , {A,B,D} , {A,C,D} } );
+    }
+
+    @Test
+    public void testLoop()
+    {
+        assertReconstructed( LOOP , 6 , new int[][] {
+                {A,B,D} , {A,B,C,B,D} , {A,B,C,B,C,B,C,B,D} } );
+    }
+
+    @Test
+    public void testNestedLoop()
+    {
+        assertReconstructed( NESTED_LOOP , 8 , new int[][] {
+                {A,B,F} ,
+                {A,B,C,E,B,F} ,
+                {A,B,C,D,C,D,C,E,B,C,E,B,C,D,C,E,B,F} } );
+    }
+
+    @Test
+    public void testNodeCountsAndInstructions()
+    {
+        final int[][] paths = { {A,B,D} , {A,C,D} , {A,C,D} };
+        final EdgeProfile profile = createProfile( DIAMOND , 6 , spanningTree( DIAMOND , 6 , 0 , false ) );
+        setChordCounters( profile , DIAMOND , countEdges( DIAMOND , paths ) );
+
+        assertArrayEquals( new long[] { 3 , 3 , 3 , 1 , 2 , 3 } , profile.getNodeCounts() );
+        assertEquals( 3 , profile.getInvocationCount() );
+        // each block has (node index) instructions
+        assertEquals( 3*A + 1*B + 2*C + 3*D , profile.getExecutedInstructionCount() );
+    }
+
+    /*
+     * Checks reconstruction for spanning trees obtained by adding edges in all rotations of the edge order ,
+     * forwards and backwards.
+     */
+    private static void assertReconstructed(int[][] edges,int nodeCount,int[][] paths)
+    {
+        final long[] expected = countEdges( edges , paths );
+        for ( int start = 0 ; start < edges.length ; start++ )
+        {
+            for ( boolean reverse : new boolean[] { false , true } )
+            {
+                final boolean[] inTree = spanningTree( edges , nodeCount , start , reverse );
+                final EdgeProfile profile = createProfile( edges , nodeCount , inTree );
+                assertEquals( edges.length - ( nodeCount - 1 ) , profile.getProbeCount() );
+                setChordCounters( profile , edges , expected );
+                assertArrayEquals( "tree "+Arrays.toString( inTree ) , expected , profile.getEdgeCounts() );
+                assertEquals( paths.length , profile.getInvocationCount() );
+            }
+        }
+    }
+
+    /*
+     * Execution count of each edge when executing the given paths (blocks between entry and exit).
+     */
+    private static long[] countEdges(int[][] edges,int[][] paths)
+    {
+        final long[] result = new long[ edges.length ];
+        for ( int[] path : paths )
+        {
+            int previous = EdgeProfile.ENTRY;
+            for ( int node : path )
+            {
+                result[ findEdge( edges , previous , node ) ]++;
+                previous = node;
+            }
+            result[ findEdge( edges , previous , EdgeProfile.EXIT ) ]++;
+            result[ findEdge( edges , EdgeProfile.EXIT , EdgeProfile.ENTRY ) ]++;
+        }
+        return result;
+    }
+
+    private static int findEdge(int[][] edges,int src,int dst)
+    {
+        for ( int e = 0 ; e < edges.length ; e++ )
+        {
+            if ( edges[e][0] == src && edges[e][1] == dst ) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("No edge "+src+" -> "+dst);
+    }
+
+    private static boolean[] spanningTree(int[][] edges,int nodeCount,int start,boolean reverse)
+    {
+        final int[] component = new int[ nodeCount ];
+        for ( int n = 0 ; n < nodeCount ; n++ ) {
+            component[n] = n;
+        }
+        final boolean[] result = new boolean[ edges.length ];
+        int treeEdges = 0;
+        for ( int i = 0 ; i < edges.length ; i++ )
+        {
+            final int e = reverse ? ( start - i + edges.length ) % edges.length : ( start + i ) % edges.length;
+            final int c1 = component[ edges[e][0] ];
+            final int c2 = component[ edges[e][1] ];
+            if ( c1 != c2 )
+            {
+                for ( int n = 0 ; n < nodeCount ; n++ )
+                {
+                    if ( component[n] == c1 ) {
+                        component[n] = c2;
+                    }
+                }
+                result[e] = true;
+                treeEdges++;
+            }
+        }
+        assertEquals( nodeCount - 1 , treeEdges );
+        return result;
+    }
+
+    private static EdgeProfile createProfile(int[][] edges,int nodeCount,boolean[] inTree)
+    {
+        final int[] nodeFirst = new int[ nodeCount ];
+        final int[] nodeInstructions = new int[ nodeCount ];
+        for ( int n = EdgeProfile.EXIT + 1 ; n < nodeCount ; n++ )
+        {
+            nodeFirst[n] = n * 10;
+            nodeInstructions[n] = n;
+        }
+        nodeFirst[ EdgeProfile.ENTRY ] = nodeFirst[ EdgeProfile.EXIT ] = -1;
+
+        final int[] src = new int[ edges.length ];
+        final int[] dst = new int[ edges.length ];
+        final int[] counter = new int[ edges.length ];
+        int counters = 0;
+        for ( int e = 0 ; e < edges.length ; e++ )
+        {
+            src[e] = edges[e][0];
+            dst[e] = edges[e][1];
+            counter[e] = inTree[e] ? -1 : counters++;
+        }
+        assertTrue( src[0] == EdgeProfile.ENTRY );
+        return new EdgeProfile( "Test" , "test" , "()V" , nodeFirst , nodeInstructions , src , dst , counter );
+    }
+
+    /*
+     * Stores the actual counts of all instrumented edges , in edge order (as assigned by createProfile()).
+     */
+    private static void setChordCounters(EdgeProfile profile,int[][] edges,long[] actualCounts)
+    {
+        final long[] counters = profile.getCounters();
+        int counter = 0;
+        for ( int e = 0 ; e < edges.length ; e++ )
+        {
+            if ( profile.isInstrumented( e ) ) {
+                counters[ counter++ ] = actualCounts[e];
+            }
+        }
+        assertEquals( counters.length , counter );
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.codesourcery.asm.profiling.IMethodProfile;
+import de.codesourcery.asm.profiling.MethodProfileRegistry;
+import de.codesourcery.asm.profiling.PathProfile;
+import de.codesourcery.asm.rewrite.ProfilingRewriter.InstrumentationMode;
+import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asm.util.JoinpointFilter;
+
+/**
+ * Instruments {@link Target#sum(int[])} for path profiling , runs it and checks the
+ * paths recorded by the generated byte-code.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class PathProfilingInstrumenterTest
+{
+    /**
+     * Method with a loop , an exception handler inside the loop and an explicit throw.
+     */
+    public static final class Target
+    {
+        public static int sum(int[] values)
+        {
+            if ( values == null ) {
+                throw new IllegalArgumentException("values must not be NULL");
+            }
+            int sum = 0;
+            for ( int i = 0 ; i < values.length ; i++ )
+            {
+                try {
+                    sum += 100 / values[i];
+                }
+                catch(ArithmeticException e) {
+                    sum--;
+                }
+            }
+            return sum;
+        }
+    }
+
+    @Test
+    public void testRecordedPaths() throws Exception
+    {
+        final Method sum = instrument( Target.class , "sum" );
+        final PathProfile profile = findProfile( Target.class , "sum" );
+
+        // 100/1 , 100/0 (caught) , 100/2
+        assertEquals( 149 , sum.invoke( null , new Object[] { new int[] { 1 , 0 , 2 } } ) );
+        try {
+            sum.invoke( null , new Object[] { null } );
+            fail("Should have failed");
+        }
+        catch(InvocationTargetException e) {
+            assertTrue( e.getCause() instanceof IllegalArgumentException );
+        }
+
+        final Map<String,Long> expected = new HashMap<>();
+        // first iteration , path starts at method entry and ends at the back-edge
+        expected.put( "entry -> back-edge" , 1L );
+        // second iteration , the path through the try block is abandoned when the exception is thrown
+        // and a new path starts at the handler
+        expected.put( "handler -> back-edge" , 1L );
+        // third iteration
+        expected.put( "loop -> back-edge" , 1L );
+        // loop condition fails , method returns
+        expected.put( "loop -> exit" , 1L );
+        // IllegalArgumentException thrown
+        expected.put( "entry -> exit" , 1L );
+        assertEquals( expected , recordedPaths( profile ) );
+        assertEquals( 2 , profile.getInvocationCount() );
+    }
+
+    @Test
+    public void testLoopFreeInvocation() throws Exception
+    {
+        final Method sum = instrument( Target.class , "sum" );
+        final PathProfile profile = findProfile( Target.class , "sum" );
+
+        assertEquals( 0 , sum.invoke( null , new Object[] { new int[0] } ) );
+        assertEquals( 0 , sum.invoke( null , new Object[] { new int[0] } ) );
+
+        final Map<String,Long> expected = new HashMap<>();
+        expected.put( "entry -> exit" , 2L );
+        assertEquals( expected , recordedPaths( profile ) );
+        assertEquals( 2 , profile.getInvocationCount() );
+    }
+
+    /*
+     * Counts executed paths by how they start (method entry , exception handler , loop header) and
+     * end (method exit , loop back-edge).
+     */
+    private static Map<String,Long> recordedPaths(PathProfile profile)
+    {
+        final Map<String,Long> result = new HashMap<>();
+        for ( int pathId = 0 ; pathId < profile.getPathCount() ; pathId++ )
+        {
+            final long count = profile.getPathFrequency( pathId );
+            if ( count == 0 ) {
+                continue;
+            }
+            final int[] edges = profile.decode( pathId );
+            final String start;
+            switch( profile.getEdgeType( edges[0] ) )
+            {
+                case PathProfile.EDGE_HANDLER:    start = "handler"; break;
+                case PathProfile.EDGE_LOOP_START: start = "loop"; break;
+                default:
+                    start = "entry";
+            }
+            final int last = edges[ edges.length - 1 ];
+            assertEquals( PathProfile.EXIT , profile.getEdgeDestination( last ) );
+            final String key = start+" -> "+( profile.getEdgeType( last ) == PathProfile.EDGE_LOOP_END ? "back-edge" : "exit" );
+            final Long existing = result.get( key );
+            result.put( key , existing == null ? count : existing + count );
+        }
+        return result;
+    }
+
+    private static Method instrument(Class<?> clazz,String methodName) throws Exception
+    {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setInstrumentationMode( InstrumentationMode.PATHS );
+        final IJoinpointFilter filter = JoinpointFilter.compile( new String[] { clazz.getName()+"#"+methodName } , 0 );
+        final byte[] rewritten = rewriter.rewrite( clazz.getName() , null , filter );
+
+        final Class<?> result = new ProfilingRewriter.MyClassLoader().defineClass( clazz.getName() , rewritten );
+        for ( Method m : result.getMethods() )
+        {
+            if ( m.getName().equals( methodName ) ) {
+                return m;
+            }
+        }
+        throw new NoSuchMethodException( methodName );
+    }
+
+    /*
+     * Returns the most recent profile registered for a method.
+     */
+    private static PathProfile findProfile(Class<?> clazz,String methodName)
+    {
+        PathProfile result = null;
+        for ( IMethodProfile profile : MethodProfileRegistry.getProfiles() )
+        {
+            if ( profile instanceof PathProfile && profile.getClassName().equals( clazz.getName() ) && profile.getMethodName().equals( methodName ) ) {
+                result = (PathProfile) profile;
+            }
+        }
+        assertNotNull( "No profile registered for "+clazz.getName()+"#"+methodName , result );
+        return result;
+    }
+}
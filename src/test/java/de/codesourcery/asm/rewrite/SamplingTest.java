@@ -0,0 +1,124 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.util.IJoinpointFilter;
+import de.codesourcery.asm.util.JoinpointFilter;
+
+/**
+ * Checks that classes rewritten with a sampling interval larger than 1 still load and behave
+ * like the original and that counts get scaled by the interval.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingRewriter#setSamplingInterval(int)
+ */
+public class SamplingTest
+{
+    private static final int INTERVAL = 4;
+    private static final int INVOCATIONS = 4000;
+
+    /**
+     * Class with a looping constructor and a looping method with an exception handler.
+     */
+    public static final class Target
+    {
+        private final int[] values;
+
+        public Target(int count)
+        {
+            if ( count < 0 ) {
+                throw new IllegalArgumentException("count must be >= 0");
+            }
+            values = new int[ count ];
+            for ( int i = 0 ; i < count ; i++ ) {
+                values[i] = i;
+            }
+        }
+
+        public int sum(int divisor)
+        {
+            int result = 0;
+            for ( int value : values )
+            {
+                try {
+                    result += value / divisor;
+                }
+                catch(ArithmeticException e) {
+                    result--;
+                }
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testSampledClassBehavesLikeOriginal() throws Exception
+    {
+        final Class<?> clazz = rewrite( INTERVAL );
+        final Constructor<?> constructor = clazz.getConstructor( int.class );
+        final Method sum = clazz.getMethod( "sum" , int.class );
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            final Object instance = constructor.newInstance( 10 );
+            assertEquals( 45 , sum.invoke( instance , 1 ) );
+            assertEquals( -10 , sum.invoke( instance , 0 ) );
+        }
+    }
+
+    @Test
+    public void testCountsAreScaledByInterval() throws Exception
+    {
+        final long exact = run( rewrite( 1 ) );
+        final long sampled = run( rewrite( INTERVAL ) );
+
+        assertEquals( "count must be a multiple of the interval" , 0 , sampled % INTERVAL );
+        // on average , one out of INTERVAL invocations gets sampled
+        assertTrue( "sampled="+sampled+" , exact="+exact , Math.abs( sampled - exact ) < exact / 5 );
+    }
+
+    /*
+     * Constructs instances and invokes a method on them , returns the number of instructions counted on the current thread.
+     */
+    private static long run(Class<?> clazz) throws Exception
+    {
+        final Constructor<?> constructor = clazz.getConstructor( int.class );
+        final Method sum = clazz.getMethod( "sum" , int.class );
+
+        final long start = StatisticsManager.getExecutedInstructionsCount();
+        for ( int i = 0 ; i < INVOCATIONS ; i++ ) {
+            sum.invoke( constructor.newInstance( 10 ) , 1 + ( i & 1 ) );
+        }
+        return StatisticsManager.getExecutedInstructionsCount() - start;
+    }
+
+    private static Class<?> rewrite(int samplingInterval) throws Exception
+    {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setSamplingInterval( samplingInterval );
+        final IJoinpointFilter filter = JoinpointFilter.compile( new String[] { Target.class.getName() } , 0 );
+        final byte[] rewritten = rewriter.rewrite( Target.class.getName() , null , filter );
+        return new ProfilingRewriter.MyClassLoader().defineClass( Target.class.getName() , rewritten );
+    }
+}
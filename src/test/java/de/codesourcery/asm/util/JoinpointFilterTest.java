@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the matching rules of {@link JoinpointFilter}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class JoinpointFilterTest
+{
+    @Test
+    public void testLongestClassPatternWins()
+    {
+        final JoinpointFilter filter = compile( "com.acme.*" , "-com.acme.internal.*" , "com.acme.internal.Public" );
+
+        assertTrue( filter.matches( "com.acme.Foo" ) );
+        assertFalse( filter.matches( "com.acme.internal.Foo" ) );
+        assertTrue( filter.matches( "com.acme.internal.Public" ) );
+        assertTrue( filter.matches( "com.acme.internal.Public" , "run" , "()V" , 10 ) );
+        assertFalse( filter.matches( "org.acme.Foo" ) );
+    }
+
+    @Test
+    public void testExcludeWinsTie()
+    {
+        assertFalse( compile( "com.acme.Foo" , "-com.acme.Foo" ).matches( "com.acme.Foo" ) );
+        assertFalse( compile( "-com.acme.Foo" , "com.acme.Foo" ).matches( "com.acme.Foo" ) );
+    }
+
+    @Test
+    public void testExactClassPattern()
+    {
+        final JoinpointFilter filter = compile( "com.acme.Foo" );
+
+        assertTrue( filter.matches( "com.acme.Foo" ) );
+        assertTrue( filter.matches( "com.acme.Foo$Inner" ) );
+        // package with the same name
+        assertTrue( filter.matches( "com.acme.Foo.Bar" ) );
+        assertFalse( filter.matches( "com.acme.FooBar" ) );
+        assertFalse( filter.matches( "com.acme" ) );
+    }
+
+    @Test
+    public void testSimpleClassNames()
+    {
+        final JoinpointFilter filter = compile( "Foo" , "Bar*" );
+
+        assertTrue( filter.matches( "a.b.Foo" ) );
+        assertTrue( filter.matches( "Foo" ) );
+        assertTrue( filter.matches( "a.b.Foo$Inner" ) );
+        assertFalse( filter.matches( "a.b.FooBar" ) );
+
+        assertTrue( filter.matches( "a.b.Bar" ) );
+        assertTrue( filter.matches( "a.b.BarBaz" ) );
+        assertFalse( filter.matches( "a.Bar.Baz" ) );
+    }
+
+    @Test
+    public void testMethodExcludes()
+    {
+        final JoinpointFilter filter = compile( "com.acme.*" , "-*#get*()*" );
+
+        assertFalse( filter.matches( "com.acme.Foo" , "getName" , "()Ljava/lang/String;" , 10 ) );
+        assertTrue( filter.matches( "com.acme.Foo" , "getName" , "(I)Ljava/lang/String;" , 10 ) );
+        assertTrue( filter.matches( "com.acme.Foo" , "run" , "()V" , 10 ) );
+        // excludes with descriptor patterns cannot be decided without a descriptor
+        assertTrue( filter.matches( "com.acme.Foo" , "getName" ) );
+        assertTrue( filter.matches( "com.acme.Foo" ) );
+    }
+
+    @Test
+    public void testMethodIncludeInsideExcludedClass()
+    {
+        final JoinpointFilter filter = compile( "-com.acme.internal.*" , "com.acme.internal.Important#run" );
+
+        assertTrue( filter.matches( "com.acme.internal.Important" ) );
+        assertTrue( filter.matches( "com.acme.internal.Important" , "run" , "()V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.internal.Important" , "stop" , "()V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.internal.Other" ) );
+        assertFalse( filter.matches( "com.acme.internal.Other" , "run" , "()V" , 10 ) );
+    }
+
+    @Test
+    public void testMethodIncludeDoesNotBeatMoreSpecificClassExclude()
+    {
+        final JoinpointFilter filter = compile( "com.*#run" , "-com.acme.Foo" );
+
+        assertTrue( filter.matches( "com.acme.Bar" , "run" , "()V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.Foo" , "run" , "()V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.Foo" ) );
+    }
+
+    @Test
+    public void testDescriptorWithObjectTypes()
+    {
+        final JoinpointFilter filter = compile( "com.acme.Foo#doWork(Ljava/lang/String;)V" );
+
+        assertTrue( filter.matches( "com.acme.Foo" , "doWork" , "(Ljava/lang/String;)V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.Foo" , "doWork" , "(I)V" , 10 ) );
+        assertFalse( filter.matches( "com.acme.Foo" , "doOtherWork" , "(Ljava/lang/String;)V" , 10 ) );
+    }
+
+    @Test
+    public void testMinInstructionCount()
+    {
+        final JoinpointFilter filter = JoinpointFilter.compile( new String[] { "com.acme.*" } , 5 );
+
+        assertFalse( filter.matches( "com.acme.Foo" , "run" , "()V" , 4 ) );
+        assertTrue( filter.matches( "com.acme.Foo" , "run" , "()V" , 5 ) );
+    }
+
+    @Test
+    public void testEmptyFilterMatchesNothing()
+    {
+        final JoinpointFilter filter = compile();
+
+        assertFalse( filter.matches( "com.acme.Foo" ) );
+        assertFalse( filter.matches( "com.acme.Foo" , "run" , "()V" , 10 ) );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNonTrailingClassWildcardIsRejected()
+    {
+        compile( "com.*.Foo" );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMissingClassPatternIsRejected()
+    {
+        compile( "#run" );
+    }
+
+    @Test
+    public void testGlobMatches()
+    {
+        assertTrue( JoinpointFilter.globMatches( "*" , "" ) );
+        assertTrue( JoinpointFilter.globMatches( "get*" , "get" ) );
+        assertTrue( JoinpointFilter.globMatches( "(*)*" , "(Ljava/lang/String;)V" ) );
+        assertTrue( JoinpointFilter.globMatches( "*a*b" , "xxaxxab" ) );
+        assertFalse( JoinpointFilter.globMatches( "*a*b" , "xxaxxabc" ) );
+        assertFalse( JoinpointFilter.globMatches( "get" , "getName" ) );
+    }
+
+    private static JoinpointFilter compile(String... patterns)
+    {
+        return JoinpointFilter.compile( patterns , 0 );
+    }
+}